@@ -0,0 +1,277 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+
+/**
+ * A {@link Summary} which many threads can update at the same time, so that the workers of a job can share a single
+ * one instead of keeping their own and merging them at the end. Counting a message never takes a global lock: counts
+ * are striped {@link LongAdder}s in a concurrent map, and {@link #getMaxMessagesKept() maxMessagesKept} is enforced
+ * with an atomic reservation of the free slots of each level.
+ *
+ * Formatting and logging is left to {@link Summary}: {@link #toSummary()} takes a snapshot of the counts, which logs
+ * exactly as a Summary which counted the same messages would.
+ *
+ * @version $Id$
+ */
+public class ConcurrentSummary
+{
+    private static final List<Level> LEVELS = Arrays.asList(Level.INFO, Level.ERROR, Level.WARN);
+
+    private final String name;
+    private final Map<Level, LevelCounts> countsByLevel = new EnumMap<>(Level.class);
+    private final AtomicLong insertionSequence = new AtomicLong();
+
+    private volatile int maxMessagesKept = 20;
+    private volatile boolean sortedByKey;
+
+    /**
+     * Constructor.
+     */
+    public ConcurrentSummary()
+    {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the Summary. It will be appended to every message
+     */
+    public ConcurrentSummary(String name)
+    {
+        this.name = name;
+        LEVELS.forEach(level -> this.countsByLevel.put(level, new LevelCounts()));
+    }
+
+    /**
+     * Orders the messages of snapshots in the order they were first counted.
+     * @return this object
+     */
+    public ConcurrentSummary insertionOrdered()
+    {
+        this.sortedByKey = false;
+        return this;
+    }
+
+    /**
+     * Sorts the messages of snapshots by their value.
+     * @return this object
+     */
+    public ConcurrentSummary sortedByKey()
+    {
+        this.sortedByKey = true;
+        return this;
+    }
+
+    /**
+     * Getter for maxMessagesKept.
+     *
+     * @return the maxMessagesKept value
+     */
+    public int getMaxMessagesKept()
+    {
+        return this.maxMessagesKept;
+    }
+
+    /**
+     * Setter for maxMessagesKept. Lowering it does not drop messages already kept.
+     *
+     * @param maxMessagesKept the value to set
+     * @return this object
+     */
+    public ConcurrentSummary setMaxMessagesKept(int maxMessagesKept)
+    {
+        this.maxMessagesKept = maxMessagesKept;
+        return this;
+    }
+
+    /**
+     * Returns the count for a message of a specific type.
+     * @param type the type of message
+     * @param message the message to search for
+     * @return the count, null if the message was not kept
+     */
+    public Long getMessageCount(Level type, String message)
+    {
+        LevelCounts counts = this.countsByLevel.get(type);
+        MessageCount count = counts == null ? null : counts.messages.get(message);
+        return count == null ? null : count.count.sum();
+    }
+
+    /**
+     * Increments the count of the given info message by 1. See {@link Summary#info(String)}.
+     * @param message the message
+     * @return this object
+     */
+    public ConcurrentSummary info(String message)
+    {
+        return this.info(message, 1);
+    }
+
+    /**
+     * Increments the count of the given info message by the amount. See {@link Summary#info(String, long)}.
+     * @param message the message
+     * @param amount the amount by which to increment the count of this message by
+     * @return this object
+     */
+    public ConcurrentSummary info(String message, long amount)
+    {
+        return this.incrementMessageCount(Level.INFO, message, this.name, amount);
+    }
+
+    /**
+     * Increments the count of the given warn message by 1. See {@link Summary#warn(String)}.
+     * @param message the message
+     * @return this object
+     */
+    public ConcurrentSummary warn(String message)
+    {
+        return this.incrementMessageCount(Level.WARN, message, this.name, 1);
+    }
+
+    /**
+     * Increments the count of the given error message by 1. See {@link Summary#error(String)}.
+     * @param message the message
+     * @return this object
+     */
+    public ConcurrentSummary error(String message)
+    {
+        return this.incrementMessageCount(Level.ERROR, message, this.name, 1);
+    }
+
+    /**
+     * Adds the counts of the given Summary to this one, for instance the Summary of a sub task. Unlike
+     * {@link Summary#merge(Mergeable)}, {@link #getMaxMessagesKept() maxMessagesKept} is left untouched.
+     * @param summary the Summary to add
+     * @return this object
+     */
+    public ConcurrentSummary merge(Summary summary)
+    {
+        if (summary != null) {
+            LEVELS.forEach(level -> summary.forEachMessageCount(level,
+                (message, messageName, count) -> this.incrementMessageCount(level, message, messageName, count)));
+        }
+        return this;
+    }
+
+    /**
+     * Returns a {@link Summary} with the current counts of this one. Counts updated while the snapshot is taken might
+     * or might not be included.
+     * @return a new Summary
+     */
+    public Summary toSummary()
+    {
+        Summary summary = new Summary(this.name).setMaxMessagesKept(this.maxMessagesKept);
+        if (this.sortedByKey) {
+            summary.sortedByKey();
+        }
+
+        for (Map.Entry<Level, LevelCounts> levelCounts : this.countsByLevel.entrySet()) {
+            List<Map.Entry<String, MessageCount>> messages =
+                new ArrayList<>(levelCounts.getValue().messages.entrySet());
+            messages.sort(Comparator.comparingLong(entry -> entry.getValue().order));
+            for (Map.Entry<String, MessageCount> message : messages) {
+                summary.incrementMessageCount(levelCounts.getKey(), message.getKey(), message.getValue().name,
+                    message.getValue().count.sum());
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Logs a snapshot of this object with the given Logger. See {@link Summary#log(Logger)}.
+     * @param logger the Logger to use
+     * @return this object
+     */
+    public ConcurrentSummary log(Logger logger)
+    {
+        this.toSummary().log(logger);
+        return this;
+    }
+
+    /**
+     * Logs a snapshot of this object's messages (of the given level) with the given Logger.
+     * @param level the level of the messages to log
+     * @param logger the Logger to use
+     * @return this object
+     */
+    public ConcurrentSummary log(Level level, Logger logger)
+    {
+        this.toSummary().log(level, logger);
+        return this;
+    }
+
+    private ConcurrentSummary incrementMessageCount(Level type, String message, String messageName, long amount)
+    {
+        LevelCounts counts = this.countsByLevel.get(type);
+        MessageCount count = counts.messages.get(message);
+        if (count == null) {
+            count = counts.add(message, messageName, this.maxMessagesKept, this.insertionSequence);
+            if (count == null) {
+                return this;
+            }
+        }
+        count.count.add(amount);
+        return this;
+    }
+
+    /**
+     * The messages of a level. Their number is only ever increased after reserving a free slot, so it can not go
+     * above maxMessagesKept, even with concurrent additions. The slot is reserved while the message is being mapped,
+     * so that concurrent additions of the same message wait for it, and find it if it got a slot.
+     */
+    private static final class LevelCounts
+    {
+        private final ConcurrentHashMap<String, MessageCount> messages = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Adds a message, if there is a free slot for it.
+         * @return the count of the message, null if it could not be kept
+         */
+        MessageCount add(String message, String messageName, int maxMessagesKept, AtomicLong sequence)
+        {
+            return this.messages.computeIfAbsent(message, key -> {
+                int current;
+                do {
+                    current = this.size.get();
+                    if (current >= maxMessagesKept) {
+                        return null;
+                    }
+                } while (!this.size.compareAndSet(current, current + 1));
+                return new MessageCount(messageName, sequence.getAndIncrement());
+            });
+        }
+    }
+
+    private static final class MessageCount
+    {
+        private final String name;
+        private final long order;
+        private final LongAdder count = new LongAdder();
+
+        MessageCount(String name, long order)
+        {
+            this.name = name;
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+/**
+ * Utils class for merging many {@link Mergeable} objects together. Items are always merged into fresh objects given
+ * by an identity supplier, never into one another, so that the items are left untouched, and the supplier decides
+ * the settings of the result (for instance the {@link Summary.MergePolicy merge policy} of a Summary). Items are
+ * merged in their order, for objects where it matters.
+ *
+ * @version $Id$
+ */
+public final class Mergeables
+{
+    /* Default number of items under which a tree reduction merges them sequentially. */
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private Mergeables()
+    {
+        // Do nothing.
+    }
+
+    /**
+     * Merges the given items one after the other into a new object.
+     * @param items the items to merge
+     * @param identity supplies the object to merge into
+     * @param <T> the type of the items
+     * @return the result of the merge
+     */
+    public static <T extends Mergeable<T>> T merge(Iterable<? extends T> items, Supplier<T> identity)
+    {
+        T result = identity.get();
+        for (T item : items) {
+            result.merge(item);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a Collector merging the items of a stream. Parallel streams merge each chunk into its own object,
+     * then merge those.
+     * @param identity supplies the objects to merge into
+     * @param <T> the type of the items
+     * @return a Collector
+     */
+    public static <T extends Mergeable<T>> Collector<T, ?, T> merging(Supplier<T> identity)
+    {
+        return Collector.of(identity, Mergeable::merge, (left, right) -> left.merge(right).get(),
+            Collector.Characteristics.IDENTITY_FINISH);
+    }
+
+    /**
+     * Merges the given items as a balanced tree in the common fork/join pool, see
+     * {@link #treeReduce(List, Supplier, ForkJoinPool, int)}.
+     * @param items the items to merge
+     * @param identity supplies the objects to merge into
+     * @param <T> the type of the items
+     * @return the result of the merge
+     */
+    public static <T extends Mergeable<T>> T treeReduce(List<? extends T> items, Supplier<T> identity)
+    {
+        return treeReduce(items, identity, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Merges the given items as a balanced tree: the list is split in halves until they are under the threshold,
+     * the items of each part are merged sequentially, and the partial results are merged two by two in parallel,
+     * up to the root. Each item is merged once, and each partial result about log2(items / threshold) times, rather
+     * than the result of a sequential fold being merged into for every item.
+     * @param items the items to merge, which should support fast random access
+     * @param identity supplies the objects to merge into, called about once per threshold items
+     * @param pool the pool to run the merges in
+     * @param threshold the number of items under which they are merged sequentially
+     * @param <T> the type of the items
+     * @return the result of the merge
+     */
+    public static <T extends Mergeable<T>> T treeReduce(List<? extends T> items, Supplier<T> identity,
+        ForkJoinPool pool, int threshold)
+    {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("The threshold must be positive");
+        }
+        return pool.invoke(new MergeTask<>(items, 0, items.size(), identity, threshold));
+    }
+
+    private static final class MergeTask<T extends Mergeable<T>> extends RecursiveTask<T>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<? extends T> items;
+        private final int from;
+        private final int to;
+        private final transient Supplier<T> identity;
+        private final int threshold;
+
+        MergeTask(List<? extends T> items, int from, int to, Supplier<T> identity, int threshold)
+        {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.identity = identity;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected T compute()
+        {
+            if (this.to - this.from <= this.threshold) {
+                return merge(this.items.subList(this.from, this.to), this.identity);
+            }
+
+            int middle = (this.from + this.to) >>> 1;
+            MergeTask<T> left = new MergeTask<>(this.items, this.from, middle, this.identity, this.threshold);
+            MergeTask<T> right = new MergeTask<>(this.items, middle, this.to, this.identity, this.threshold);
+            left.fork();
+            T rightResult = right.compute();
+            return left.join().merge(rightResult).get();
+        }
+    }
+}
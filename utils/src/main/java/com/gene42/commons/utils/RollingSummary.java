@@ -0,0 +1,310 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+/**
+ * A Summary for long running services, counting over consecutive windows of time rather than forever. Messages are
+ * counted into the current window, a {@link ConcurrentSummary}, which is rotated every period: the window is replaced
+ * by an empty one, and a {@link Summary} snapshot of it is handed to a callback (for instance logging it) on a
+ * background thread, and kept in a ring of the last few windows for inspection.
+ *
+ * Rotations never block writers, which only ever increment a couple of atomic counters around their update. A
+ * rotation waits for the writers which were already updating the old window to be done before taking its snapshot,
+ * so that no count is lost between two windows.
+ *
+ * @version $Id$
+ */
+public class RollingSummary implements Closeable
+{
+    private final String name;
+    private final int windowsKept;
+    private final Consumer<Summary> onRotation;
+    private final Deque<Summary> windows;
+    private final WindowPhaser phaser = new WindowPhaser();
+    private final ScheduledFuture<?> rotationTask;
+
+    private volatile int maxMessagesKept = 20;
+    private volatile ConcurrentSummary currentWindow;
+
+    /**
+     * Constructor, logging each window with the given Logger when it ends.
+     * @param name the name of the Summary. It will be appended to every message
+     * @param period the length of a window
+     * @param unit the unit of the period
+     * @param windowsKept the number of past windows kept
+     * @param logger the Logger to log windows with, see {@link Summary#log(Logger)}
+     */
+    public RollingSummary(String name, long period, TimeUnit unit, int windowsKept, Logger logger)
+    {
+        this(name, period, unit, windowsKept, summary -> summary.log(logger));
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the Summary. It will be appended to every message
+     * @param period the length of a window
+     * @param unit the unit of the period
+     * @param windowsKept the number of past windows kept
+     * @param onRotation called with each window when it ends, on the rotation thread, null for none
+     */
+    public RollingSummary(String name, long period, TimeUnit unit, int windowsKept, Consumer<Summary> onRotation)
+    {
+        this(name, period, unit, windowsKept, onRotation, Scheduler.EXECUTOR);
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the Summary. It will be appended to every message
+     * @param period the length of a window, zero or less to only rotate on {@link #rotate()} calls
+     * @param unit the unit of the period
+     * @param windowsKept the number of past windows kept
+     * @param onRotation called with each window when it ends, on the rotation thread, null for none
+     * @param executor the executor to schedule rotations with
+     */
+    public RollingSummary(String name, long period, TimeUnit unit, int windowsKept, Consumer<Summary> onRotation,
+        ScheduledExecutorService executor)
+    {
+        if (windowsKept < 0) {
+            throw new IllegalArgumentException("The number of windows kept cannot be negative");
+        }
+        this.name = name;
+        this.windowsKept = windowsKept;
+        this.onRotation = onRotation;
+        this.windows = new ArrayDeque<>(windowsKept);
+        this.currentWindow = this.newWindow();
+        this.rotationTask = period > 0
+            ? executor.scheduleAtFixedRate(this::rotateAndEmit, period, period, unit) : null;
+    }
+
+    /**
+     * Getter for maxMessagesKept.
+     *
+     * @return the maxMessagesKept value
+     */
+    public int getMaxMessagesKept()
+    {
+        return this.maxMessagesKept;
+    }
+
+    /**
+     * Setter for maxMessagesKept, the maximum number of messages per level kept in each window.
+     *
+     * @param maxMessagesKept the value to set
+     * @return this object
+     */
+    public RollingSummary setMaxMessagesKept(int maxMessagesKept)
+    {
+        this.maxMessagesKept = maxMessagesKept;
+        this.currentWindow.setMaxMessagesKept(maxMessagesKept);
+        return this;
+    }
+
+    /**
+     * Increments the count of the given info message by 1 in the current window.
+     * @param message the message
+     * @return this object
+     */
+    public RollingSummary info(String message)
+    {
+        return this.info(message, 1);
+    }
+
+    /**
+     * Increments the count of the given info message by the amount in the current window.
+     * @param message the message
+     * @param amount the amount by which to increment the count of this message by
+     * @return this object
+     */
+    public RollingSummary info(String message, long amount)
+    {
+        long epoch = this.phaser.enter();
+        try {
+            this.currentWindow.info(message, amount);
+        } finally {
+            this.phaser.exit(epoch);
+        }
+        return this;
+    }
+
+    /**
+     * Increments the count of the given warn message by 1 in the current window.
+     * @param message the message
+     * @return this object
+     */
+    public RollingSummary warn(String message)
+    {
+        long epoch = this.phaser.enter();
+        try {
+            this.currentWindow.warn(message);
+        } finally {
+            this.phaser.exit(epoch);
+        }
+        return this;
+    }
+
+    /**
+     * Increments the count of the given error message by 1 in the current window.
+     * @param message the message
+     * @return this object
+     */
+    public RollingSummary error(String message)
+    {
+        long epoch = this.phaser.enter();
+        try {
+            this.currentWindow.error(message);
+        } finally {
+            this.phaser.exit(epoch);
+        }
+        return this;
+    }
+
+    /**
+     * Returns a snapshot of the current window, which is still being counted into.
+     * @return a new Summary
+     */
+    public Summary getCurrentWindow()
+    {
+        return this.currentWindow.toSummary();
+    }
+
+    /**
+     * Returns the past windows kept, from the oldest to the latest.
+     * @return a list of windows
+     */
+    public synchronized List<Summary> getWindows()
+    {
+        return new ArrayList<>(this.windows);
+    }
+
+    /**
+     * Ends the current window and starts a new one. This is done automatically every period, but can also be called
+     * on demand. The callback is not called.
+     * @return the window which just ended
+     */
+    public synchronized Summary rotate()
+    {
+        ConcurrentSummary endedWindow = this.currentWindow;
+        this.currentWindow = this.newWindow();
+        // Writers which might still be updating the ended window are done after this
+        this.phaser.flip();
+
+        Summary snapshot = endedWindow.toSummary();
+        if (this.windowsKept > 0) {
+            if (this.windows.size() == this.windowsKept) {
+                this.windows.removeFirst();
+            }
+            this.windows.addLast(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stops the scheduled rotations. The current window is neither rotated nor emitted.
+     */
+    @Override
+    public void close()
+    {
+        if (this.rotationTask != null) {
+            this.rotationTask.cancel(false);
+        }
+    }
+
+    private ConcurrentSummary newWindow()
+    {
+        return new ConcurrentSummary(this.name).setMaxMessagesKept(this.maxMessagesKept);
+    }
+
+    private void rotateAndEmit()
+    {
+        Summary snapshot = this.rotate();
+        if (this.onRotation == null) {
+            return;
+        }
+        try {
+            this.onRotation.accept(snapshot);
+        } catch (RuntimeException e) {
+            // A failing callback must not cancel the next rotations
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Lets rotations wait for in-flight writers without ever blocking them (a writer-reader phaser). Writers count
+     * their entries in a start epoch, and their exits in the end epoch of the phase they entered in, which is
+     * told by the sign of the start epoch. Flipping the phase resets the start epoch to the other sign, then waits
+     * for the exits of the previous phase to catch up with its entries.
+     */
+    private static final class WindowPhaser
+    {
+        private final AtomicLong startEpoch = new AtomicLong();
+        private final AtomicLong evenEndEpoch = new AtomicLong();
+        private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+        long enter()
+        {
+            return this.startEpoch.getAndIncrement();
+        }
+
+        void exit(long epoch)
+        {
+            (epoch < 0 ? this.oddEndEpoch : this.evenEndEpoch).getAndIncrement();
+        }
+
+        /**
+         * Waits for the writers which entered before the call to exit. Must not be called concurrently.
+         */
+        void flip()
+        {
+            boolean nextPhaseIsEven = this.startEpoch.get() < 0;
+            long initialValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+            (nextPhaseIsEven ? this.evenEndEpoch : this.oddEndEpoch).set(initialValue);
+
+            long startValueAtFlip = this.startEpoch.getAndSet(initialValue);
+            AtomicLong previousEndEpoch = nextPhaseIsEven ? this.oddEndEpoch : this.evenEndEpoch;
+            while (previousEndEpoch.get() != startValueAtFlip) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Daemon thread shared by all the rolling summaries which are not given an executor.
+     */
+    private static final class Scheduler
+    {
+        private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "RollingSummary-rotation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
+        }
+
+        private Scheduler()
+        {
+            throw new AssertionError();
+        }
+    }
+}
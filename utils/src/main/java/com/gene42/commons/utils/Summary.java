@@ -7,15 +7,23 @@
  */
 package com.gene42.commons.utils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IllegalFormatException;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 
@@ -26,6 +34,26 @@
 /**
  * A summary of info/warnings/errors encountered during a task.
  *
+ * At most {@link #getMaxMessagesKept() maxMessagesKept} messages are kept per level. By default, messages which come
+ * after that are dropped, however often they occur. In {@link #heavyHitters() heavy hitters} mode, a new message
+ * replaces the least counted one instead (Space-Saving), so that the most frequent messages are kept whatever their
+ * order. Either way, once messages start being left out, the number of distinct messages is estimated with a
+ * {@link HyperLogLog}, see {@link #getDistinctMessageCount(Level)}.
+ *
+ * Messages built from variable values (ids, field names...) should be counted through their template, with
+ * {@link #warn(String, Object...)} and the like: they are aggregated by template, so each value does not take a
+ * message of its own, and nothing is formatted while counting. A few argument values are kept per template
+ * ({@link #setMaxSamplesKept(int) maxSamplesKept}): the template is logged formatted with the first ones, followed by
+ * the others.
+ *
+ * Durations can be recorded too, with {@link #time(String, long)} or {@link #startTimer(String)}: each message then
+ * gets a {@link TimingHistogram}, and is logged with its count, mean, median, 99th percentile and maximum. At most
+ * maxMessagesKept messages are timed.
+ *
+ * When merging summaries, the {@link #setMergePolicy(MergePolicy) merge policy} decides how many messages the result
+ * keeps. By default, it keeps all the messages of both, so that folding many summaries together grows it without
+ * limit: a {@link MergePolicy#capped(int) capped} policy (with heavy hitters) bounds it to the most frequent ones.
+ *
  * @version $Id$
  */
 public class Summary implements Mergeable<Summary>
@@ -42,6 +70,18 @@ public class Summary implements Mergeable<Summary>
 
     private static final String DEFAULT_LOG_STRING = "%s: (%s)";
 
+    private static final String SAMPLES_PREFIX = ", also ";
+
+    private static final String SLF4J_ANCHOR = "{}";
+
+    /* Format specifiers, with the argument index, if any, as first group and the conversion as second group. */
+    private static final Pattern FORMAT_SPECIFIER =
+        Pattern.compile("%(\\d+\\$|<)?[-#+ 0,(]*\\d*(?:\\.\\d+)?([tT]?[a-zA-Z%])");
+
+    private static final String TIMINGS_HEADER = "Timings";
+
+    private static final String TIMING_LOG_STRING = "{}: count={}, mean={}, p50={}, p99={}, max={}";
+
     private static final List<Level> LEVELS = Arrays.asList(Level.INFO, Level.ERROR, Level.WARN);
 
     private String logStringVariable = "%s";
@@ -49,6 +89,17 @@ public class Summary implements Mergeable<Summary>
     private String name;
     private Map<Level, Map<SummaryEntry, Long>> messageCountMap = new TreeMap<>();
     private int maxMessagesKept = 20;
+    private boolean heavyHitters;
+    private Map<Level, Map<SummaryEntry, Long>> messageErrorMap = new TreeMap<>();
+    /* In heavy hitters mode, once messages start being replaced, the kept messages of each level by count. */
+    private Map<Level, NavigableSet<SummaryEntry>> countOrderMap = new EnumMap<>(Level.class);
+    private Map<Level, HyperLogLog> distinctMessageMap = new TreeMap<>();
+    private Map<Level, Map<SummaryEntry, List<String[]>>> messageSampleMap = new TreeMap<>();
+    private int maxSamplesKept = 3;
+    private MergePolicy mergePolicy = MergePolicy.SUM;
+    private Map<SummaryEntry, TimingHistogram> timingMap;
+    /* The same timings by message (which is all entries are compared by), so that timing needs no entry to look up. */
+    private Map<String, TimingHistogram> timingsByMessage = new HashMap<>();
 
     private Map<Level, String> logStringMap = new TreeMap<>();
     private Map<Level, String> levelHeaderMap = new TreeMap<>();
@@ -86,6 +137,12 @@ public Summary(String name)
     public Summary insertionOrdered()
     {
         LEVELS.forEach(key -> this.messageCountMap.put(key, new LinkedHashMap<>()));
+        this.timingMap = new LinkedHashMap<>();
+        this.timingsByMessage.clear();
+        this.messageErrorMap.clear();
+        this.countOrderMap.clear();
+        this.distinctMessageMap.clear();
+        this.messageSampleMap.clear();
         return this;
     }
 
@@ -96,6 +153,26 @@ public Summary insertionOrdered()
     public Summary sortedByKey()
     {
         LEVELS.forEach(key -> this.messageCountMap.put(key, new TreeMap<>()));
+        this.timingMap = new TreeMap<>();
+        this.timingsByMessage.clear();
+        this.messageErrorMap.clear();
+        this.countOrderMap.clear();
+        this.distinctMessageMap.clear();
+        this.messageSampleMap.clear();
+        return this;
+    }
+
+    /**
+     * Keeps the most frequent messages rather than the first ones, once there are more than
+     * {@link #getMaxMessagesKept() maxMessagesKept} distinct messages. A new message then replaces the least counted
+     * one, and starts from its count: counts become upper bounds, whose error is given by
+     * {@link #getMessageCountError(Level, String)}. Any message occurring more than {@code 1 / maxMessagesKept} of
+     * the time (in total count) is guaranteed to be kept.
+     * @return this object
+     */
+    public Summary heavyHitters()
+    {
+        this.heavyHitters = true;
         return this;
     }
 
@@ -121,6 +198,50 @@ public Summary setMaxMessagesKept(int maxMessagesKept)
         return this;
     }
 
+    /**
+     * Getter for maxSamplesKept.
+     *
+     * @return the maxSamplesKept value
+     */
+    public int getMaxSamplesKept()
+    {
+        return this.maxSamplesKept;
+    }
+
+    /**
+     * Setter for maxSamplesKept, the number of argument values kept (and logged) per message template.
+     *
+     * @param maxSamplesKept the value to set
+     * @return this object
+     */
+    public Summary setMaxSamplesKept(int maxSamplesKept)
+    {
+        this.maxSamplesKept = maxSamplesKept;
+        return this;
+    }
+
+    /**
+     * Getter for mergePolicy.
+     *
+     * @return the mergePolicy value
+     */
+    public MergePolicy getMergePolicy()
+    {
+        return this.mergePolicy;
+    }
+
+    /**
+     * Setter for mergePolicy, which decides the maxMessagesKept of this object when others are merged into it.
+     *
+     * @param mergePolicy the value to set
+     * @return this object
+     */
+    public Summary setMergePolicy(MergePolicy mergePolicy)
+    {
+        this.mergePolicy = mergePolicy == null ? MergePolicy.SUM : mergePolicy;
+        return this;
+    }
+
     /**
      * Setter for leftPaddingSize.
      *
@@ -241,6 +362,90 @@ public Long getMessageCount(Level type, String message)
         return map.get(new SummaryEntry(message, this.name));
     }
 
+    /**
+     * Returns the durations recorded for a message.
+     * @param message the message to search for
+     * @return the histogram of the durations of the message, in nanoseconds, or null if none were recorded
+     */
+    public TimingHistogram getTiming(String message)
+    {
+        return this.timingsByMessage.get(message);
+    }
+
+    /**
+     * Returns the argument values kept for a message template, each formatted as a comma separated list.
+     * @param type the type of message
+     * @param template the message template
+     * @return the argument values, empty if none were kept
+     */
+    public List<String> getMessageSamples(Level type, String template)
+    {
+        List<String[]> templateSamples = this.getMessageSampleArguments(type, template);
+        List<String> joinedSamples = new ArrayList<>(templateSamples.size());
+        for (String[] sample : templateSamples) {
+            joinedSamples.add(StringUtils.join(sample, ", "));
+        }
+        return joinedSamples;
+    }
+
+    /**
+     * Returns the argument values kept for a message template, each as the array of its arguments.
+     * @param type the type of message
+     * @param template the message template
+     * @return the argument values, empty if none were kept
+     */
+    List<String[]> getMessageSampleArguments(Level type, String template)
+    {
+        Map<SummaryEntry, List<String[]>> samples = this.messageSampleMap.get(type);
+        List<String[]> templateSamples = samples == null ? null : samples.get(new SummaryEntry(template, this.name));
+        return templateSamples == null ? Collections.emptyList() : Collections.unmodifiableList(templateSamples);
+    }
+
+    /**
+     * Returns by how much the count of a message may be overestimated, which is only ever the case in
+     * {@link #heavyHitters() heavy hitters} mode: the actual count is between the count minus the error, and the
+     * count.
+     * @param type the type of message
+     * @param message the message to search for
+     * @return the maximum overestimation of the count, null if the message is not kept
+     */
+    public Long getMessageCountError(Level type, String message)
+    {
+        SummaryEntry summaryEntry = new SummaryEntry(message, this.name);
+        Map<SummaryEntry, Long> map = this.messageCountMap.get(type);
+        if (map == null || !map.containsKey(summaryEntry)) {
+            return null;
+        }
+
+        Map<SummaryEntry, Long> errors = this.messageErrorMap.get(type);
+        return errors == null ? 0L : errors.getOrDefault(summaryEntry, 0L);
+    }
+
+    /**
+     * Returns the number of distinct messages of the given level. It is exact as long as no message was left out,
+     * and estimated (within a few percents) after that.
+     * @param type the type of message
+     * @return the number of distinct messages
+     */
+    public long getDistinctMessageCount(Level type)
+    {
+        Map<SummaryEntry, Long> map = this.messageCountMap.get(type);
+        int kept = map == null ? 0 : map.size();
+        HyperLogLog distinctMessages = this.distinctMessageMap.get(type);
+        return distinctMessages == null ? kept : Math.max(distinctMessages.estimate(), kept);
+    }
+
+    /**
+     * Returns the (approximate) number of distinct messages of the given level which were left out.
+     * @param type the type of message
+     * @return the number of messages not kept
+     */
+    public long getMissingMessageCount(Level type)
+    {
+        Map<SummaryEntry, Long> map = this.messageCountMap.get(type);
+        return this.getDistinctMessageCount(type) - (map == null ? 0 : map.size());
+    }
+
     @Override
     public Mergeable<Summary> merge(Mergeable<Summary> toMergeWith)
     {
@@ -250,15 +455,34 @@ public Mergeable<Summary> merge(Mergeable<Summary> toMergeWith)
 
         Summary other = toMergeWith.get();
 
-        this.maxMessagesKept += other.maxMessagesKept;
+        this.mergeMaxMessagesKept(other.maxMessagesKept);
 
         for (Map.Entry<Level, Map<SummaryEntry, Long>> otherEntry : other.messageCountMap.entrySet()) {
+            Map<SummaryEntry, Long> otherErrors = other.messageErrorMap.getOrDefault(otherEntry.getKey(),
+                Collections.emptyMap());
             for (Map.Entry<SummaryEntry, Long> otherMapEntry : otherEntry.getValue().entrySet()) {
-                this.incrementMessageCount(
-                    otherEntry.getKey(), otherMapEntry.getKey(), otherMapEntry.getValue());
+                this.incrementMessageCount(otherEntry.getKey(), otherMapEntry.getKey(), otherMapEntry.getValue(),
+                    otherErrors.getOrDefault(otherMapEntry.getKey(), 0L));
             }
         }
 
+        for (Map.Entry<Level, Map<SummaryEntry, List<String[]>>> otherEntry : other.messageSampleMap.entrySet()) {
+            Map<SummaryEntry, Long> map = this.messageCountMap.get(otherEntry.getKey());
+            for (Map.Entry<SummaryEntry, List<String[]>> otherSamples : otherEntry.getValue().entrySet()) {
+                if (map.containsKey(otherSamples.getKey())) {
+                    otherSamples.getValue().forEach(sample ->
+                        this.addMessageSample(otherEntry.getKey(), otherSamples.getKey(), sample));
+                }
+            }
+        }
+
+        // Messages the other one left out
+        other.distinctMessageMap.forEach(this::mergeDistinctMessages);
+
+        for (Map.Entry<SummaryEntry, TimingHistogram> otherEntry : other.timingMap.entrySet()) {
+            this.mergeTiming(otherEntry.getKey(), otherEntry.getValue());
+        }
+
         return this;
     }
 
@@ -313,6 +537,92 @@ public Summary error(String message)
         return this.incrementMessageCount(Level.ERROR, new SummaryEntry(message, this.name), 1);
     }
 
+    /**
+     * Increments the count of the given warn message template by 1. See {@link #add(Level, String, Object...)}.
+     * @param template the message template, in {@link String#format(String, Object...)} syntax
+     * @param args the arguments of the template
+     * @return this object
+     */
+    public Summary warn(String template, Object... args)
+    {
+        return this.add(Level.WARN, template, args);
+    }
+
+    /**
+     * Increments the count of the given error message template by 1. See {@link #add(Level, String, Object...)}.
+     * @param template the message template, in {@link String#format(String, Object...)} syntax
+     * @param args the arguments of the template
+     * @return this object
+     */
+    public Summary error(String template, Object... args)
+    {
+        return this.add(Level.ERROR, template, args);
+    }
+
+    /**
+     * Increments the count of the given message template by 1. Messages are counted by template, whatever their
+     * arguments, which are only kept for the first {@link #getMaxSamplesKept() maxSamplesKept} occurrences of the
+     * template. The template is not formatted while counting: it is formatted once, when logged, with the first
+     * kept arguments, and followed by the others. Templates without kept arguments are logged as is.
+     * @param type the level of the message, one of info, warn and error
+     * @param template the message template, in {@link String#format(String, Object...)} syntax
+     * @param args the arguments of the template
+     * @return this object
+     */
+    public Summary add(Level type, String template, Object... args)
+    {
+        Map<SummaryEntry, Long> map = this.messageCountMap.get(type);
+        if (map == null) {
+            throw new IllegalArgumentException("Unsupported level: " + type);
+        }
+
+        SummaryEntry summaryEntry = new SummaryEntry(template, this.name);
+        this.incrementMessageCount(type, summaryEntry, 1);
+        if (args != null && args.length > 0 && this.maxSamplesKept > 0 && map.containsKey(summaryEntry)) {
+            Map<SummaryEntry, List<String[]>> samples = this.messageSampleMap.get(type);
+            List<String[]> templateSamples = samples == null ? null : samples.get(summaryEntry);
+            if (templateSamples == null || templateSamples.size() < this.maxSamplesKept) {
+                String[] sample = new String[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    sample[i] = String.valueOf(args[i]);
+                }
+                this.addMessageSample(type, summaryEntry, sample);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Records a duration of the given message. Recording allocates nothing once the message is timed, but a new
+     * message is not timed if there are already maxMessagesKept timed messages.
+     * @param message the message, naming what was timed
+     * @param nanos the duration, in nanoseconds
+     * @return this object
+     */
+    public Summary time(String message, long nanos)
+    {
+        TimingHistogram timing = this.timingsByMessage.get(message);
+        if (timing == null) {
+            if (this.timingMap.size() >= this.maxMessagesKept) {
+                return this;
+            }
+            timing = new TimingHistogram();
+            this.putTiming(new SummaryEntry(message, this.name), timing);
+        }
+        timing.record(nanos);
+        return this;
+    }
+
+    /**
+     * Starts timing the given message, until the returned Timer is closed, typically with try-with-resources.
+     * @param message the message, naming what is timed
+     * @return a started Timer
+     */
+    public Timer startTimer(String message)
+    {
+        return new Timer(this, message);
+    }
+
     /**
      * Logs this object's messages (of the given level) with the given Logger.
      * @param level the level of the messages to log
@@ -334,9 +644,10 @@ public Summary log(Logger logger)
         if (this.levelLogOrder != null) {
             List<SummaryEntry> allSummaryEntries = new LinkedList<>();
             this.messageCountMap.values().forEach(map -> allSummaryEntries.addAll(map.keySet()));
+            allSummaryEntries.addAll(this.timingMap.keySet());
 
             final Integer namePaddingSize;
-            if (this.alignByName) {
+            if (this.alignByName && !allSummaryEntries.isEmpty()) {
                 SummaryEntry max =
                     Collections.max(allSummaryEntries, Comparator.comparing(SummaryEntry::getNameLength));
                 namePaddingSize = max.getNameLength();
@@ -346,6 +657,7 @@ public Summary log(Logger logger)
 
 
             this.levelLogOrder.forEach(level -> this.log(level, logger, namePaddingSize));
+            this.logTimings(logger, namePaddingSize);
         }
         return this;
     }
@@ -377,19 +689,55 @@ private Summary log(Level level, Logger logger, Integer maxNameLength)
         }
 
         if (messageMap.size() > 0) {
+            // The loggers fill in their own {} anchors, not the variables of the formatting string
+            String logString = StringUtils.repeat(this.padChar, this.leftPaddingSize)
+                + StringUtils.replace(this.logStringMap.get(level), this.logStringVariable, SLF4J_ANCHOR);
+            Map<SummaryEntry, List<String[]>> samples = this.messageSampleMap.getOrDefault(level,
+                Collections.emptyMap());
             for (Map.Entry<SummaryEntry, Long> entry : messageMap.entrySet()) {
-                loggerMethod.log(
-                    logger,
-                     StringUtils.repeat(this.padChar, this.leftPaddingSize) + this.logStringMap.get(level),
-                    entry.getKey().toString(maxNameLength, this.padChar),
-                    entry.getValue()
-                );
+                List<String[]> messageSamples = samples.get(entry.getKey());
+                String message;
+                if (messageSamples == null || messageSamples.isEmpty()) {
+                    message = entry.getKey().toString(maxNameLength, this.padChar);
+                } else {
+                    String formatted = formatTemplate(entry.getKey().getMessage(), messageSamples.get(0));
+                    message = entry.getKey().toString(formatted, maxNameLength, this.padChar);
+                    List<String> otherSamples = new ArrayList<>(messageSamples.size() - 1);
+                    for (String[] sample : messageSamples.subList(1, messageSamples.size())) {
+                        otherSamples.add(StringUtils.join(sample, ", "));
+                    }
+                    if (!otherSamples.isEmpty()) {
+                        message += SAMPLES_PREFIX + "(" + StringUtils.join(otherSamples, "), (") + ")";
+                    }
+                }
+                loggerMethod.log(logger, logString, message, entry.getValue());
             }
         }
 
         return this;
     }
 
+    private void logTimings(Logger logger, Integer maxNameLength)
+    {
+        if (this.timingMap.isEmpty()) {
+            return;
+        }
+
+        logger.info(TIMINGS_HEADER);
+        String logString = StringUtils.repeat(this.padChar, this.leftPaddingSize) + TIMING_LOG_STRING;
+        for (Map.Entry<SummaryEntry, TimingHistogram> entry : this.timingMap.entrySet()) {
+            TimingHistogram timing = entry.getValue();
+            logger.info(logString, entry.getKey().toString(maxNameLength, this.padChar), timing.getCount(),
+                formatNanos(timing.getMean()), formatNanos(timing.getPercentile(50)),
+                formatNanos(timing.getPercentile(99)), formatNanos(timing.getMax()));
+        }
+    }
+
+    private static String formatNanos(double nanos)
+    {
+        return String.format("%.3f ms", nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
     private static String getLogFormattingString(String formattingString, String logStringVariable)
     {
         if (formattingString == null) {
@@ -407,20 +755,356 @@ private static String getLogFormattingString(String formattingString, String log
      * @return this object
      */
     private Summary incrementMessageCount(Level type, SummaryEntry summaryEntry, long amount)
+    {
+        return this.incrementMessageCount(type, summaryEntry, amount, 0);
+    }
+
+    private Summary incrementMessageCount(Level type, SummaryEntry summaryEntry, long amount, long error)
     {
         Map<SummaryEntry, Long> map = this.messageCountMap.get(type);
         Long currentCount = map.get(summaryEntry);
-        if (currentCount == null) {
-            if (map.size() < this.maxMessagesKept) {
-                map.put(summaryEntry, amount);
+        HyperLogLog distinctMessages = currentCount == null && map.size() >= this.maxMessagesKept
+            ? this.getDistinctMessages(type) : this.distinctMessageMap.get(type);
+
+        NavigableSet<SummaryEntry> countOrder = this.countOrderMap.get(type);
+
+        if (currentCount != null) {
+            // The entry is ordered by its count, it has to be taken out while the count changes
+            if (countOrder != null) {
+                countOrder.remove(summaryEntry);
             }
-        } else {
             map.put(summaryEntry, currentCount + amount);
+            if (countOrder != null) {
+                countOrder.add(summaryEntry);
+            }
+            this.addMessageCountError(type, summaryEntry, error);
+        } else if (map.size() < this.maxMessagesKept) {
+            map.put(summaryEntry, amount);
+            if (countOrder != null) {
+                countOrder.add(summaryEntry);
+            }
+            this.addMessageCountError(type, summaryEntry, error);
+        } else if (this.heavyHitters && !map.isEmpty()) {
+            this.replaceLeastCounted(type, map, summaryEntry, amount, error);
         }
 
+        if (distinctMessages != null) {
+            distinctMessages.add(summaryEntry.getMessage());
+        }
         return this;
     }
 
+    /**
+     * Space-Saving: the new message takes the place of the least counted one, and inherits its count, which becomes
+     * the error on the count of the new message. The least counted message is found through the kept messages
+     * ordered by count, in logarithmic time.
+     */
+    private void replaceLeastCounted(Level type, Map<SummaryEntry, Long> map, SummaryEntry summaryEntry, long amount,
+        long error)
+    {
+        NavigableSet<SummaryEntry> countOrder = this.countOrderMap.computeIfAbsent(type, key -> {
+            // Ties are broken by message, since entries are compared by message
+            Comparator<SummaryEntry> byCount = Comparator.comparing(map::get);
+            NavigableSet<SummaryEntry> entries = new TreeSet<>(byCount.thenComparing(Comparator.naturalOrder()));
+            entries.addAll(map.keySet());
+            return entries;
+        });
+
+        SummaryEntry replaced = countOrder.pollFirst();
+        long minimum = map.get(replaced);
+        Map<SummaryEntry, Long> errors = this.messageErrorMap.computeIfAbsent(type, key -> new HashMap<>());
+        map.remove(replaced);
+        errors.remove(replaced);
+        if (this.messageSampleMap.containsKey(type)) {
+            this.messageSampleMap.get(type).remove(replaced);
+        }
+
+        map.put(summaryEntry, minimum + amount);
+        errors.put(summaryEntry, minimum + error);
+        countOrder.add(summaryEntry);
+    }
+
+    private void mergeTiming(SummaryEntry summaryEntry, TimingHistogram timing)
+    {
+        TimingHistogram currentTiming = this.timingsByMessage.get(summaryEntry.getMessage());
+        if (currentTiming != null) {
+            currentTiming.merge(timing);
+        } else if (this.timingMap.size() < this.maxMessagesKept) {
+            this.putTiming(summaryEntry, new TimingHistogram().merge(timing).get());
+        }
+    }
+
+    private void putTiming(SummaryEntry summaryEntry, TimingHistogram timing)
+    {
+        this.timingMap.put(summaryEntry, timing);
+        this.timingsByMessage.put(summaryEntry.getMessage(), timing);
+    }
+
+    /**
+     * Formats a message template with the string values of its arguments: every conversion is made a string one,
+     * since the values are not of their original types anymore. The template is returned as is if it does not fit
+     * the values.
+     */
+    private static String formatTemplate(String template, String[] arguments)
+    {
+        Matcher matcher = FORMAT_SPECIFIER.matcher(template);
+        StringBuffer stringTemplate = new StringBuffer(template.length());
+        while (matcher.find()) {
+            String conversion = matcher.group(2);
+            String replacement = matcher.group(0);
+            if (!"%".equals(conversion) && !"n".equals(conversion)) {
+                replacement = "%" + StringUtils.defaultString(matcher.group(1)) + "s";
+            }
+            matcher.appendReplacement(stringTemplate, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(stringTemplate);
+        try {
+            return String.format(stringTemplate.toString(), (Object[]) arguments);
+        } catch (IllegalFormatException e) {
+            return template;
+        }
+    }
+
+    private void addMessageSample(Level type, SummaryEntry summaryEntry, String[] sample)
+    {
+        List<String[]> samples = this.messageSampleMap.computeIfAbsent(type, key -> new HashMap<>())
+            .computeIfAbsent(summaryEntry, key -> new ArrayList<>(this.maxSamplesKept));
+        if (samples.size() < this.maxSamplesKept) {
+            samples.add(sample);
+        }
+    }
+
+    private void addMessageCountError(Level type, SummaryEntry summaryEntry, long error)
+    {
+        if (error > 0) {
+            this.messageErrorMap.computeIfAbsent(type, key -> new HashMap<>()).merge(summaryEntry, error, Long::sum);
+        }
+    }
+
+    /**
+     * Returns the distinct message counter of the given level, creating it when messages start being left out: up
+     * to that point, the kept messages are all the distinct messages there were.
+     */
+    private HyperLogLog getDistinctMessages(Level type)
+    {
+        return this.distinctMessageMap.computeIfAbsent(type, key -> {
+            HyperLogLog distinctMessages = new HyperLogLog();
+            this.messageCountMap.getOrDefault(type, Collections.emptyMap()).keySet()
+                .forEach(entry -> distinctMessages.add(entry.getMessage()));
+            return distinctMessages;
+        });
+    }
+
+    /**
+     * Increments the count of the given message, as if it had been merged from a Summary with the given name.
+     * @param type the level of the message
+     * @param message the message
+     * @param name the name of the Summary the message comes from
+     * @param amount the amount to increment by
+     * @return this object
+     */
+    Summary incrementMessageCount(Level type, String message, String name, long amount)
+    {
+        return this.incrementMessageCount(type, new SummaryEntry(message, name), amount);
+    }
+
+    /**
+     * Updates maxMessagesKept as merging another Summary does, according to the merge policy.
+     * @param otherMaxMessagesKept the maxMessagesKept of the other Summary
+     */
+    void mergeMaxMessagesKept(int otherMaxMessagesKept)
+    {
+        this.maxMessagesKept = this.mergePolicy.mergeMaxMessagesKept(this.maxMessagesKept, otherMaxMessagesKept);
+    }
+
+    /**
+     * Merges a message counted by another Summary into this one, as {@link #merge(Mergeable)} does.
+     * @param type the level of the message
+     * @param message the message
+     * @param name the name of the Summary the message comes from
+     * @param count the count of the message
+     * @param error the count error of the message
+     * @param samples the samples kept for the message, if it is a template, each as the array of its arguments
+     */
+    void mergeMessage(Level type, String message, String name, long count, long error, List<String[]> samples)
+    {
+        SummaryEntry summaryEntry = new SummaryEntry(message, name);
+        this.incrementMessageCount(type, summaryEntry, count, error);
+        if (samples != null && this.messageCountMap.get(type).containsKey(summaryEntry)) {
+            samples.forEach(sample -> this.addMessageSample(type, summaryEntry, sample));
+        }
+    }
+
+    /**
+     * Merges the distinct message counter of another Summary into this one, as {@link #merge(Mergeable)} does.
+     * @param type the level of the messages counted
+     * @param distinctMessages the counter to merge
+     */
+    void mergeDistinctMessages(Level type, HyperLogLog distinctMessages)
+    {
+        this.getDistinctMessages(type).merge(distinctMessages);
+    }
+
+    /**
+     * Returns the distinct message counter of the given level, which only exists once messages were left out.
+     * @param type the level of the messages counted
+     * @return the counter, null if no message was left out
+     */
+    HyperLogLog getDistinctMessageCounter(Level type)
+    {
+        return this.distinctMessageMap.get(type);
+    }
+
+    /**
+     * Getter for name.
+     *
+     * @return name
+     */
+    String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Tells whether this object is in {@link #heavyHitters() heavy hitters} mode.
+     * @return true if heavy hitters are kept
+     */
+    boolean isHeavyHitters()
+    {
+        return this.heavyHitters;
+    }
+
+    /**
+     * Tells whether messages are {@link #sortedByKey() sorted by key}, rather than insertion ordered.
+     * @return true if messages are sorted
+     */
+    boolean isSortedByKey()
+    {
+        return this.messageCountMap.get(Level.INFO) instanceof TreeMap;
+    }
+
+    /**
+     * Merges the durations of a message timed by another Summary into this one, as {@link #merge(Mergeable)} does.
+     * @param message the message
+     * @param name the name of the Summary the message comes from
+     * @param timing the durations of the message, which are copied
+     */
+    void mergeTiming(String message, String name, TimingHistogram timing)
+    {
+        this.mergeTiming(new SummaryEntry(message, name), timing);
+    }
+
+    /**
+     * Calls the given consumer with each timed message and its durations.
+     * @param consumer the consumer to call
+     */
+    void forEachTiming(TimingConsumer consumer)
+    {
+        this.timingMap.forEach((entry, timing) -> consumer.accept(entry.getMessage(), entry.getName(), timing));
+    }
+
+    /**
+     * Calls the given consumer with each message of the given level and its count.
+     * @param type the level of the messages
+     * @param consumer the consumer to call
+     */
+    void forEachMessageCount(Level type, MessageCountConsumer consumer)
+    {
+        Map<SummaryEntry, Long> map = this.messageCountMap.get(type);
+        if (map != null) {
+            map.forEach((entry, count) -> consumer.accept(entry.getMessage(), entry.getName(), count));
+        }
+    }
+
+    /**
+     * Decides how many messages a Summary keeps after another one is merged into it.
+     */
+    @FunctionalInterface
+    public interface MergePolicy
+    {
+        /** Keeps as many messages as both summaries together, so that merging drops none. The default policy. */
+        MergePolicy SUM = (maxMessagesKept, otherMaxMessagesKept) ->
+            (int) Math.min(Integer.MAX_VALUE, (long) maxMessagesKept + otherMaxMessagesKept);
+
+        /** Keeps as many messages as the Summary merged into did. */
+        MergePolicy KEEP = (maxMessagesKept, otherMaxMessagesKept) -> maxMessagesKept;
+
+        /**
+         * Returns the maxMessagesKept of a Summary after another one is merged into it.
+         * @param maxMessagesKept the maxMessagesKept of the Summary merged into
+         * @param otherMaxMessagesKept the maxMessagesKept of the Summary merged
+         * @return the new maxMessagesKept
+         */
+        int mergeMaxMessagesKept(int maxMessagesKept, int otherMaxMessagesKept);
+
+        /**
+         * Returns a policy which adds up the messages kept by both summaries, up to the given cap. A Summary which
+         * already keeps more messages than the cap keeps as many.
+         * @param cap the maximum number of messages kept after merging
+         * @return a policy
+         */
+        static MergePolicy capped(int cap)
+        {
+            return (maxMessagesKept, otherMaxMessagesKept) -> Math.max(maxMessagesKept,
+                Math.min(cap, SUM.mergeMaxMessagesKept(maxMessagesKept, otherMaxMessagesKept)));
+        }
+    }
+
+    /**
+     * Consumer of messages with their count.
+     */
+    @FunctionalInterface
+    interface MessageCountConsumer
+    {
+        /**
+         * Consumes a message.
+         * @param message the message
+         * @param name the name of the Summary the message was counted by
+         * @param count the count of the message
+         */
+        void accept(String message, String name, long count);
+    }
+
+    /**
+     * Consumer of timed messages with their durations.
+     */
+    @FunctionalInterface
+    interface TimingConsumer
+    {
+        /**
+         * Consumes a timed message.
+         * @param message the message
+         * @param name the name of the Summary the message was timed by
+         * @param timing the durations of the message
+         */
+        void accept(String message, String name, TimingHistogram timing);
+    }
+
+    /**
+     * Times a message from its creation to its closing, see {@link #startTimer(String)}.
+     */
+    public static final class Timer implements AutoCloseable
+    {
+        private final Summary summary;
+        private final String message;
+        private final long start = System.nanoTime();
+
+        private Timer(Summary summary, String message)
+        {
+            this.summary = summary;
+            this.message = message;
+        }
+
+        /**
+         * Records the time elapsed since this Timer was started.
+         */
+        @Override
+        public void close()
+        {
+            this.summary.time(this.message, System.nanoTime() - this.start);
+        }
+    }
+
     @FunctionalInterface
     private interface LoggerMethod
     {
@@ -470,15 +1154,20 @@ int getNameLength()
         }
 
         public String toString(Integer maxNameLength, char padChar)
+        {
+            return this.toString(this.message, maxNameLength, padChar);
+        }
+
+        public String toString(String displayedMessage, Integer maxNameLength, char padChar)
         {
             if (this.name == null) {
-                return this.message;
+                return displayedMessage;
             } else {
                 if (maxNameLength == null) {
-                    return this.name + NAME_MESSAGE_DELIMITER + this.message;
+                    return this.name + NAME_MESSAGE_DELIMITER + displayedMessage;
                 } else {
                     return StringUtils.leftPad(this.name, maxNameLength, padChar)
-                        + NAME_MESSAGE_DELIMITER + this.message;
+                        + NAME_MESSAGE_DELIMITER + displayedMessage;
                 }
             }
         }
@@ -0,0 +1,413 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.event.Level;
+
+/**
+ * Compact binary encoding of Summary objects, so that summaries counted in other processes can be merged together.
+ * Only what merging needs is encoded: the messages with their counts, count errors and samples, the distinct
+ * message counters, the timings, and the settings which drive merging. Logging settings are not.
+ *
+ * Each Summary is encoded as a self contained frame: a version byte, then the settings, then the messages of each
+ * level and the timed messages, with counts as variable length integers, and the name of each message as an index
+ * in a dictionary of the names met so far in the frame. Frames can be written one after the other to the same
+ * stream, and {@link #readAndMerge(InputStream, Summary)} folds them into a single Summary one message at a time, so
+ * that a coordinator never holds more than the result in memory, however many summaries it merges. Frames carry no
+ * length, so every length and count read is checked against a bound before anything is allocated for it, and a
+ * corrupt frame fails with an IOException naming the field rather than with an OutOfMemoryError.
+ *
+ * @version $Id$
+ */
+public final class SummaryCodec
+{
+    /*
+     * Version of the encoding, the first byte of a frame. Older frames are read too: version 1 frames have no
+     * timings, and the samples of version 1 and 2 frames are their arguments already joined into a single string.
+     */
+    public static final int VERSION = 3;
+
+    private static final int TIMINGS_VERSION = 2;
+
+    private static final int SAMPLE_ARGUMENTS_VERSION = 3;
+
+    private static final List<Level> LEVELS = Arrays.asList(Level.INFO, Level.ERROR, Level.WARN);
+
+    private static final int HEAVY_HITTERS_FLAG = 1;
+
+    private static final int SORTED_BY_KEY_FLAG = 1 << 1;
+
+    /* Dictionary index of null names, new names take the next index. */
+    private static final int NULL_NAME = 0;
+
+    private static final int END_OF_ENTRIES = 0;
+
+    /* Bounds of the lengths and counts read, well above what a Summary holds. */
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+
+    private static final int MAX_SAMPLES_KEPT = 1 << 16;
+
+    private static final int MAX_SAMPLE_ARGUMENTS = 1 << 10;
+
+    private SummaryCodec()
+    {
+        // Do nothing.
+    }
+
+    /**
+     * Writes a frame encoding the given Summary.
+     * @param summary the Summary to encode
+     * @param out the stream to write to, which is neither flushed nor closed. It should be buffered
+     * @throws IOException if the stream fails
+     */
+    public static void write(Summary summary, OutputStream out) throws IOException
+    {
+        Map<String, Integer> dictionary = new HashMap<>();
+        out.write(VERSION);
+        out.write((summary.isHeavyHitters() ? HEAVY_HITTERS_FLAG : 0)
+            | (summary.isSortedByKey() ? SORTED_BY_KEY_FLAG : 0));
+        writeVarLong(out, summary.getMaxMessagesKept());
+        writeVarLong(out, summary.getMaxSamplesKept());
+        writeName(out, summary.getName(), dictionary);
+
+        for (Level level : LEVELS) {
+            try {
+                summary.forEachMessageCount(level, (message, name, count) -> {
+                    try {
+                        writeMessage(out, summary, level, message, name, count, dictionary);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writeVarLong(out, END_OF_ENTRIES);
+
+            HyperLogLog distinctMessages = summary.getDistinctMessageCounter(level);
+            if (distinctMessages == null) {
+                out.write(0);
+            } else {
+                out.write(distinctMessages.getPrecision());
+                out.write(distinctMessages.getRegisters());
+            }
+        }
+
+        try {
+            summary.forEachTiming((message, name, timing) -> {
+                try {
+                    writeTiming(out, message, name, timing, dictionary);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writeVarLong(out, END_OF_ENTRIES);
+    }
+
+    /**
+     * Reads a Summary from the next frame of the given stream.
+     * @param in the stream to read from, which is not closed. It should be buffered
+     * @return the decoded Summary, or null if the stream has no frame left
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    public static Summary read(InputStream in) throws IOException
+    {
+        return readFrame(in, null);
+    }
+
+    /**
+     * Merges the Summary encoded in the next frame of the given stream into the given Summary, as
+     * {@link Summary#merge(Mergeable)} would, without decoding it as a whole first. Calling it until it returns
+     * false folds every frame of the stream.
+     * @param in the stream to read from, which is not closed. It should be buffered
+     * @param into the Summary to merge into
+     * @return true if a frame was merged, false if the stream has no frame left
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    public static boolean readAndMerge(InputStream in, Summary into) throws IOException
+    {
+        return readFrame(in, into) != null;
+    }
+
+    /**
+     * Reads the next frame into the given Summary, or into a new one with the encoded settings if it is null.
+     */
+    private static Summary readFrame(InputStream in, Summary into) throws IOException
+    {
+        int version = in.read();
+        if (version < 0) {
+            return null;
+        } else if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported Summary encoding version: " + version);
+        }
+
+        List<String> dictionary = new ArrayList<>();
+        int flags = readByte(in);
+        int maxMessagesKept = readBounded(in, Integer.MAX_VALUE, "maxMessagesKept");
+        int maxSamplesKept = readBounded(in, MAX_SAMPLES_KEPT, "maxSamplesKept");
+        String summaryName = getName(in, readVarLong(in), dictionary);
+
+        Summary summary = into;
+        if (summary == null) {
+            summary = new Summary(summaryName).setMaxMessagesKept(maxMessagesKept).setMaxSamplesKept(maxSamplesKept);
+            if ((flags & SORTED_BY_KEY_FLAG) != 0) {
+                summary.sortedByKey();
+            }
+            if ((flags & HEAVY_HITTERS_FLAG) != 0) {
+                summary.heavyHitters();
+            }
+        } else {
+            summary.mergeMaxMessagesKept(maxMessagesKept);
+        }
+
+        for (Level level : LEVELS) {
+            for (long entryTag = readVarLong(in); entryTag != END_OF_ENTRIES; entryTag = readVarLong(in)) {
+                String name = getName(in, entryTag - 1, dictionary);
+                String message = readString(in, "message");
+                long count = decodeZigZag(readVarLong(in));
+                long error = readVarLong(in);
+                int sampleCount = readBounded(in, maxSamplesKept, "sample count");
+                List<String[]> samples = sampleCount == 0 ? null : new ArrayList<>(sampleCount);
+                for (int i = 0; i < sampleCount; i++) {
+                    samples.add(readSample(in, version));
+                }
+                summary.mergeMessage(level, message, name, count, error, samples);
+            }
+
+            int precision = readByte(in);
+            if (precision != 0) {
+                HyperLogLog distinctMessages;
+                try {
+                    distinctMessages = new HyperLogLog(precision);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                readFully(in, distinctMessages.getRegisters());
+                summary.mergeDistinctMessages(level, distinctMessages);
+            }
+        }
+
+        if (version >= TIMINGS_VERSION) {
+            for (long entryTag = readVarLong(in); entryTag != END_OF_ENTRIES; entryTag = readVarLong(in)) {
+                String name = getName(in, entryTag - 1, dictionary);
+                String message = readString(in, "timed message");
+                summary.mergeTiming(message, name, readTiming(in));
+            }
+        }
+        return summary;
+    }
+
+    private static void writeMessage(OutputStream out, Summary summary, Level level, String message, String name,
+        long count, Map<String, Integer> dictionary) throws IOException
+    {
+        // The name index doubles as the start of an entry, hence the offset from the end of level marker
+        writeName(out, name, dictionary, 1);
+        writeString(out, message);
+        writeVarLong(out, encodeZigZag(count));
+        Long error = summary.getMessageCountError(level, message);
+        writeVarLong(out, error == null ? 0 : error);
+        List<String[]> samples = summary.getMessageSampleArguments(level, message);
+        writeVarLong(out, samples.size());
+        for (String[] sample : samples) {
+            writeVarLong(out, sample.length);
+            for (String argument : sample) {
+                writeString(out, argument);
+            }
+        }
+    }
+
+    private static String[] readSample(InputStream in, int version) throws IOException
+    {
+        if (version < SAMPLE_ARGUMENTS_VERSION) {
+            return new String[] { readString(in, "sample") };
+        }
+        String[] sample = new String[readBounded(in, MAX_SAMPLE_ARGUMENTS, "sample argument count")];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = readString(in, "sample argument");
+        }
+        return sample;
+    }
+
+    /**
+     * Writes the non empty buckets of the timing as index and count pairs, then its statistics.
+     */
+    private static void writeTiming(OutputStream out, String message, String name, TimingHistogram timing,
+        Map<String, Integer> dictionary) throws IOException
+    {
+        writeName(out, name, dictionary, 1);
+        writeString(out, message);
+        timing.forEachBucket((bucket, bucketCount) -> {
+            try {
+                writeVarLong(out, bucket + 1);
+                writeVarLong(out, bucketCount);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writeVarLong(out, END_OF_ENTRIES);
+        writeVarLong(out, timing.getSum());
+        writeVarLong(out, timing.getMin());
+        writeVarLong(out, timing.getMax());
+    }
+
+    private static TimingHistogram readTiming(InputStream in) throws IOException
+    {
+        TimingHistogram timing = new TimingHistogram();
+        try {
+            for (long bucketTag = readVarLong(in); bucketTag != END_OF_ENTRIES; bucketTag = readVarLong(in)) {
+                timing.addBucket((int) Math.min(bucketTag - 1, Integer.MAX_VALUE), readVarLong(in));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        timing.addStatistics(readVarLong(in), readVarLong(in), readVarLong(in));
+        return timing;
+    }
+
+    private static void writeName(OutputStream out, String name, Map<String, Integer> dictionary) throws IOException
+    {
+        writeName(out, name, dictionary, 0);
+    }
+
+    /**
+     * Writes the dictionary index of the name, followed by the name itself the first time it is met.
+     */
+    private static void writeName(OutputStream out, String name, Map<String, Integer> dictionary, int offset)
+        throws IOException
+    {
+        if (name == null) {
+            writeVarLong(out, NULL_NAME + offset);
+            return;
+        }
+        Integer index = dictionary.get(name);
+        if (index == null) {
+            index = dictionary.size() + 1;
+            dictionary.put(name, index);
+            writeVarLong(out, index + offset);
+            writeString(out, name);
+        } else {
+            writeVarLong(out, index + offset);
+        }
+    }
+
+    /**
+     * Returns the name at the given dictionary index, reading it first if it is the next new one.
+     */
+    private static String getName(InputStream in, long index, List<String> dictionary) throws IOException
+    {
+        if (index == NULL_NAME) {
+            return null;
+        } else if (index == dictionary.size() + 1) {
+            dictionary.add(readString(in, "name"));
+        } else if (index < 0 || index > dictionary.size()) {
+            throw new IOException("Invalid name index: " + index);
+        }
+        return dictionary.get((int) index - 1);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in, String field) throws IOException
+    {
+        byte[] bytes = new byte[readBounded(in, MAX_STRING_LENGTH, field + " length")];
+        readFully(in, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a length or a count, which must not be above the given maximum.
+     */
+    private static int readBounded(InputStream in, int max, String field) throws IOException
+    {
+        long value = readVarLong(in);
+        if (value < 0 || value > max) {
+            throw new IOException("Invalid " + field + ": " + value + ", at most " + max + " expected");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte, least significant group first.
+     */
+    private static void writeVarLong(OutputStream out, long value) throws IOException
+    {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) (remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small negative values stay short.
+     */
+    private static long encodeZigZag(long value)
+    {
+        return (value << 1) ^ (value >> (Long.SIZE - 1));
+    }
+
+    private static long decodeZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readByte(InputStream in) throws IOException
+    {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Truncated Summary frame");
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException
+    {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated Summary frame");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.slf4j.event.Level;
+
+import com.gene42.commons.utils.json.JsonApiBuilder;
+import com.gene42.commons.utils.json.JsonApiResourceBuilder;
+import com.gene42.commons.utils.json.JsonStreamWriter;
+
+/**
+ * Writes Summary objects in machine readable formats, for monitoring to collect rather than parse logs: a JSON:API
+ * document, or the Prometheus text exposition format. Entries are written to the Writer one at a time, as they are
+ * read from the Summary, so that large summaries are never held in memory as a whole a second time.
+ *
+ * @version $Id$
+ */
+public final class SummaryExporter
+{
+    /** JSON:API type of the resources written for each message. */
+    public static final String MESSAGE_TYPE = "summary-message";
+
+    /** Attribute/label holding the level of a message. */
+    public static final String LEVEL_FIELD = "level";
+
+    /** Attribute/label holding the name of the Summary a message was counted by. */
+    public static final String NAME_FIELD = "name";
+
+    /** Attribute/label holding a message. */
+    public static final String MESSAGE_FIELD = "message";
+
+    /** Attribute holding the count of a message. */
+    public static final String COUNT_FIELD = "count";
+
+    /** Attribute holding the count error of a message, see {@link Summary#getMessageCountError(Level, String)}. */
+    public static final String ERROR_FIELD = "error";
+
+    /** Attribute holding the samples of a message template, see {@link Summary#getMessageSamples(Level, String)}. */
+    public static final String SAMPLES_FIELD = "samples";
+
+    /** Meta field holding the number of distinct messages per level. */
+    public static final String DISTINCT_FIELD = "distinct";
+
+    /** Meta field holding the number of messages left out per level. */
+    public static final String MISSING_FIELD = "missing";
+
+    /** Default prefix of the Prometheus metric names. */
+    public static final String DEFAULT_METRIC_PREFIX = "summary";
+
+    private static final List<Level> LEVELS = Arrays.asList(Level.ERROR, Level.WARN, Level.INFO);
+
+    private static final Pattern METRIC_NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+    private SummaryExporter()
+    {
+        // Do nothing.
+    }
+
+    /**
+     * Writes the given Summary as a JSON:API document. Each message is a resource of type {@value #MESSAGE_TYPE}
+     * in the data array, and the meta object holds the number of distinct and missing messages per level.
+     * @param summary the Summary to write
+     * @param writer the Writer to write to, which is neither flushed nor closed
+     * @throws IOException if the Writer fails
+     */
+    public static void writeJsonApi(Summary summary, Writer writer) throws IOException
+    {
+        JsonStreamWriter jsonWriter = new JsonStreamWriter(writer);
+        jsonWriter.beginObject().name(JsonApiBuilder.DATA_FIELD).beginArray();
+
+        long[] index = { 0 };
+        forEachMessage(summary, (level, message, name, count) -> {
+            JsonApiResourceBuilder resource = new JsonApiResourceBuilder(String.valueOf(index[0]++), MESSAGE_TYPE)
+                .putAttribute(LEVEL_FIELD, getLevelName(level))
+                .putAttribute(NAME_FIELD, name)
+                .putAttribute(MESSAGE_FIELD, message)
+                .putAttribute(COUNT_FIELD, count);
+            Long error = summary.getMessageCountError(level, message);
+            if (error != null && error > 0) {
+                resource.putAttribute(ERROR_FIELD, error);
+            }
+            List<String> samples = summary.getMessageSamples(level, message);
+            if (!samples.isEmpty()) {
+                resource.putAttribute(SAMPLES_FIELD, samples);
+            }
+            jsonWriter.value(resource.build());
+        });
+        jsonWriter.endArray();
+
+        jsonWriter.name(JsonApiBuilder.META_FIELD).beginObject().name(DISTINCT_FIELD).beginObject();
+        for (Level level : LEVELS) {
+            jsonWriter.name(getLevelName(level)).value(summary.getDistinctMessageCount(level));
+        }
+        jsonWriter.endObject().name(MISSING_FIELD).beginObject();
+        for (Level level : LEVELS) {
+            jsonWriter.name(getLevelName(level)).value(summary.getMissingMessageCount(level));
+        }
+        jsonWriter.endObject().endObject().endObject();
+    }
+
+    /**
+     * Writes the given Summary in the Prometheus text exposition format, with metrics prefixed by
+     * {@value #DEFAULT_METRIC_PREFIX}. See {@link #writePrometheus(Summary, String, Writer)}.
+     * @param summary the Summary to write
+     * @param writer the Writer to write to, which is neither flushed nor closed
+     * @throws IOException if the Writer fails
+     */
+    public static void writePrometheus(Summary summary, Writer writer) throws IOException
+    {
+        writePrometheus(summary, DEFAULT_METRIC_PREFIX, writer);
+    }
+
+    /**
+     * Writes the given Summary in the Prometheus text exposition format. The count of each message is a sample of
+     * the {@code <prefix>_messages_total} counter, labelled by level, name and message, and the number of distinct
+     * and missing messages per level are samples of the {@code <prefix>_distinct_messages} and
+     * {@code <prefix>_missing_messages} gauges.
+     * @param summary the Summary to write
+     * @param metricPrefix the prefix of the metric names, which must be a valid metric name
+     * @param writer the Writer to write to, which is neither flushed nor closed
+     * @throws IOException if the Writer fails
+     */
+    public static void writePrometheus(Summary summary, String metricPrefix, Writer writer) throws IOException
+    {
+        if (metricPrefix == null || !METRIC_NAME.matcher(metricPrefix).matches()) {
+            throw new IllegalArgumentException("Invalid metric name prefix: " + metricPrefix);
+        }
+
+        String messagesMetric = metricPrefix + "_messages_total";
+        writeMetricHeader(writer, messagesMetric, "counter", "Number of times each message was encountered.");
+        forEachMessage(summary, (level, message, name, count) -> {
+            writer.write(messagesMetric);
+            writer.write('{');
+            writeLabel(writer, LEVEL_FIELD, getLevelName(level));
+            if (name != null) {
+                writer.write(',');
+                writeLabel(writer, NAME_FIELD, name);
+            }
+            writer.write(',');
+            writeLabel(writer, MESSAGE_FIELD, message);
+            writer.write("} ");
+            writer.write(Long.toString(count));
+            writer.write('\n');
+        });
+
+        String distinctMetric = metricPrefix + "_distinct_messages";
+        writeMetricHeader(writer, distinctMetric, "gauge",
+            "Number of distinct messages, estimated past the kept ones.");
+        for (Level level : LEVELS) {
+            writeLevelSample(writer, distinctMetric, level, summary.getDistinctMessageCount(level));
+        }
+
+        String missingMetric = metricPrefix + "_missing_messages";
+        writeMetricHeader(writer, missingMetric, "gauge", "Number of distinct messages left out.");
+        for (Level level : LEVELS) {
+            writeLevelSample(writer, missingMetric, level, summary.getMissingMessageCount(level));
+        }
+    }
+
+    private static void forEachMessage(Summary summary, MessageWriter messageWriter) throws IOException
+    {
+        try {
+            for (Level level : LEVELS) {
+                summary.forEachMessageCount(level, (message, name, count) -> {
+                    try {
+                        messageWriter.write(level, message, name, count);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeMetricHeader(Writer writer, String metric, String type, String help) throws IOException
+    {
+        writer.write("# HELP ");
+        writer.write(metric);
+        writer.write(' ');
+        writer.write(help);
+        writer.write("\n# TYPE ");
+        writer.write(metric);
+        writer.write(' ');
+        writer.write(type);
+        writer.write('\n');
+    }
+
+    private static void writeLevelSample(Writer writer, String metric, Level level, long value) throws IOException
+    {
+        writer.write(metric);
+        writer.write('{');
+        writeLabel(writer, LEVEL_FIELD, getLevelName(level));
+        writer.write("} ");
+        writer.write(Long.toString(value));
+        writer.write('\n');
+    }
+
+    /**
+     * Writes a label, escaping backslashes, double quotes and line feeds in its value as the format requires.
+     */
+    private static void writeLabel(Writer writer, String label, String value) throws IOException
+    {
+        writer.write(label);
+        writer.write("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c == '\n') {
+                writer.write("\\n");
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    private static String getLevelName(Level level)
+    {
+        return level.name().toLowerCase(Locale.ROOT);
+    }
+
+    @FunctionalInterface
+    private interface MessageWriter
+    {
+        void write(Level level, String message, String name, long count) throws IOException;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+/**
+ * Histogram of non negative values (typically durations in nanoseconds) in fixed memory, over log-linear buckets:
+ * each power of two range is split in {@value #SUB_BUCKETS} equal buckets, so that percentiles are accurate to
+ * {@code 1 / }{@value #SUB_BUCKETS} of their value, whatever their magnitude. The count, sum, minimum and maximum
+ * are exact. Recording a value never allocates. This class is not thread safe.
+ *
+ * @version $Id$
+ */
+public class TimingHistogram implements Mergeable<TimingHistogram>
+{
+    /* Number of buckets per power of two. */
+    public static final int SUB_BUCKETS = 16;
+
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /* Values below SUB_BUCKETS have a bucket each, then each power of two up to 2^62 has SUB_BUCKETS. */
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * @param value the value to record
+     * @return this object
+     */
+    public TimingHistogram record(long value)
+    {
+        long recorded = Math.max(value, 0L);
+        this.counts[bucketOf(recorded)]++;
+        this.count++;
+        this.sum += recorded;
+        this.min = Math.min(this.min, recorded);
+        this.max = Math.max(this.max, recorded);
+        return this;
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * @return the number of values
+     */
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * Returns the sum of the values recorded.
+     * @return the sum
+     */
+    public long getSum()
+    {
+        return this.sum;
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     * @return the mean, or zero if nothing was recorded
+     */
+    public double getMean()
+    {
+        return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * Returns the smallest value recorded.
+     * @return the minimum, or zero if nothing was recorded
+     */
+    public long getMin()
+    {
+        return this.count == 0 ? 0 : this.min;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     * @return the maximum, or zero if nothing was recorded
+     */
+    public long getMax()
+    {
+        return this.max;
+    }
+
+    /**
+     * Returns the given percentile of the values recorded, as the largest value of the bucket holding it (capped by
+     * the maximum), which overestimates it by less than {@code 1 / }{@value #SUB_BUCKETS}.
+     * @param percentile the percentile, between 0 and 100
+     * @return the percentile, or zero if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        if (this.count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(this.count * Math.min(Math.max(percentile, 0), 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    @Override
+    public Mergeable<TimingHistogram> merge(Mergeable<TimingHistogram> toMergeWith)
+    {
+        if (toMergeWith == null) {
+            return this;
+        }
+
+        TimingHistogram other = toMergeWith.get();
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+        return this;
+    }
+
+    @Override
+    public TimingHistogram get()
+    {
+        return this;
+    }
+
+    /**
+     * Calls the given consumer with the index and count of each non empty bucket, for serialization.
+     * @param consumer the consumer to call
+     */
+    void forEachBucket(BucketConsumer consumer)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (this.counts[i] != 0) {
+                consumer.accept(i, this.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds to the count of a bucket, for deserialization. The statistics must be added separately.
+     * @param bucket the index of the bucket, as given by {@link #forEachBucket(BucketConsumer)}
+     * @param bucketCount the count to add
+     */
+    void addBucket(int bucket, long bucketCount)
+    {
+        if (bucket < 0 || bucket >= BUCKETS) {
+            throw new IllegalArgumentException("Invalid bucket: " + bucket);
+        }
+        this.counts[bucket] += bucketCount;
+        this.count += bucketCount;
+    }
+
+    /**
+     * Adds the statistics of values counted by {@link #addBucket(int, long)}, for deserialization.
+     * @param valuesSum the sum of the values
+     * @param valuesMin the smallest value
+     * @param valuesMax the largest value
+     */
+    void addStatistics(long valuesSum, long valuesMin, long valuesMax)
+    {
+        this.sum += valuesSum;
+        this.min = Math.min(this.min, valuesMin);
+        this.max = Math.max(this.max, valuesMax);
+    }
+
+    /**
+     * Values below SUB_BUCKETS are their own index. Above, the magnitude of the value picks its power of two range,
+     * and the bits following the leading one pick the bucket in the range.
+     */
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Consumer of buckets with their count.
+     */
+    @FunctionalInterface
+    interface BucketConsumer
+    {
+        /**
+         * Consumes a bucket.
+         * @param bucket the index of the bucket
+         * @param bucketCount the count of the bucket
+         */
+        void accept(int bucket, long bucketCount);
+    }
+}
@@ -1,7 +1,8 @@
 package com.gene42.commons.utils.concurrent;
 
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Simple synchronization object between threads. Thread A can wait on this barrier while Thread B determines when
@@ -11,10 +12,32 @@
  * You should not have more than one thread call wait, you should not have more than one thread call continue and
  * you should not call wait or continue twice or more in a row.
  *
+ * How the waiting thread waits is set by a {@link WaitStrategy}. The default one parks it right away; spinning ones
+ * cut the hand-off latency when the two threads run on different cores. For more than two threads, see
+ * {@link PhasedBarrier}.
+ *
  * @version $Id$
  */
 public class ContinueBarrier {
-    private final Semaphore barrier = new Semaphore(0);
+    private final AtomicBoolean canContinue = new AtomicBoolean();
+    private final WaitStrategy waitStrategy;
+    private volatile Thread parkedThread;
+
+    /**
+     * Constructor, with the {@link WaitStrategy#BLOCKING} wait strategy.
+     */
+    public ContinueBarrier() {
+        this(WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param waitStrategy how the waiting thread waits for the order to continue
+     */
+    public ContinueBarrier(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
 
     /**
      * Block until a continue order is given.
@@ -22,7 +45,7 @@ public class ContinueBarrier {
      * @throws InterruptedException if the thread is interrupted
      */
     public void waitToContinue() throws InterruptedException {
-        this.barrier.acquire();
+        this.await(-1);
     }
 
     /**
@@ -35,15 +58,53 @@ public void waitToContinue() throws InterruptedException {
      * @throws InterruptedException if the thread is interrupted
      */
     public boolean waitToContinue(long timeout, TimeUnit timeUnit) throws InterruptedException {
-        return this.barrier.tryAcquire(timeout, timeUnit);
+        return this.await(Math.max(timeUnit.toNanos(timeout), 0));
     }
 
     /**
      * Issue an order to continue to the waiting thread. Will only work if a wait was issue before.
      */
     public void canContinue() {
-        if (this.barrier.availablePermits() == 0) {
-            this.barrier.release();
+        if (this.canContinue.compareAndSet(false, true)) {
+            Thread waiter = this.parkedThread;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Returns the wait strategy of this barrier.
+     * @return the wait strategy
+     */
+    public WaitStrategy getWaitStrategy() {
+        return this.waitStrategy;
+    }
+
+    private boolean await(long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        for (int round = 0;; round++) {
+            if (this.canContinue.compareAndSet(true, false)) {
+                return true;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remainingNanos = timeoutNanos < 0 ? -1 : deadline - System.nanoTime();
+            if (timeoutNanos >= 0 && remainingNanos <= 0) {
+                return false;
+            }
+
+            if (!this.waitStrategy.shouldPark(round)) {
+                this.waitStrategy.idle(round);
+                continue;
+            }
+            // Publish ourselves before checking again, so that a continue order given in between unparks us
+            this.parkedThread = Thread.currentThread();
+            if (!this.canContinue.get()) {
+                WaitStrategy.park(this, remainingNanos);
+            }
+            this.parkedThread = null;
         }
     }
 }
@@ -0,0 +1,429 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+/**
+ * <p>
+ *     Id lock shared by all the processes of a host, for instance several worker JVMs touching the same records.
+ *     The processes coordinate through a lock file, which must be the same for all of them. Ids are hashed onto a
+ *     fixed number of slots (so, like with {@link StripedIdLock}, distinct ids can exclude each other across
+ *     processes), and each slot holds a lease: the owning process, and the time at which the lease expires. Leases
+ *     are read and written through a memory mapping of the file, under a {@link FileChannel} lock of the slot's
+ *     byte range, which is only held for the duration of the read and write. That range lock is only ever tried: a
+ *     thread finding it busy backs off like it does for a lease held by another process, instead of blocking while
+ *     other local threads queue behind it.
+ * </p>
+ * <p>
+ *     A process holds the lease of a slot as long as one of its threads holds an id of the slot. Within the process,
+ *     ids are locked by an {@link IdLock}, so only the first local holder of a slot touches the file: other threads of
+ *     the same process locking ids of an already leased slot do not. A process waiting for a slot leased by another
+ *     one polls it, with a small back off. When the last local holder unlocks, the lease is kept for another
+ *     {@value #LEASE_LINGER_MILLIS} milliseconds before being released in the background, so that a thread locking
+ *     and unlocking ids of the same slot in a loop only touches the file once in a while, at the cost of other
+ *     processes waiting that much longer for the slot. If the process dies or hangs instead, the lease expires after
+ *     the auto release timeout and other processes can take it over.
+ *     Holders needing more time can {@link Instance#renew()} the lease. Local holders expire after the same timeout,
+ *     so that an id held by a thread which died is released within the process when the lease is released in the
+ *     file, and a process whose lease expired checks the file again before handing out ids of the slot.
+ * </p>
+ * <p>
+ *     Use a single instance per lock file in each process, and do not interrupt threads waiting for a lock: an
+ *     interrupt during a file operation closes the underlying channel (see
+ *     {@link java.nio.channels.InterruptibleChannel}), after which this lock can not be used anymore.
+ * </p>
+ * @version $Id$
+ */
+public class FileIdLock implements IdLockProvider, Closeable {
+
+    /* Default number of slots. */
+    public static final int DEFAULT_SLOTS = 4096;
+
+    private static final String LOCK_ERROR_MESSAGE = "Could not establish lock for [%s]. Please try again.";
+
+    private static final int MAGIC = 0x49644c6b;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int OWNER_OFFSET = 0;
+    private static final int EXPIRY_OFFSET = 8;
+
+    private static final long MAX_BACK_OFF_MILLIS = 50;
+    private static final long LEASE_LINGER_MILLIS = 10;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer leases;
+    private final Slot[] slots;
+
+    private final long owner;
+    private final IdLock localLock;
+
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+    private final long autoReleaseTimeoutInMillis;
+
+    /**
+     * Constructor, with {@value #DEFAULT_SLOTS} slots and the default {@link IdLock} timeouts.
+     *
+     * @param file the lock file, created if it does not exist
+     * @throws IOException if the file can not be opened or mapped
+     */
+    public FileIdLock(@NotNull Path file) throws IOException {
+        this(file, DEFAULT_SLOTS, IdLock.DEFAULT_TIMEOUT, IdLock.DEFAULT_TIMEOUT_UNIT,
+            IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT, IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file the lock file, created if it does not exist
+     * @param slots the number of slots, which must be the same for all the processes sharing the file
+     * @param timeout timeout value to use for all {@link FileIdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link FileIdLock.Instance#lock()} calls
+     * @param autoReleaseTimeout time after which the lease of a process can be taken over by another one
+     * @param autoReleaseTimeoutUnit the unit of the auto release timeout
+     * @throws IOException if the file can not be opened or mapped, or was created with another number of slots
+     */
+    public FileIdLock(@NotNull Path file, int slots, long timeout, @NotNull TimeUnit timeoutUnit,
+        long autoReleaseTimeout, @NotNull TimeUnit autoReleaseTimeoutUnit) throws IOException {
+        if (slots < 1) {
+            throw new IllegalArgumentException("The number of slots must be positive");
+        }
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+        this.autoReleaseTimeoutInMillis = autoReleaseTimeoutUnit.toMillis(autoReleaseTimeout);
+        // Leases are local to a process, holders within the process are tracked by the slots, and expire with them
+        this.localLock = new IdLock(timeout, timeoutUnit, autoReleaseTimeout, autoReleaseTimeoutUnit);
+
+        long randomOwner;
+        do {
+            randomOwner = ThreadLocalRandom.current().nextLong();
+        } while (randomOwner == 0);
+        this.owner = randomOwner;
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            this.leases = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            this.checkHeader(slots);
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+
+        this.slots = new Slot[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new Slot(HEADER_SIZE + i * SLOT_SIZE);
+        }
+    }
+
+    private void checkHeader(int slotCount) throws IOException {
+        try (FileLock ignored = this.channel.lock(0, HEADER_SIZE, false)) {
+            if (this.leases.getInt(0) == 0) {
+                this.leases.putInt(4, slotCount);
+                this.leases.putInt(0, MAGIC);
+            } else if (this.leases.getInt(0) != MAGIC || this.leases.getInt(4) != slotCount) {
+                throw new IOException(String.format("Lock file was created with [%d] slots, not [%d]",
+                    this.leases.getInt(4), slotCount));
+            }
+        }
+    }
+
+    @Override
+    public Instance getLock(@NotNull String id) {
+        return new Instance(id);
+    }
+
+    /**
+     * Returns the number of slots ids are hashed onto.
+     * @return number of slots
+     */
+    public int getNumberOfSlots() {
+        return this.slots.length;
+    }
+
+    /**
+     * Releases the lock file. Leases kept after their last local holder unlocked are released, leases still held are
+     * left to expire.
+     * @throws IOException if the file can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Slot slot : this.slots) {
+                slot.releaseIdle(true);
+            }
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Returns the index of the slot the given id falls on. Ids with the same slot exclude each other across
+     * processes, but not within a process.
+     * @param id an id
+     * @return the slot index, between zero and the number of slots (excluded)
+     */
+    public int getSlot(@NotNull String id) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % this.slots.length;
+    }
+
+    /**
+     * State of a slot within this process: the local holders of ids of the slot, each with the time at which it
+     * expires, and the time at which the lease of this process expires. Its monitor also serializes the file locks
+     * of the slot within this process, since a JVM can not hold overlapping file locks.
+     */
+    private final class Slot {
+        private final int position;
+        private final Map<Instance, Long> holders = new IdentityHashMap<>();
+        private long leaseExpiry;
+        private boolean releaseScheduled;
+
+        Slot(int position) {
+            this.position = position;
+        }
+
+        synchronized boolean tryAcquire(Instance holder) throws IOException {
+            long now = System.currentTimeMillis();
+            // Holders which outlived the auto release timeout lost their local lock, and do not keep the lease
+            for (Iterator<Long> expiries = this.holders.values().iterator(); expiries.hasNext();) {
+                if (expiries.next() < now) {
+                    expiries.remove();
+                }
+            }
+            // Fast path: this process already has a lease which has not expired, so nobody else can have taken it. A
+            // lease kept after its last holder left is only reused while far from expiry, otherwise it is extended
+            long minExpiry = this.holders.isEmpty() ? now + FileIdLock.this.autoReleaseTimeoutInMillis / 2 : now;
+            if (minExpiry >= this.leaseExpiry) {
+                if (!this.updateLease(true, false)) {
+                    return false;
+                }
+            }
+            this.holders.put(holder, now + FileIdLock.this.autoReleaseTimeoutInMillis);
+            return true;
+        }
+
+        synchronized boolean release(Instance holder) throws IOException {
+            if (this.holders.remove(holder) == null) {
+                // Expired, the id may have been taken over
+                return false;
+            }
+            if (System.currentTimeMillis() < this.leaseExpiry) {
+                if (this.holders.isEmpty() && !this.releaseScheduled) {
+                    // Kept for a while, in case the slot is needed again soon
+                    this.scheduleRelease();
+                }
+                return true;
+            }
+            return this.updateLease(!this.holders.isEmpty(), true);
+        }
+
+        synchronized boolean renew(Instance holder) throws IOException {
+            if (!this.holders.containsKey(holder) || !this.updateLease(true, true)) {
+                return false;
+            }
+            this.holders.put(holder, this.leaseExpiry);
+            return true;
+        }
+
+        /**
+         * Releases the lease of this process if no local holder is left, run once the lease lingered long enough.
+         * @param wait whether to wait for the file lock of the slot, or to try again later if it is busy
+         */
+        synchronized void releaseIdle(boolean wait) {
+            this.releaseScheduled = false;
+            if (!this.holders.isEmpty() || this.leaseExpiry == 0) {
+                return;
+            }
+            try {
+                if (!this.updateLease(false, wait) && this.leaseExpiry != 0) {
+                    // The file lock of the slot was busy, try again later
+                    this.scheduleRelease();
+                }
+            } catch (IOException e) {
+                // Closed, the lease is left to expire
+                this.leaseExpiry = 0;
+            }
+        }
+
+        private void scheduleRelease() {
+            this.releaseScheduled = true;
+            IdLockScheduler.schedule(() -> this.releaseIdle(false), LEASE_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Takes or extends (or releases) the lease of this process, if it is free, expired or already ours.
+         * @param wait whether to wait for the file lock of the slot if it is busy, or to give up
+         * @return true if the lease was updated, false if it belongs to another process (or expired and got taken),
+         *         or if the file lock of the slot was busy and {@code wait} is false, in which case the state of the
+         *         lease is left unchanged
+         */
+        private boolean updateLease(boolean take, boolean wait) throws IOException {
+            FileLock fileLock = this.tryLockRange();
+            for (long backOff = 1; fileLock == null && wait; backOff = Math.min(backOff * 2, MAX_BACK_OFF_MILLIS)) {
+                try {
+                    Thread.sleep(backOff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                fileLock = this.tryLockRange();
+            }
+            if (fileLock == null) {
+                return false;
+            }
+            try {
+                MappedByteBuffer buffer = FileIdLock.this.leases;
+                long leaseOwner = buffer.getLong(this.position + OWNER_OFFSET);
+                long now = System.currentTimeMillis();
+                boolean ours = leaseOwner == FileIdLock.this.owner;
+
+                if (!take) {
+                    if (ours) {
+                        buffer.putLong(this.position + EXPIRY_OFFSET, 0L);
+                        buffer.putLong(this.position + OWNER_OFFSET, 0L);
+                    }
+                    this.leaseExpiry = 0;
+                    return ours;
+                }
+                if (ours || leaseOwner == 0 || buffer.getLong(this.position + EXPIRY_OFFSET) < now) {
+                    this.leaseExpiry = now + FileIdLock.this.autoReleaseTimeoutInMillis;
+                    buffer.putLong(this.position + OWNER_OFFSET, FileIdLock.this.owner);
+                    buffer.putLong(this.position + EXPIRY_OFFSET, this.leaseExpiry);
+                    return true;
+                }
+                this.leaseExpiry = 0;
+                return false;
+            } finally {
+                fileLock.release();
+            }
+        }
+
+        /**
+         * Tries to lock the byte range of this slot in the file, held by other processes only for their reads and
+         * writes of the lease.
+         * @return the file lock, or null if the range is busy
+         */
+        private FileLock tryLockRange() throws IOException {
+            try {
+                return FileIdLock.this.channel.tryLock(this.position, SLOT_SIZE, false);
+            } catch (OverlappingFileLockException e) {
+                // Another instance over the same file in this process, just as busy as another process
+                return null;
+            }
+        }
+    }
+
+    /**
+     * {@link Closeable} instance of a {@link FileIdLock}.
+     */
+    public final class Instance implements IdLockHandle {
+
+        private final String id;
+        private final Slot slot;
+        private IdLock.Instance localInstance;
+        private boolean released;
+
+        private Instance(String id) {
+            this.id = id;
+            this.slot = FileIdLock.this.slots[FileIdLock.this.getSlot(id)];
+        }
+
+        @Override
+        public Instance lock() throws LockException {
+            return this.lock(FileIdLock.this.timeout, FileIdLock.this.timeoutUnit);
+        }
+
+        @Override
+        public Instance lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException {
+            if (this.localInstance != null) {
+                throw new LockException("You cannot reuse a lock Instance");
+            }
+
+            final long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+            IdLock.Instance local = FileIdLock.this.localLock.getLock(this.id).lock(timeout, timeoutUnit);
+
+            try {
+                long backOff = 1;
+                while (!this.slot.tryAcquire(this)) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
+                    }
+                    Thread.sleep(Math.min(backOff, remainingMillis));
+                    backOff = Math.min(backOff * 2, MAX_BACK_OFF_MILLIS);
+                }
+            } catch (IOException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                local.unlock();
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id), e);
+            } catch (LockException e) {
+                local.unlock();
+                throw e;
+            }
+
+            this.localInstance = local;
+            return this;
+        }
+
+        /**
+         * Extends the lease of this holder, and the lease of this process over the slot of the id, which is shared
+         * by all the local holders of ids of the slot.
+         *
+         * @return true if the lease was extended, false if the lock is not held (anymore)
+         */
+        public boolean renew() {
+            if (this.localInstance == null || this.released || !this.localInstance.renew()) {
+                return false;
+            }
+            try {
+                return this.slot.renew(this);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Release the lock for the id.
+         * @return true only if the lock was held by the current thread, and the lease of the process had not expired
+         *         and been taken over by another process
+         */
+        @Override
+        public boolean unlock() {
+            // The local lock checks that the current thread is the holder
+            if (this.localInstance == null || this.released || !this.localInstance.unlock()) {
+                return false;
+            }
+            this.released = true;
+
+            try {
+                return this.slot.release(this);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
+        }
+    }
+}
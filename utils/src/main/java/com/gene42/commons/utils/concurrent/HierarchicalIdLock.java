@@ -0,0 +1,296 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedLongSynchronizer;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+/**
+ * <p>
+ *     Hierarchical mode of {@link IdLock}, for ids which are paths such as {@code family/42/patient/7}. Locking a path
+ *     also covers everything under it: an exclusive lock on {@code family/42} excludes any lock on
+ *     {@code family/42/patient/7}, without enumerating nor touching the children. Siblings such as
+ *     {@code family/42/patient/7} and {@code family/42/patient/8} are still locked independently.
+ * </p>
+ * <p>
+ *     This uses the classic intention locks: before locking a path in shared (S) or exclusive (X) mode, each of its
+ *     ancestors is locked, from the root down, in intention shared (IS) or intention exclusive (IX) mode. The modes
+ *     are compatible as follows: IS with IS, IX and S; IX with IS and IX; S with IS and S; X with nothing. Since every
+ *     lock goes down the tree in the same order, locks on different paths can not deadlock each other.
+ * </p>
+ * <p>
+ *     Unlike {@link IdLock}, locks are neither reentrant nor tied to a thread, and there is no auto release. Shared
+ *     and exclusive requests queue in arrival order, while intention requests go ahead as soon as they are
+ *     compatible (so that a thread going down the tree never waits behind a request which waits for that thread).
+ *     Nodes are created on demand and removed as soon as nobody uses them anymore.
+ * </p>
+ * @version $Id$
+ */
+public class HierarchicalIdLock implements IdLockProvider {
+
+    /* Default separator between the levels of a path. */
+    public static final String DEFAULT_SEPARATOR = "/";
+
+    private static final String LOCK_ERROR_MESSAGE = "Could not establish lock for [%s]. Please try again.";
+
+    /* Holder counts per mode, packed in the state of a node: 20 bits for IS, IX and S each, then the X bit. */
+    private static final long IX_MASK = 0xFFFFFL << 20;
+    private static final long S_MASK = 0xFFFFFL << 40;
+    private static final long X_MASK = 1L << 60;
+
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();
+
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+    private final String separator;
+
+    /**
+     * Constructor, with the default {@link IdLock} timeout and separator.
+     */
+    public HierarchicalIdLock() {
+        this(IdLock.DEFAULT_TIMEOUT, IdLock.DEFAULT_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor, with the default separator.
+     *
+     * @param timeout timeout value to use for all {@link HierarchicalIdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link HierarchicalIdLock.Instance#lock()} calls
+     */
+    public HierarchicalIdLock(long timeout, @NotNull TimeUnit timeoutUnit) {
+        this(timeout, timeoutUnit, DEFAULT_SEPARATOR);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeout timeout value to use for all {@link HierarchicalIdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link HierarchicalIdLock.Instance#lock()} calls
+     * @param separator the separator between the levels of a path
+     */
+    public HierarchicalIdLock(long timeout, @NotNull TimeUnit timeoutUnit, @NotNull String separator) {
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+        this.separator = separator;
+    }
+
+    /**
+     * Get a new instance locking the given path, and everything under it, exclusively.
+     * @param path the path to lock
+     * @return a new (not yet locked) instance
+     */
+    @Override
+    public Instance getLock(@NotNull String path) {
+        return new Instance(path, false);
+    }
+
+    /**
+     * Get a new instance locking the given path, and everything under it, in shared mode.
+     * @param path the path to lock
+     * @return a new (not yet locked) instance
+     */
+    public Instance getReadLock(@NotNull String path) {
+        return new Instance(path, true);
+    }
+
+    /**
+     * Return the number of path nodes currently in use, ancestors included.
+     * @return number of nodes
+     */
+    public int getNumberOfNodes() {
+        return this.nodes.size();
+    }
+
+    private Node acquireNode(String path) {
+        return this.nodes.compute(path, (key, node) -> {
+            Node used = node == null ? new Node() : node;
+            used.users++;
+            return used;
+        });
+    }
+
+    private void releaseNode(String path) {
+        this.nodes.computeIfPresent(path, (key, node) -> --node.users == 0 ? null : node);
+    }
+
+    private List<String> pathsOf(String path) {
+        List<String> paths = new ArrayList<>();
+        int index = path.indexOf(this.separator);
+        while (index >= 0) {
+            if (index > 0) {
+                paths.add(path.substring(0, index));
+            }
+            index = path.indexOf(this.separator, index + this.separator.length());
+        }
+        paths.add(path);
+        return paths;
+    }
+
+    private enum Mode {
+        INTENTION_SHARED(1L, X_MASK, false),
+        INTENTION_EXCLUSIVE(1L << 20, X_MASK | S_MASK, false),
+        SHARED(1L << 40, X_MASK | IX_MASK, true),
+        EXCLUSIVE(1L << 60, -1L, true);
+
+        private final long unit;
+        private final long conflicts;
+        private final boolean fair;
+
+        Mode(long unit, long conflicts, boolean fair) {
+            this.unit = unit;
+            this.conflicts = conflicts;
+            this.fair = fair;
+        }
+    }
+
+    private static final Mode[] MODES = Mode.values();
+
+    /**
+     * Lock over a single path level. All the modes are acquired as shared by the synchronizer, and the state tells
+     * whether they are compatible.
+     */
+    private static final class Node extends AbstractQueuedLongSynchronizer {
+        private static final long serialVersionUID = 2404953916245612085L;
+
+        // Guarded by the map, only changed in compute calls
+        private int users;
+
+        boolean tryLock(Mode mode, long nanos) throws InterruptedException {
+            return this.tryAcquireSharedNanos(mode.ordinal(), nanos);
+        }
+
+        void unlock(Mode mode) {
+            this.releaseShared(mode.ordinal());
+        }
+
+        @Override
+        protected long tryAcquireShared(long arg) {
+            Mode mode = MODES[(int) arg];
+            for (;;) {
+                long state = this.getState();
+                if ((state & mode.conflicts) != 0 || (mode.fair && this.hasQueuedPredecessors())) {
+                    return -1;
+                }
+                if (this.compareAndSetState(state, state + mode.unit)) {
+                    return 1;
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(long arg) {
+            Mode mode = MODES[(int) arg];
+            for (;;) {
+                long state = this.getState();
+                if (this.compareAndSetState(state, state - mode.unit)) {
+                    // Waiters of any mode might be compatible now
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link java.io.Closeable} instance of a {@link HierarchicalIdLock}.
+     */
+    public final class Instance implements IdLockHandle {
+
+        private final String path;
+        private final boolean shared;
+        private final List<String> paths;
+        private final List<Node> lockedNodes;
+        private boolean acquired;
+        private boolean released;
+
+        private Instance(String path, boolean shared) {
+            this.path = path;
+            this.shared = shared;
+            this.paths = HierarchicalIdLock.this.pathsOf(path);
+            this.lockedNodes = new ArrayList<>(this.paths.size());
+        }
+
+        /**
+         * Returns whether this instance locks its path in shared (read) mode.
+         * @return true if shared, false if exclusive
+         */
+        public boolean isShared() {
+            return this.shared;
+        }
+
+        @Override
+        public Instance lock() throws LockException {
+            return this.lock(HierarchicalIdLock.this.timeout, HierarchicalIdLock.this.timeoutUnit);
+        }
+
+        @Override
+        public Instance lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException {
+            if (this.acquired) {
+                throw new LockException("You cannot reuse a lock Instance");
+            }
+
+            final long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+            try {
+                for (String nodePath : this.paths) {
+                    Node node = HierarchicalIdLock.this.acquireNode(nodePath);
+                    if (!node.tryLock(this.modeOf(this.lockedNodes.size()), deadline - System.nanoTime())) {
+                        HierarchicalIdLock.this.releaseNode(nodePath);
+                        throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.path));
+                    }
+                    this.lockedNodes.add(node);
+                }
+            } catch (InterruptedException e) {
+                HierarchicalIdLock.this.releaseNode(this.paths.get(this.lockedNodes.size()));
+                this.unlockNodes();
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.path), e);
+            } catch (LockException e) {
+                this.unlockNodes();
+                throw e;
+            }
+
+            this.acquired = true;
+            return this;
+        }
+
+        /**
+         * Release the lock on the path (and its ancestors).
+         * @return true if the lock was held by this instance and got released
+         */
+        @Override
+        public boolean unlock() {
+            if (!this.acquired || this.released) {
+                return false;
+            }
+            this.released = true;
+            this.unlockNodes();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
+        }
+
+        private Mode modeOf(int level) {
+            if (level < this.paths.size() - 1) {
+                return this.shared ? Mode.INTENTION_SHARED : Mode.INTENTION_EXCLUSIVE;
+            }
+            return this.shared ? Mode.SHARED : Mode.EXCLUSIVE;
+        }
+
+        /**
+         * Unlocks the locked nodes, from the leaf up.
+         */
+        private void unlockNodes() {
+            for (int i = this.lockedNodes.size() - 1; i >= 0; i--) {
+                this.lockedNodes.get(i).unlock(this.modeOf(i));
+                HierarchicalIdLock.this.releaseNode(this.paths.get(i));
+            }
+            this.lockedNodes.clear();
+        }
+    }
+}
@@ -1,12 +1,28 @@
 package com.gene42.commons.utils.concurrent;
 
 import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -24,15 +40,50 @@
  *     {@value IdLock#DEFAULT_AUTO_RELEASE_TIMEOUT} {@value IdLock#DEFAULT_AUTO_RELEASE_TIMEOUT_UNIT}.
  *     When a lock expires another thread will be able to acquire the lock even if another thread has it.
  *     This is done in order to prevent the scenario where the locking thread dies and does not release the lock,
- *     thus locking the id indefinitely.
+ *     thus locking the id indefinitely. A negative auto release timeout disables the feature.
+ * </p>
+ * <p>
+ *     By default expiry is only noticed when another thread contends for the expired id. An optional background
+ *     reaper (see {@link #IdLock(long, TimeUnit, long, TimeUnit, long, TimeUnit)}) removes expired locks proactively,
+ *     so leaked locks on ids nobody asks for again do not stay around. While it runs, acquisition times are read from
+ *     a clock it refreshes on every tick rather than from the system clock.
+ * </p>
+ * <p>
+ *     Holders which legitimately need an id for longer than the auto release timeout can extend their lease with
+ *     {@link Instance#renew()}, or let {@link Instance#startHeartbeat()} renew it periodically. Each acquisition also
+ *     gets a fencing token ({@link Instance#getFencingToken()}), so that the systems written to under the lock can
+ *     reject writes from a holder whose lease expired and was taken over.
+ * </p>
+ * <p>
+ *     Contention metrics (wait and hold times, failures, auto releases, most contended ids) can be turned on with
+ *     {@link #enableMetrics()}. They cost nothing until then.
  * </p>
  * <p>
  *     This lock auto cleans itself. When an unlock happens, if no other threads are waiting for a lock. The lock
  *     is completely removed. This means that as time passes, the structure holding the locks will not keep growing.
+ *     Removed lock entries are recycled through a small pool, so that the uncontended lock/unlock cycle does not
+ *     allocate (besides the map node).
+ * </p>
+ * <p>
+ *     Besides the exclusive lock returned by {@link #getLock(String)}, an id can be locked in shared mode through
+ *     {@link #getReadLock(String)}: any number of readers can hold an id at the same time, while writers stay
+ *     exclusive. New readers queue behind waiting writers, so writers are not starved. Read holds are not tied to a
+ *     thread, and a thread holding the write lock of an id cannot also acquire its read lock. For read-mostly ids,
+ *     {@link #tryOptimisticRead(String)} and {@link #validate(String, long)} allow reading without locking at all.
+ * </p>
+ * <p>
+ *     Several ids can be locked together with {@link #lockAll(Collection, long, TimeUnit)}. Ids are always acquired
+ *     in their natural (canonical) order, so concurrent calls on overlapping sets cannot deadlock each other.
+ * </p>
+ * <p>
+ *     Exclusive locks can also be acquired asynchronously through {@link Instance#lockAsync()}, without blocking any
+ *     thread while waiting. Asynchronous waiters of an id are queued in FIFO order, and the lock is handed off to the
+ *     first one directly when released. An asynchronously acquired lock is not tied to a thread: it can be unlocked
+ *     from any thread.
  * </p>
  * @version $Id$
  */
-public class IdLock {
+public class IdLock implements IdLockProvider {
 
     /* Default lock timeout value. */
     public static final long DEFAULT_TIMEOUT = 30;
@@ -48,13 +99,29 @@ public class IdLock {
 
     private static final String LOCK_ERROR_MESSAGE = "Could not establish lock for [%s]. Please try again.";
 
+    /* Number of longs between two write sequences, to keep them on different cache lines. */
+    private static final int SEQUENCE_PADDING = 8;
+
+    private static final AtomicIntegerFieldUpdater<Instance> ASYNC_STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Instance.class, "asyncState");
+
     private final ConcurrentHashMap<String, LockEntry> lockMap = new ConcurrentHashMap<>();
 
+    private final LockEntryPool entryPool = new LockEntryPool(Runtime.getRuntime().availableProcessors() * 4);
+
+    // Striped counters of write acquisitions, used for optimistic reads
+    private final int sequenceMask = stripeMask(Runtime.getRuntime().availableProcessors() * 4);
+    private final AtomicLongArray writeSequences = new AtomicLongArray((this.sequenceMask + 1) * SEQUENCE_PADDING);
+
     private final long timeout;
     private final TimeUnit timeoutUnit;
 
     private final long autoReleaseTimeoutInMillis;
 
+    private final ExpiryReaper reaper;
+
+    private volatile IdLockMetrics metrics;
+
     /**
      * Constructor.
      */
@@ -77,12 +144,38 @@ public IdLock(long timeout, @NotNull TimeUnit timeoutUnit) {
      *
      * @param timeout timeout value to use for all {@link IdLock.Instance#lock()} calls
      * @param timeoutUnit time unit value to use for all {@link IdLock.Instance#lock()} calls
+     * @param autoReleaseTimeout time after which a held lock can be taken over by another thread (negative disables)
+     * @param autoReleaseTimeoutUnit the unit of the auto release timeout
      */
     public IdLock(long timeout, @NotNull TimeUnit timeoutUnit, long autoReleaseTimeout,
         @NotNull TimeUnit autoReleaseTimeoutUnit) {
+        this(timeout, timeoutUnit, autoReleaseTimeout, autoReleaseTimeoutUnit, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor. The reaper checks expired locks once per tick, on a background daemon thread shared by all locks.
+     * An expired lock is removed at most one tick (plus the scheduling delay) after its expiry, whether anybody
+     * contends for it or not. The reaper stops by itself once this IdLock is garbage collected.
+     *
+     * @param timeout timeout value to use for all {@link IdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link IdLock.Instance#lock()} calls
+     * @param autoReleaseTimeout time after which a held lock can be taken over by another thread (negative disables)
+     * @param autoReleaseTimeoutUnit the unit of the auto release timeout
+     * @param reaperTick the period of the expiry reaper (non positive, or auto release disabled, disables it)
+     * @param reaperTickUnit the unit of the reaper period
+     */
+    public IdLock(long timeout, @NotNull TimeUnit timeoutUnit, long autoReleaseTimeout,
+        @NotNull TimeUnit autoReleaseTimeoutUnit, long reaperTick, @NotNull TimeUnit reaperTickUnit) {
         this.timeout = timeout;
         this.timeoutUnit = timeoutUnit;
-        this.autoReleaseTimeoutInMillis = autoReleaseTimeoutUnit.toMillis(autoReleaseTimeout);
+        this.autoReleaseTimeoutInMillis =
+            autoReleaseTimeout < 0 ? -1 : autoReleaseTimeoutUnit.toMillis(autoReleaseTimeout);
+        if (this.autoReleaseTimeoutInMillis >= 0 && reaperTick > 0) {
+            this.reaper = new ExpiryReaper(this, Math.max(1, reaperTickUnit.toMillis(reaperTick)));
+            this.reaper.start();
+        } else {
+            this.reaper = null;
+        }
     }
 
     /**
@@ -90,10 +183,111 @@ public IdLock(long timeout, @NotNull TimeUnit timeoutUnit, long autoReleaseTimeo
      * @param id the id to lock
      * @return a new instance of a CloseableIdLock
      */
+    @Override
     public Instance getLock(@NotNull String id) {
         return new Instance(id);
     }
 
+    /**
+     * Get a new instance of a CloseableIdLock wrapper around this IdLock, which locks the id in shared mode. Many
+     * readers can hold the same id at the same time, but not while a writer (see {@link #getLock(String)}) holds it.
+     * @param id the id to lock
+     * @return a new instance of a CloseableIdLock
+     */
+    public Instance getReadLock(@NotNull String id) {
+        return new Instance(id, true);
+    }
+
+    /**
+     * Shortcut for {@code getLock(id).lockAsync()}. See {@link Instance#lockAsync(long, TimeUnit, Executor)}.
+     * @param id the id to lock
+     * @return a future completed with the locked instance
+     */
+    public CompletableFuture<Instance> lockAsync(@NotNull String id) {
+        return this.getLock(id).lockAsync();
+    }
+
+    /**
+     * Locks all the given ids, with the default timeout. See {@link #lockAll(Collection, long, TimeUnit)}.
+     * @param ids the ids to lock
+     * @return a handle releasing all the locks when closed
+     * @throws LockException if any of the locks could not be acquired; none are held in that case
+     */
+    public MultiInstance lockAll(@NotNull Collection<String> ids) throws LockException {
+        return this.lockAll(ids, this.timeout, this.timeoutUnit);
+    }
+
+    /**
+     * Locks all the given ids (exclusively), or none of them. The ids are de-duplicated and acquired in their
+     * natural order, which is the same for every caller, so two batches sharing ids cannot deadlock each other.
+     * The timeout applies to the batch as a whole, not to each id. If any lock can not be acquired in time, the
+     * locks already acquired are released before the exception is thrown.
+     * <p>
+     * Callers must not already hold locks of this IdLock when calling this method, otherwise the canonical order
+     * is not respected anymore.
+     * </p>
+     * @param ids the ids to lock
+     * @param timeout the time value to attempt acquiring all the locks before giving up
+     * @param timeoutUnit the time value unit to attempt acquiring all the locks before giving up
+     * @return a handle releasing all the locks when closed
+     * @throws LockException if any of the locks could not be acquired; none are held in that case
+     */
+    public MultiInstance lockAll(@NotNull Collection<String> ids, long timeout, @NotNull TimeUnit timeoutUnit)
+        throws LockException {
+        SortedSet<String> sortedIds = new TreeSet<>(ids);
+        List<Instance> instances = new ArrayList<>(sortedIds.size());
+        final long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+
+        try {
+            for (String id : sortedIds) {
+                instances.add(new Instance(id).lock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+        } catch (LockException e) {
+            unlockAll(instances);
+            throw e;
+        }
+
+        return new MultiInstance(instances);
+    }
+
+    private static boolean unlockAll(List<Instance> instances) {
+        boolean allUnlocked = true;
+        // Release in reverse order of acquisition
+        for (int i = instances.size() - 1; i >= 0; i--) {
+            allUnlocked &= instances.get(i).unlock();
+        }
+        return allUnlocked;
+    }
+
+    /**
+     * Returns a stamp which can later be validated with {@link #validate(String, long)}, or zero if the id is
+     * currently write locked. Usage is the same as for {@link java.util.concurrent.locks.StampedLock}: read the
+     * data, then validate the stamp. If validation fails, fall back to {@link #getReadLock(String)}.
+     * @param id the id to read
+     * @return a non zero stamp, or zero if the id is write locked
+     */
+    public long tryOptimisticRead(@NotNull String id) {
+        long sequence = this.writeSequences.get(this.sequenceIndex(id));
+        LockEntry entry = this.lockMap.get(id);
+        if (entry != null && entry.isWriteLocked() && id.equals(entry.getId())) {
+            return 0L;
+        }
+        return (sequence << 1) | 1L;
+    }
+
+    /**
+     * Returns true if no write lock has been acquired for the given id since the given stamp was issued by
+     * {@link #tryOptimisticRead(String)}. Ids sharing the same stripe can cause spurious failures, never false
+     * successes.
+     * @param id the id which was read
+     * @param stamp the stamp returned by {@link #tryOptimisticRead(String)}
+     * @return true if the reads done since the stamp was issued are consistent
+     */
+    public boolean validate(@NotNull String id, long stamp) {
+        // The read-modify-write acts as a full fence, so the caller's reads cannot be reordered after it
+        return stamp != 0L && ((this.writeSequences.getAndAdd(this.sequenceIndex(id), 0L) << 1) | 1L) == stamp;
+    }
+
     /**
      * Return the number of id locks currently being used (one entry per id).
      * @return number of locks
@@ -102,6 +296,41 @@ public int getNumberOfLocks() {
         return this.lockMap.size();
     }
 
+    /**
+     * Returns the age, in milliseconds, of each lock currently held.
+     * @return a snapshot map from held ids to the time elapsed since they were (last) acquired or renewed
+     */
+    public Map<String, Long> getHeldLockAges() {
+        long now = this.currentTimeMillis();
+        Map<String, Long> ages = new HashMap<>();
+        this.lockMap.forEach((id, entry) -> {
+            if (entry.isValidFor(id)) {
+                ages.put(id, now - entry.getAcquiredTime());
+            }
+        });
+        return ages;
+    }
+
+    /**
+     * Turns on contention metrics for this lock, if they are not on already. Acquisitions started before this call
+     * are not recorded.
+     * @return the metrics of this lock
+     */
+    public synchronized IdLockMetrics enableMetrics() {
+        if (this.metrics == null) {
+            this.metrics = new IdLockMetrics();
+        }
+        return this.metrics;
+    }
+
+    /**
+     * Returns the contention metrics of this lock.
+     * @return an {@link Optional} containing the metrics, empty if they were not enabled
+     */
+    public Optional<IdLockMetrics> getMetrics() {
+        return Optional.ofNullable(this.metrics);
+    }
+
     /**
      * Returns whether or not the log for the given id is expired.
      *
@@ -109,67 +338,625 @@ public int getNumberOfLocks() {
      * @return an {@link Optional} containing the result. If empty it means that no lock for that id was found
      */
     public Optional<Boolean> isLockExpired(String id) {
-        LockEntry entry = this.lockMap.getOrDefault(id, null);
+        LockEntry entry = this.lockMap.get(id);
         if (entry == null) {
             return Optional.empty();
         }
-        long currentAcquireTime = entry.getAcquiredTime().get();
-        boolean expired = System.currentTimeMillis() > currentAcquireTime + IdLock.this.autoReleaseTimeoutInMillis;
-        return  Optional.of(expired);
+        return Optional.of(this.isExpired(entry));
     }
 
-    private static class LockEntry {
-        private final AtomicLong acquiredTime;
-        private final ReentrantReadWriteLock mainLock = new ReentrantReadWriteLock();
-        private final ReentrantReadWriteLock.WriteLock writeLock = mainLock.writeLock();
-        private volatile boolean valid = true;
+    private boolean isExpired(LockEntry entry) {
+        return this.autoReleaseTimeoutInMillis >= 0
+            && this.currentTimeMillis() > entry.getAcquiredTime() + this.autoReleaseTimeoutInMillis;
+    }
 
-        public LockEntry(long acquiredTimeValue) {
-             this.acquiredTime = new AtomicLong(acquiredTimeValue);
+    /**
+     * Returns the time used for acquisition times and expiry checks: the reaper's clock when it runs, which is
+     * accurate to a tick, the system clock otherwise.
+     */
+    private long currentTimeMillis() {
+        return this.reaper != null ? this.reaper.now : System.currentTimeMillis();
+    }
+
+    /**
+     * Called by the reaper when the timer of the given entry fires: removes the entry if it expired, or re-arms its
+     * timer against its latest acquisition time.
+     */
+    private void reapEntry(LockEntry entry) {
+        String id = entry.getId();
+        if (!entry.isValid() || this.lockMap.get(id) != entry) {
+            // Released (and maybe recycled) since it was scheduled, whoever publishes it again schedules it again
+            return;
+        }
+        if (!this.isExpired(entry)) {
+            this.reaper.schedule(entry, this.autoReleaseTimeoutInMillis);
+            return;
+        }
+        if (!this.claimExpired(entry)) {
+            if (entry.isValid()) {
+                // Renewed in the meantime
+                this.reaper.schedule(entry, this.autoReleaseTimeoutInMillis);
+            }
+            return;
+        }
+        if (!this.lockMap.remove(id, entry)) {
+            entry.setValid(true);
+            return;
+        }
+        if (this.metrics != null) {
+            this.metrics.recordAutoRelease();
+        }
+        // The holder might never release, don't keep asynchronous waiters queued behind it
+        Instance waiter;
+        while ((waiter = entry.pollWaiter()) != null) {
+            waiter.retryAsync();
+        }
+    }
+
+    /**
+     * Invalidates the given expired entry, so that its holder can not hand it off to a waiter (or remove it) while
+     * it is being taken over. The expiry is checked again once the entry is invalid: a holder renewing it, or a waiter
+     * acquiring it, refreshes its acquisition time before checking its validity, so either they see it invalid, or
+     * this sees it is not expired anymore, in which case it is made valid again.
+     *
+     * @return true if the entry was invalidated, and the caller must now remove or replace it
+     */
+    private boolean claimExpired(LockEntry entry) {
+        if (!entry.invalidate()) {
+            return false;
         }
+        if (!this.isExpired(entry)) {
+            entry.setValid(true);
+            return false;
+        }
+        return true;
+    }
+
+    private int sequenceIndex(String id) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & this.sequenceMask) * SEQUENCE_PADDING;
+    }
+
+    private static int stripeMask(int minStripes) {
+        return Integer.highestOneBit(Math.max(minStripes, 2) - 1) * 2 - 1;
+    }
+
+    /**
+     * Returns a locked entry for the given id, taken from the pool if possible.
+     */
+    private LockEntry newLockedEntry(String id, boolean shared) {
+        LockEntry entry = this.entryPool.poll();
+        // A pooled entry can still be briefly held by a thread which looked it up before it was recycled
+        if (entry == null || !entry.tryLock(shared)) {
+            entry = new LockEntry();
+            entry.tryLock(shared);
+        }
+        entry.reset(id, this.currentTimeMillis());
+        return entry;
+    }
 
-        public AtomicLong getAcquiredTime() {
+    /**
+     * Gives back an entry which was locked by {@link #newLockedEntry(String, boolean)} but never published in the
+     * map.
+     */
+    private void discardEntry(LockEntry entry, boolean shared) {
+        entry.setValid(false);
+        entry.unlock(shared);
+        this.entryPool.offer(entry);
+    }
+
+    /**
+     * Releases one hold of the given entry, held by the current thread (or instance in shared mode). If this is the
+     * last hold and nobody is waiting on it, the entry is removed from the map and recycled. The entry id is used
+     * rather than the caller's, since a stale caller might have acquired an entry which has been recycled for another
+     * id in the meantime.
+     */
+    private void releaseEntry(LockEntry entry, boolean shared) {
+        if (shared) {
+            // The last reader out cleans up, but only if it can briefly get exclusive access: if it can't, whoever
+            // got the entry in the meantime will clean it up on release
+            if (!entry.unlock(true) || !entry.tryLock(false)) {
+                return;
+            }
+        } else if (entry.getHoldCount() > 1) {
+            entry.unlock(false);
+            return;
+        }
+
+        if (this.handOffToWaiter(entry)) {
+            return;
+        }
+
+        boolean recycle = false;
+        if (!entry.hasQueuedThreads() && !entry.hasWaiters() && entry.invalidate()) {
+            recycle = this.lockMap.remove(entry.getId(), entry);
+        }
+        entry.unlock(false);
+
+        // Asynchronous waiters which got queued while we were releasing (or on an invalid entry) would never be
+        // woken up otherwise, let them try again
+        Instance waiter;
+        while ((waiter = entry.pollWaiter()) != null) {
+            waiter.retryAsync();
+        }
+
+        // Only entries we removed ourselves are recycled, stolen (expired) ones are left to the GC
+        if (recycle) {
+            this.entryPool.offer(entry);
+        }
+    }
+
+    /**
+     * Transfers the exclusive hold of the given entry to its first live asynchronous waiter, if any.
+     */
+    private boolean handOffToWaiter(LockEntry entry) {
+        if (!entry.hasWaiters()) {
+            return false;
+        }
+        // Refreshed before checking the validity, against a concurrent takeover (see claimExpired)
+        entry.setAcquiredTime(this.currentTimeMillis());
+        if (!entry.isValid()) {
+            return false;
+        }
+
+        Instance waiter;
+        while ((waiter = entry.pollWaiter()) != null) {
+            if (!waiter.id.equals(entry.getId())) {
+                // Queued on an entry which has been recycled for another id since
+                waiter.retryAsync();
+            } else if (waiter.claimAsync()) {
+                entry.clearOwner();
+                entry.setAcquiredTime(this.currentTimeMillis());
+                waiter.setAcquired(entry);
+                waiter.completeAsync();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class LockEntry extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 7713856431254470712L;
+
+        private static final AtomicIntegerFieldUpdater<LockEntry> SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(LockEntry.class, "scheduled");
+
+        private static final AtomicIntegerFieldUpdater<LockEntry> VALID =
+            AtomicIntegerFieldUpdater.newUpdater(LockEntry.class, "valid");
+
+        private volatile String id;
+        private volatile long acquiredTime;
+        private volatile int valid;
+        private volatile int generation;
+        private final ConcurrentLinkedQueue<Instance> waiters = new ConcurrentLinkedQueue<>();
+
+        // Intrusive link of the reaper's timer wheel: an entry is in at most one bucket at a time
+        private volatile int scheduled;
+        private LockEntry nextScheduled;
+
+        /**
+         * Re-initializes this entry for the given id. Must only be called while holding the entry.
+         */
+        void reset(String id, long acquiredTimeValue) {
+            this.id = id;
+            this.acquiredTime = acquiredTimeValue;
+            this.generation++;
+            this.valid = 1;
+        }
+
+        String getId() {
+            return this.id;
+        }
+
+        long getAcquiredTime() {
             return this.acquiredTime;
         }
 
-        public ReentrantReadWriteLock.WriteLock getWriteLock() {
-            return this.writeLock;
+        void setAcquiredTime(long acquiredTime) {
+            this.acquiredTime = acquiredTime;
+        }
+
+        boolean isValid() {
+            return this.valid != 0;
         }
 
-        public boolean isValid() {
-            return valid;
+        boolean isValidFor(String lockId) {
+            return this.valid != 0 && lockId.equals(this.id);
         }
 
-        public void setValid(boolean valid) {
-            this.valid = valid;
+        void setValid(boolean valid) {
+            this.valid = valid ? 1 : 0;
         }
 
-        public ReentrantReadWriteLock getMainLock() {
-            return mainLock;
+        /**
+         * Invalidates this entry, if it is valid. Entries are always invalidated this way before being removed from
+         * the map (or replaced in it), so that only one thread ever removes a given entry, and the entry is never
+         * handed to a new holder while it is being removed.
+         *
+         * @return true if this call invalidated the entry, false if it was already invalid
+         */
+        boolean invalidate() {
+            return VALID.compareAndSet(this, 1, 0);
+        }
+
+        int getGeneration() {
+            return this.generation;
+        }
+
+        void addWaiter(Instance waiter) {
+            this.waiters.offer(waiter);
+        }
+
+        Instance pollWaiter() {
+            return this.waiters.poll();
+        }
+
+        boolean hasWaiters() {
+            return !this.waiters.isEmpty();
+        }
+
+        boolean markScheduled() {
+            return this.scheduled == 0 && SCHEDULED.compareAndSet(this, 0, 1);
+        }
+
+        void clearScheduled() {
+            this.scheduled = 0;
+        }
+
+        /**
+         * Returns the number of exclusive holds, or minus the number of readers in shared mode.
+         */
+        int getHoldCount() {
+            return this.getState();
+        }
+
+        boolean isWriteLocked() {
+            return this.getState() > 0;
+        }
+
+        boolean isReadLocked() {
+            return this.getState() < 0;
+        }
+
+        boolean isHeldByCurrentThread() {
+            return this.isHeldExclusively();
+        }
+
+        boolean tryLock(boolean shared) {
+            return shared ? this.tryAcquireShared(1) >= 0 : this.tryAcquire(1);
+        }
+
+        /**
+         * Non reentrant exclusive acquisition which does not tie the hold to the current thread.
+         */
+        boolean tryLockUnowned() {
+            return this.compareAndSetState(0, 1);
+        }
+
+        /**
+         * Detaches the exclusive hold from the thread which acquired it, so that it can be handed over.
+         */
+        void clearOwner() {
+            this.setExclusiveOwnerThread(null);
+        }
+
+        boolean tryLock(boolean shared, long nanos) throws InterruptedException {
+            return shared ? this.tryAcquireSharedNanos(1, nanos) : this.tryAcquireNanos(1, nanos);
+        }
+
+        /**
+         * Releases one hold.
+         * @return true if the entry is now completely free
+         */
+        boolean unlock(boolean shared) {
+            return shared ? this.releaseShared(1) : this.release(1);
+        }
+
+        @Override
+        protected boolean tryAcquire(int acquires) {
+            Thread current = Thread.currentThread();
+            int state = this.getState();
+            if (state == 0) {
+                if (this.compareAndSetState(0, acquires)) {
+                    this.setExclusiveOwnerThread(current);
+                    return true;
+                }
+            } else if (current == this.getExclusiveOwnerThread()) {
+                this.setState(state + acquires);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int releases) {
+            int state = this.getState() - releases;
+            boolean free = state == 0;
+            if (free) {
+                this.setExclusiveOwnerThread(null);
+            }
+            this.setState(state);
+            return free;
+        }
+
+        @Override
+        protected int tryAcquireShared(int acquires) {
+            for (;;) {
+                int state = this.getState();
+                // Readers do not barge in front of queued threads, so that writers are not starved
+                if (state > 0 || this.hasQueuedPredecessors()) {
+                    return -1;
+                }
+                if (this.compareAndSetState(state, state - acquires)) {
+                    return 1;
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int releases) {
+            for (;;) {
+                int state = this.getState();
+                int newState = state + releases;
+                if (this.compareAndSetState(state, newState)) {
+                    return newState == 0;
+                }
+            }
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return this.getExclusiveOwnerThread() == Thread.currentThread();
+        }
+    }
+
+    /**
+     * Hashed timer wheel expiring stale entries in the background, ticked on the {@link IdLockScheduler} thread.
+     * Entries are linked into the wheel intrusively when published, so arming a timer does not allocate. Timers are
+     * never cancelled nor moved on re-acquisition: when a bucket fires, each entry is checked against its latest
+     * acquisition time, and either removed or re-armed. Deadlines further than a full turn of the wheel simply fire
+     * early and get re-armed.
+     */
+    private static final class ExpiryReaper implements Runnable {
+        private static final int WHEEL_SIZE = 512;
+        private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+        private final WeakReference<IdLock> owner;
+        private final AtomicReferenceArray<LockEntry> wheel = new AtomicReferenceArray<>(WHEEL_SIZE);
+        private final long tickMillis;
+
+        private volatile long now = System.currentTimeMillis();
+        private volatile long currentTick;
+        private volatile ScheduledFuture<?> task;
+
+        ExpiryReaper(IdLock owner, long tickMillis) {
+            // Weak, so that a forgotten IdLock does not keep the scheduler thread busy forever
+            this.owner = new WeakReference<>(owner);
+            this.tickMillis = tickMillis;
+        }
+
+        void start() {
+            this.task = IdLockScheduler.scheduleWithFixedDelay(this, this.tickMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Arms the timer of the given entry, unless it is already in the wheel.
+         */
+        void schedule(LockEntry entry, long timeoutMillis) {
+            if (!entry.markScheduled()) {
+                return;
+            }
+            // At least two ticks ahead: the bucket of the next tick might already be being processed
+            long ticks = (entry.getAcquiredTime() + timeoutMillis - this.now) / this.tickMillis + 1;
+            ticks = Math.min(Math.max(ticks, 2), WHEEL_SIZE - 1);
+            int index = (int) ((this.currentTick + ticks) & WHEEL_MASK);
+
+            LockEntry head;
+            do {
+                head = this.wheel.get(index);
+                entry.nextScheduled = head;
+            } while (!this.wheel.compareAndSet(index, head, entry));
+        }
+
+        @Override
+        public void run() {
+            IdLock idLock = this.owner.get();
+            if (idLock == null) {
+                ScheduledFuture<?> scheduledTask = this.task;
+                if (scheduledTask != null) {
+                    scheduledTask.cancel(false);
+                }
+                return;
+            }
+
+            this.now = System.currentTimeMillis();
+            long tick = this.currentTick + 1;
+            LockEntry entry = this.wheel.getAndSet((int) (tick & WHEEL_MASK), null);
+            this.currentTick = tick;
+
+            while (entry != null) {
+                LockEntry next = entry.nextScheduled;
+                entry.nextScheduled = null;
+                entry.clearScheduled();
+                idLock.reapEntry(entry);
+                entry = next;
+            }
+        }
+    }
+
+    /**
+     * Periodic lease renewal of an {@link Instance}. The instance is only weakly referenced, so that an instance
+     * forgotten by a dead holder stops being renewed.
+     */
+    private static final class Heartbeat implements Runnable {
+        private final WeakReference<Instance> instance;
+        private final Thread holder;
+        private volatile ScheduledFuture<?> task;
+        private volatile boolean cancelled;
+
+        Heartbeat(Instance instance, Thread holder) {
+            this.instance = new WeakReference<>(instance);
+            this.holder = holder;
+        }
+
+        void start(long period, TimeUnit periodUnit) {
+            this.task = IdLockScheduler.scheduleWithFixedDelay(this, period, periodUnit);
+            // Cancelled before the task was known
+            if (this.cancelled) {
+                this.task.cancel(false);
+            }
+        }
+
+        void cancel() {
+            this.cancelled = true;
+            ScheduledFuture<?> scheduledTask = this.task;
+            if (scheduledTask != null) {
+                scheduledTask.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            Instance heldInstance = this.instance.get();
+            if (heldInstance == null || (this.holder != null && !this.holder.isAlive()) || !heldInstance.renew()) {
+                this.cancel();
+            }
+        }
+    }
+
+    /**
+     * Small lock free pool of recycled entries. Each thread starts probing at a slot derived from its id to keep
+     * threads from fighting over the same slots.
+     */
+    private static final class LockEntryPool {
+        private static final int PROBES = 4;
+
+        private final AtomicReferenceArray<LockEntry> slots;
+        private final int mask;
+
+        LockEntryPool(int minSize) {
+            int size = Integer.highestOneBit(Math.max(minSize, PROBES) - 1) << 1;
+            this.slots = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+        }
+
+        LockEntry poll() {
+            int start = startIndex();
+            for (int i = 0; i < PROBES; i++) {
+                int index = (start + i) & this.mask;
+                LockEntry entry = this.slots.get(index);
+                if (entry != null && this.slots.compareAndSet(index, entry, null)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        void offer(LockEntry entry) {
+            int start = startIndex();
+            for (int i = 0; i < PROBES; i++) {
+                int index = (start + i) & this.mask;
+                if (this.slots.get(index) == null && this.slots.compareAndSet(index, null, entry)) {
+                    return;
+                }
+            }
+        }
+
+        private static int startIndex() {
+            return (int) (Thread.currentThread().getId() * 0x9E3779B9L) >>> 8;
+        }
+    }
+
+    /**
+     * {@link Closeable} handle over several ids locked together by {@link IdLock#lockAll(Collection, long, TimeUnit)}.
+     */
+    public static final class MultiInstance implements Closeable {
+
+        private final List<Instance> instances;
+
+        private MultiInstance(List<Instance> instances) {
+            this.instances = instances;
+        }
+
+        /**
+         * Returns the ids held by this handle, in the order they were acquired.
+         * @return an unmodifiable list of ids
+         */
+        public List<String> getIds() {
+            List<String> ids = new ArrayList<>(this.instances.size());
+            this.instances.forEach(instance -> ids.add(instance.id));
+            return Collections.unmodifiableList(ids);
+        }
+
+        /**
+         * Release all the locks held by this handle, in reverse order of acquisition.
+         * @return true only if every single lock was successfully unlocked, see {@link Instance#unlock()}
+         */
+        public boolean unlock() {
+            return unlockAll(this.instances);
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
         }
     }
 
     /**
      * {@link Closeable} instance of an {@link IdLock}.
      */
-    public final class Instance implements Closeable {
+    public final class Instance implements IdLockHandle {
+
+        private static final int ASYNC_WAITING = 1;
+        private static final int ASYNC_DONE = 2;
 
         private final String id;
+        private final boolean shared;
         private LockEntry acquiredLockEntry;
+        private int acquiredGeneration;
+        private volatile boolean released;
+        private long fencingToken;
+        private Heartbeat heartbeat;
+
+        // Only used by metrics
+        private long startNanos;
+        private long acquiredNanos;
+        private boolean contended;
+
+        private CompletableFuture<Instance> future;
+        private Executor executor;
+        private ScheduledFuture<?> timeoutTask;
+        // Package private for ASYNC_STATE
+        volatile int asyncState;
 
         /**
          * Constructor.
          * @param id the id to lock
          */
         public Instance(@NotNull String id) {
+            this(id, false);
+        }
+
+        private Instance(String id, boolean shared) {
             this.id = id;
+            this.shared = shared;
+        }
+
+        /**
+         * Returns whether this instance locks its id in shared (read) mode.
+         * @return true if shared, false if exclusive
+         */
+        public boolean isShared() {
+            return this.shared;
         }
 
         /**
          * Acquire lock on the id.
          *
+         * @return this object
          * @throws LockException if the lock is not successful
          */
+        @Override
         public Instance lock() throws LockException {
             this.lock(IdLock.this.timeout, IdLock.this.timeoutUnit);
             return this;
@@ -180,146 +967,399 @@ public Instance lock() throws LockException {
          *
          * @param timeout the time value to attempt acquiring the lock before giving up
          * @param timeoutUnit the time value unit to attempt acquiring the lock before giving up
-         *
+         * @return this object
          * @throws LockException if the lock is not successful
          */
+        @Override
         public Instance lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException {
 
-            if (this.acquiredLockEntry != null) {
+            if (this.acquiredLockEntry != null || this.future != null) {
                 throw new LockException("You cannot reuse a lock Instance");
             }
 
-            long retryTime = timeoutUnit.toMillis(timeout);
+            this.startNanos = System.nanoTime();
+            final long deadline = this.startNanos + timeoutUnit.toNanos(timeout);
 
-            // There is one scenario where the entry might get deleted by an unlock between getting the item and
-            // attempting to lock it. We will retry here a few times until we succeed or the time runs out. We
-            // will use the same timeout as the lock acquiring one.
-            while (retryTime > 0) {
+            // The entry might get removed (or even recycled for another id) by an unlock between getting it and
+            // attempting to lock it. We will retry here until we succeed or the time runs out. We will use the same
+            // timeout as the lock acquiring one.
+            do {
+                LockEntry entry = IdLock.this.lockMap.get(this.id);
 
-                long start = System.currentTimeMillis();
+                if (entry == null) {
+                    // Uncontended fast path: publish an already locked entry
+                    if (this.setAcquired(this.tryPublishNewEntry(null))) {
+                        return this;
+                    }
+                    continue;
+                }
 
-                AtomicBoolean newLock = new AtomicBoolean(false);
-                LockEntry lockEntry = IdLock.this.lockMap.compute(this.id, (k, v) -> createNewLockEntry(newLock, v));
+                boolean locked = entry.tryLock(this.shared);
+                this.contended |= !locked;
 
-                // If it's a new lock we already have the lock so one one would be able to delete it: make it invalid
-                if (newLock.get()) {
-                    this.acquiredLockEntry = lockEntry;
-                    return this;
+                if (!locked && IdLock.this.isExpired(entry)) {
+                    // The holder did not release the lock in time, take it over
+                    if (this.setAcquired(this.tryPublishNewEntry(entry))) {
+                        return this;
+                    }
+                    continue;
                 }
 
-                boolean cleanLock;
-                try {
-                    cleanLock = lockEntry.getWriteLock().tryLock(timeout, timeoutUnit);
-                } catch (InterruptedException e) {
-                    throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
+                if (!locked) {
+                    locked = this.awaitEntry(entry, deadline - System.nanoTime());
                 }
 
-                if (lockEntry.isValid()) {
-                    if (cleanLock) {
-                        // Update acquired time
-                        this.setAcquiredTime(lockEntry, lockEntry.getAcquiredTime().get());
-                        this.acquiredLockEntry = lockEntry;
+                if (locked) {
+                    // Refreshed before checking the validity, against a concurrent takeover (see claimExpired)
+                    entry.setAcquiredTime(IdLock.this.currentTimeMillis());
+                    if (entry.isValidFor(this.id)) {
+                        this.setAcquired(entry);
                         return this;
-                    } else {
-                        // If lockEntry is valid and we don't have a lock, we failed to get the lock
-                        break;
                     }
+                    // Lock entry is not valid (anymore) for this id, we need to retry
+                    IdLock.this.releaseEntry(entry, this.shared);
+                } else if (entry.isValidFor(this.id)) {
+                    // If the entry is valid and we don't have a lock, we failed to get the lock
+                    break;
                 }
-
-                // Lock entry is not valid, we need to retry
-                retryTime -= System.currentTimeMillis() - start;
-            }
+            } while (deadline - System.nanoTime() > 0);
 
             // If we reached this code, we don't have the lock
+            this.recordFailure();
             throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
         }
 
-        private void setAcquiredTime(LockEntry lock, long currentAcquireTime) throws LockException {
-            boolean cleanAcquiredTimeSet =
-                lock.getAcquiredTime().compareAndSet(currentAcquireTime, System.currentTimeMillis());
+        /**
+         * Acquire lock on the id asynchronously, with the default timeout, completing the future on the common
+         * {@link ForkJoinPool}. See {@link #lockAsync(long, TimeUnit, Executor)}.
+         *
+         * @return a future completed with this object once the lock is acquired
+         */
+        public CompletableFuture<Instance> lockAsync() {
+            return this.lockAsync(IdLock.this.timeout, IdLock.this.timeoutUnit);
+        }
 
-            if (!cleanAcquiredTimeSet) {
-                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
-            }
+        /**
+         * Acquire lock on the id asynchronously, completing the future on the common {@link ForkJoinPool}. See
+         * {@link #lockAsync(long, TimeUnit, Executor)}.
+         *
+         * @param timeout the time value to attempt acquiring the lock before giving up
+         * @param timeoutUnit the time value unit to attempt acquiring the lock before giving up
+         * @return a future completed with this object once the lock is acquired
+         */
+        public CompletableFuture<Instance> lockAsync(long timeout, @NotNull TimeUnit timeoutUnit) {
+            return this.lockAsync(timeout, timeoutUnit, ForkJoinPool.commonPool());
         }
 
         /**
-         * Release the lock for the id.
-         * @return true only if the current thread successfully unlocked a valid entry
-         *         cases where this might not be true are, if an exception was thrown during lock attempt, or if the
-         *         lock was removed, is invalid or is a new lock held by a different thread
+         * Acquire lock on the id asynchronously. No thread is blocked while waiting: if the id is locked, this
+         * instance is queued behind the other asynchronous waiters of the id and the lock is handed off to it on
+         * release. The future is completed exceptionally with a {@link LockException} if the lock could not be
+         * acquired in time. Cancelling the future gives up the attempt. Once acquired, the lock can be released
+         * from any thread. Only exclusive instances can be locked asynchronously.
+         *
+         * @param timeout the time value to attempt acquiring the lock before giving up
+         * @param timeoutUnit the time value unit to attempt acquiring the lock before giving up
+         * @param executor the executor used to complete the future and to retry acquisitions
+         * @return a future completed with this object once the lock is acquired
          */
-        public boolean unlock() {
-            AtomicBoolean unlockSuccessful = new AtomicBoolean(false);
+        public CompletableFuture<Instance> lockAsync(long timeout, @NotNull TimeUnit timeoutUnit,
+            @NotNull Executor executor) {
 
-            final LockEntry entryToUnlock = this.acquiredLockEntry;
+            if (this.shared) {
+                throw new UnsupportedOperationException("Read locks cannot be acquired asynchronously");
+            }
 
-            IdLock.this.lockMap.compute(this.id, (key, lockEntry) -> {
+            CompletableFuture<Instance> result = new CompletableFuture<>();
+            if (this.acquiredLockEntry != null || this.future != null) {
+                result.completeExceptionally(new LockException("You cannot reuse a lock Instance"));
+                return result;
+            }
+
+            this.future = result;
+            this.executor = executor;
+            this.asyncState = ASYNC_WAITING;
+            this.startNanos = System.nanoTime();
+            this.timeoutTask = IdLockScheduler.schedule(this::timeoutAsync, timeout, timeoutUnit);
+            this.attemptAsync();
+            return result;
+        }
 
-                if (lockEntry != entryToUnlock && entryToUnlock != null) {
-                    entryToUnlock.setValid(false);
-                    if (entryToUnlock.getWriteLock().isHeldByCurrentThread()) {
-                        entryToUnlock.getWriteLock().unlock();
+        private void attemptAsync() {
+            while (this.isWaitingAsync()) {
+                LockEntry entry = IdLock.this.lockMap.get(this.id);
+                LockEntry acquired;
+
+                if (entry == null) {
+                    acquired = this.tryPublishNewEntry(null);
+                } else if (entry.tryLockUnowned()) {
+                    acquired = this.checkAcquired(entry);
+                } else if (IdLock.this.isExpired(entry)) {
+                    acquired = this.tryPublishNewEntry(entry);
+                } else {
+                    this.contended = true;
+                    entry.addWaiter(this);
+                    // The holder might have released the entry before we were queued, in which case it would not
+                    // hand it off to us
+                    if (!entry.tryLockUnowned()) {
+                        return;
                     }
-                    return lockEntry;
+                    acquired = this.checkAcquired(entry);
                 }
 
-                if (lockEntry == null) {
-                    return null;
+                if (acquired != null) {
+                    if (this.claimAsync()) {
+                        this.setAcquired(acquired);
+                        this.completeAsync();
+                    } else {
+                        // Timed out or cancelled in the meantime
+                        IdLock.this.releaseEntry(acquired, false);
+                    }
+                    return;
                 }
+            }
+        }
 
-                ReentrantReadWriteLock.WriteLock lock = lockEntry.getWriteLock();
-                if (!lock.isHeldByCurrentThread()) {
-                    return lockEntry;
-                }
+        private LockEntry checkAcquired(LockEntry entry) {
+            entry.setAcquiredTime(IdLock.this.currentTimeMillis());
+            if (entry.isValidFor(this.id)) {
+                return entry;
+            }
+            IdLock.this.releaseEntry(entry, false);
+            return null;
+        }
 
-                unlockSuccessful.set(true);
-                if (lockEntry.getMainLock().hasQueuedThreads()) {
-                    lock.unlock();
-                    return lockEntry;
-                } else {
-                    lockEntry.setValid(false);
-                    lock.unlock();
-                    return null;
+        private boolean isWaitingAsync() {
+            return this.asyncState == ASYNC_WAITING && !this.future.isDone();
+        }
+
+        /**
+         * Marks this asynchronous acquisition as successful. Only one party can ever claim it, which protects
+         * against the same instance being queued more than once, or timing out while being handed a lock.
+         */
+        private boolean claimAsync() {
+            return !this.future.isDone() && ASYNC_STATE.compareAndSet(this, ASYNC_WAITING, ASYNC_DONE);
+        }
+
+        private void completeAsync() {
+            this.timeoutTask.cancel(false);
+            this.runAsync(() -> {
+                // If the future got cancelled after being claimed, nobody will ever release the lock but us
+                if (!this.future.complete(this)) {
+                    this.unlock();
                 }
             });
+        }
 
-            return unlockSuccessful.get();
+        private void timeoutAsync() {
+            if (ASYNC_STATE.compareAndSet(this, ASYNC_WAITING, ASYNC_DONE)) {
+                this.recordFailure();
+                this.future.completeExceptionally(new LockException(String.format(LOCK_ERROR_MESSAGE, this.id)));
+            }
         }
 
-        @Override
-        public void close() {
-            this.unlock();
+        private void retryAsync() {
+            if (this.isWaitingAsync()) {
+                this.runAsync(this::attemptAsync);
+            }
         }
 
-        @NotNull
-        private LockEntry createNewLockEntry(AtomicBoolean newLock, LockEntry currentLockEntry) {
-            if (currentLockEntry != null && currentLockEntry.isValid()) {
+        private void runAsync(Runnable task) {
+            try {
+                this.executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
 
-                if (IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT < 0) {
-                    return currentLockEntry;
-                }
+        /**
+         * Publishes a new locked entry for the id, either as a brand new one or as a replacement of the given
+         * expired entry.
+         *
+         * @param expiredEntry the entry to replace, null if there should be no entry for the id
+         * @return the new entry if it was published, null if the map changed in the meantime
+         */
+        private LockEntry tryPublishNewEntry(LockEntry expiredEntry) {
+            // The expired entry is invalidated before being replaced, so that its holder can not hand it off
+            if (expiredEntry != null && !IdLock.this.claimExpired(expiredEntry)) {
+                return null;
+            }
+            LockEntry newEntry = IdLock.this.newLockedEntry(this.id, this.shared);
 
-                long currentAcquireTime = currentLockEntry.getAcquiredTime().get();
+            boolean published;
+            if (expiredEntry == null) {
+                published = IdLock.this.lockMap.putIfAbsent(this.id, newEntry) == null;
+            } else {
+                published = IdLock.this.lockMap.replace(this.id, expiredEntry, newEntry);
+            }
 
-                // Check expiry
-                boolean notExpired = System.currentTimeMillis() < currentAcquireTime
-                    + IdLock.this.autoReleaseTimeoutInMillis;
+            if (!published) {
+                IdLock.this.discardEntry(newEntry, this.shared);
+                if (expiredEntry != null) {
+                    expiredEntry.setValid(true);
+                }
+                return null;
+            }
 
-                if (notExpired) {
-                    return currentLockEntry;
+            if (expiredEntry != null) {
+                if (IdLock.this.metrics != null) {
+                    IdLock.this.metrics.recordAutoRelease();
                 }
+            }
+            if (IdLock.this.reaper != null) {
+                IdLock.this.reaper.schedule(newEntry, IdLock.this.autoReleaseTimeoutInMillis);
+            }
+            if (this.future != null) {
+                newEntry.clearOwner();
+            }
+            return newEntry;
+        }
 
-                currentLockEntry.setValid(false);
+        private boolean awaitEntry(LockEntry entry, long remainingNanos) throws LockException {
+            try {
+                return entry.tryLock(this.shared, remainingNanos);
+            } catch (InterruptedException e) {
+                this.recordFailure();
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id), e);
             }
+        }
 
-            newLock.set(true);
-            LockEntry lockEntry = new LockEntry(System.currentTimeMillis());
-            // This should always succeed since we have just created the lock
-            lockEntry.getWriteLock().tryLock();
-            return lockEntry;
+        private void recordFailure() {
+            IdLockMetrics lockMetrics = IdLock.this.metrics;
+            if (lockMetrics != null) {
+                lockMetrics.recordFailure(this.id);
+            }
         }
-    }
 
+        private boolean setAcquired(LockEntry entry) {
+            if (entry == null) {
+                return false;
+            }
+            this.acquiredLockEntry = entry;
+            this.acquiredGeneration = entry.getGeneration();
+            int sequenceIndex = IdLock.this.sequenceIndex(this.id);
+            if (this.shared) {
+                this.fencingToken = IdLock.this.writeSequences.get(sequenceIndex);
+            } else {
+                this.fencingToken = IdLock.this.writeSequences.incrementAndGet(sequenceIndex);
+            }
+
+            IdLockMetrics lockMetrics = IdLock.this.metrics;
+            if (lockMetrics != null && this.startNanos != 0) {
+                this.acquiredNanos = System.nanoTime();
+                lockMetrics.recordAcquisition(this.id, this.acquiredNanos - this.startNanos, this.contended);
+            }
+            return true;
+        }
+
+        /**
+         * Release the lock for the id. Locks acquired asynchronously can be released from any thread.
+         * @return true only if the current thread successfully unlocked a valid entry
+         *         cases where this might not be true are, if an exception was thrown during lock attempt, or if the
+         *         lock was removed, is invalid or is a new lock held by a different thread
+         */
+        @Override
+        public boolean unlock() {
+            final LockEntry entry = this.acquiredLockEntry;
+
+            // The generation check makes sure we do not touch an entry which expired and has been recycled since
+            if (entry == null || this.released || entry.getGeneration() != this.acquiredGeneration
+                || !this.isHolding(entry)) {
+                return false;
+            }
+
+            this.released = true;
+            if (this.heartbeat != null) {
+                this.heartbeat.cancel();
+            }
+            IdLockMetrics lockMetrics = IdLock.this.metrics;
+            if (lockMetrics != null && this.acquiredNanos != 0) {
+                lockMetrics.recordHold(System.nanoTime() - this.acquiredNanos);
+            }
+            boolean unlockSuccessful = entry.isValidFor(this.id);
+            IdLock.this.releaseEntry(entry, this.shared);
+            return unlockSuccessful;
+        }
+
+        /**
+         * Extends the lease of this lock: its auto release timeout starts again from now. Unlike {@link #unlock()},
+         * this can be called from any thread.
+         *
+         * @return true if the lease was extended, false if this instance does not hold the lock (anymore), for
+         *         instance because it expired and was taken over by another thread
+         */
+        public boolean renew() {
+            final LockEntry entry = this.acquiredLockEntry;
+            if (entry == null || this.released || entry.getGeneration() != this.acquiredGeneration
+                || !(this.shared ? entry.isReadLocked() : entry.isWriteLocked()) || !entry.isValidFor(this.id)) {
+                return false;
+            }
+            entry.setAcquiredTime(IdLock.this.currentTimeMillis());
+            // The entry might have been taken over just before the renewal
+            return entry.isValidFor(this.id);
+        }
+
+        /**
+         * Starts renewing the lease of this lock in the background, every third of the auto release timeout. Does
+         * nothing if auto release is disabled. See {@link #startHeartbeat(long, TimeUnit)}.
+         *
+         * @return this object
+         */
+        public Instance startHeartbeat() {
+            if (IdLock.this.autoReleaseTimeoutInMillis < 0) {
+                return this;
+            }
+            return this.startHeartbeat(Math.max(1, IdLock.this.autoReleaseTimeoutInMillis / 3), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Starts renewing the lease of this lock in the background, on the scheduler thread shared by all locks. The
+         * heartbeat stops when the lock is released, when a renewal fails, or when the holder is gone: the thread
+         * which started the heartbeat died (except for locks acquired asynchronously), or this instance got garbage
+         * collected without being released. The heartbeat is thus no obstacle to recovering locks from dead threads.
+         *
+         * @param period the time between two renewals, which should be well below the auto release timeout
+         * @param periodUnit the unit of the period
+         * @return this object
+         * @throws IllegalStateException if this instance does not hold the lock, or already has a heartbeat
+         */
+        public Instance startHeartbeat(long period, @NotNull TimeUnit periodUnit) {
+            if (this.acquiredLockEntry == null || this.released) {
+                throw new IllegalStateException("Lock is not held");
+            }
+            if (this.heartbeat != null) {
+                throw new IllegalStateException("Heartbeat already started");
+            }
+            this.heartbeat = new Heartbeat(this, this.future == null ? Thread.currentThread() : null);
+            this.heartbeat.start(period, periodUnit);
+            return this;
+        }
 
+        /**
+         * Returns the fencing token of this acquisition. For exclusive locks, the token is strictly greater than the
+         * token of any previous exclusive acquisition of the same id, including the one it might have taken over
+         * after expiry. Downstream systems can thus reject writes carrying a token lower than the highest one seen.
+         * Shared locks get the token of the last exclusive acquisition of the id.
+         *
+         * @return the fencing token, or zero if the lock was never acquired
+         */
+        public long getFencingToken() {
+            return this.fencingToken;
+        }
+
+        private boolean isHolding(LockEntry entry) {
+            if (this.shared) {
+                return entry.isReadLocked();
+            } else if (this.future != null) {
+                return entry.isWriteLocked();
+            } else {
+                return entry.isHeldByCurrentThread();
+            }
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
+        }
+    }
 }
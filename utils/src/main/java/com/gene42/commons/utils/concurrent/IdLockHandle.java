@@ -0,0 +1,45 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+/**
+ * Lock over a single id, as returned by an {@link IdLockProvider}. A handle is locked once and unlocked once, it
+ * cannot be reused. Closing the handle releases the lock, so it can be used in a try-with-resources block.
+ *
+ * @version $Id$
+ */
+public interface IdLockHandle extends Closeable {
+
+    /**
+     * Acquire lock on the id, with the default timeout of the provider.
+     *
+     * @return this object
+     * @throws LockException if the lock is not successful
+     */
+    IdLockHandle lock() throws LockException;
+
+    /**
+     * Acquire lock on the id. Try for the given timeout amount then fail.
+     *
+     * @param timeout the time value to attempt acquiring the lock before giving up
+     * @param timeoutUnit the time value unit to attempt acquiring the lock before giving up
+     * @return this object
+     * @throws LockException if the lock is not successful
+     */
+    IdLockHandle lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException;
+
+    /**
+     * Release the lock for the id.
+     *
+     * @return true if the lock was held by this handle and got released
+     */
+    boolean unlock();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,193 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Contention metrics of an {@link IdLock}, enabled with {@link IdLock#enableMetrics()}: wait and hold time
+ *     histograms (in nanoseconds), counts of acquisitions, failures and auto releases, and the ids which are the most
+ *     contended. Everything is recorded with striped counters or single compare and set operations, without any
+ *     global lock.
+ * </p>
+ * <p>
+ *     The most contended ids are tracked approximately, in a fixed number of slots: each id can use one of two slots
+ *     derived from its hash. When both are taken by other ids, the weaker of the two is decremented, and replaced once
+ *     it reaches zero. Ids which are contended often keep their slot, while rarely contended ones come and go.
+ * </p>
+ * @version $Id$
+ */
+public final class IdLockMetrics {
+
+    /* Number of slots used to track the most contended ids. */
+    public static final int CONTENDED_ID_SLOTS = 256;
+
+    private final LogHistogram waitTimes = new LogHistogram();
+    private final LogHistogram holdTimes = new LogHistogram();
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder autoReleases = new LongAdder();
+
+    private final AtomicReferenceArray<IdCounter> contendedIds = new AtomicReferenceArray<>(CONTENDED_ID_SLOTS);
+
+    IdLockMetrics() {
+        // Only created by IdLock
+    }
+
+    void recordAcquisition(String id, long waitNanos, boolean contended) {
+        this.acquisitions.increment();
+        this.waitTimes.record(waitNanos);
+        if (contended) {
+            this.contendedAcquisitions.increment();
+            this.countContention(id);
+        }
+    }
+
+    void recordHold(long holdNanos) {
+        this.holdTimes.record(holdNanos);
+    }
+
+    void recordFailure(String id) {
+        this.failures.increment();
+        this.countContention(id);
+    }
+
+    void recordAutoRelease() {
+        this.autoReleases.increment();
+    }
+
+    /**
+     * Returns the histogram of the time spent acquiring locks, in nanoseconds.
+     * @return the wait time histogram
+     */
+    public LogHistogram getWaitTimes() {
+        return this.waitTimes;
+    }
+
+    /**
+     * Returns the histogram of the time locks were held, in nanoseconds. Locks which are never released (and end up
+     * auto released) are not counted.
+     * @return the hold time histogram
+     */
+    public LogHistogram getHoldTimes() {
+        return this.holdTimes;
+    }
+
+    /**
+     * Returns the number of successful acquisitions.
+     * @return number of acquisitions
+     */
+    public long getAcquisitions() {
+        return this.acquisitions.sum();
+    }
+
+    /**
+     * Returns the number of successful acquisitions which had to wait for another holder.
+     * @return number of contended acquisitions
+     */
+    public long getContendedAcquisitions() {
+        return this.contendedAcquisitions.sum();
+    }
+
+    /**
+     * Returns the number of failed acquisitions, which ended with a {@link
+     * com.gene42.commons.utils.exceptions.LockException} because of a timeout or an interruption.
+     * @return number of failures
+     */
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    /**
+     * Returns the number of expired locks which were taken over or reaped.
+     * @return number of auto releases
+     */
+    public long getAutoReleases() {
+        return this.autoReleases.sum();
+    }
+
+    /**
+     * Returns the most contended ids (contended acquisitions and failures) with their approximate counts.
+     * @param limit the maximum number of ids to return
+     * @return a map from ids to counts, in decreasing order of counts
+     */
+    public Map<String, Long> getMostContendedIds(int limit) {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        for (int i = 0; i < CONTENDED_ID_SLOTS; i++) {
+            IdCounter counter = this.contendedIds.get(i);
+            long count = counter == null ? 0 : counter.count.get();
+            if (count > 0) {
+                counts.add(new AbstractMap.SimpleImmutableEntry<>(counter.id, count));
+            }
+        }
+        counts.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        counts.stream().limit(limit).forEach(entry -> result.put(entry.getKey(), entry.getValue()));
+        return result;
+    }
+
+    /**
+     * Returns a one line summary of the metrics, with times in milliseconds.
+     * @return a summary
+     */
+    @Override
+    public String toString() {
+        return String.format("acquisitions=%d contended=%d failures=%d autoReleases=%d "
+                + "wait(mean/p99)=%.3f/%.3fms hold(mean/p99)=%.3f/%.3fms",
+            this.getAcquisitions(), this.getContendedAcquisitions(), this.getFailures(), this.getAutoReleases(),
+            toMillis(this.waitTimes.getMean()), toMillis(this.waitTimes.getPercentile(99)),
+            toMillis(this.holdTimes.getMean()), toMillis(this.holdTimes.getPercentile(99)));
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private void countContention(String id) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        int firstIndex = hash & (CONTENDED_ID_SLOTS - 1);
+        int secondIndex = (hash >>> 16) & (CONTENDED_ID_SLOTS - 1);
+
+        IdCounter first = this.contendedIds.get(firstIndex);
+        if (first != null && first.id.equals(id)) {
+            first.count.incrementAndGet();
+            return;
+        }
+        IdCounter second = this.contendedIds.get(secondIndex);
+        if (second != null && second.id.equals(id)) {
+            second.count.incrementAndGet();
+            return;
+        }
+
+        if (first == null || second == null) {
+            // Losing the race for a free slot only loses one count
+            this.contendedIds.compareAndSet(first == null ? firstIndex : secondIndex, null, new IdCounter(id));
+            return;
+        }
+
+        boolean firstIsWeaker = first.count.get() <= second.count.get();
+        IdCounter weaker = firstIsWeaker ? first : second;
+        if (weaker.count.decrementAndGet() <= 0) {
+            this.contendedIds.compareAndSet(firstIsWeaker ? firstIndex : secondIndex, weaker, new IdCounter(id));
+        }
+    }
+
+    private static final class IdCounter {
+        private final String id;
+        private final AtomicLong count = new AtomicLong(1);
+
+        IdCounter(String id) {
+            this.id = id;
+        }
+    }
+}
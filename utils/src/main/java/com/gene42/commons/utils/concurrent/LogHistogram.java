@@ -0,0 +1,119 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non negative values (typically durations in nanoseconds) over power of two buckets. Bucket
+ * {@code i} counts the values between {@code 2^(i-1)} and {@code 2^i - 1}, bucket zero counts zeros. Recording only
+ * increments two striped counters, so it can be done from many threads without contention. The price is precision:
+ * percentiles are the upper bounds of their buckets, so they are accurate to a factor of two.
+ *
+ * @version $Id$
+ */
+public final class LogHistogram {
+
+    /* Number of buckets, enough for any positive long. */
+    public static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Constructor.
+     */
+    public LogHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * @param value the value to record
+     */
+    public void record(long value) {
+        long recorded = Math.max(value, 0L);
+        this.buckets[bucketOf(recorded)].increment();
+        this.sum.add(recorded);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * @return the number of values
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of the values recorded.
+     * @return the sum
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Returns the mean of the values recorded, which is exact (up to concurrent recordings).
+     * @return the mean, or zero if nothing was recorded
+     */
+    public double getMean() {
+        long count = this.getCount();
+        return count == 0 ? 0 : (double) this.getSum() / count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the values recorded, at most twice the actual value.
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, or zero if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = this.getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Returns a snapshot of the bucket counts. See the class documentation for the bucket bounds.
+     * @return an array of {@value #BUCKETS} counts
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the largest value counted in the given bucket.
+     * @param bucket the bucket index
+     * @return the upper bound of the bucket
+     */
+    public static long upperBound(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    private static int bucketOf(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+}
@@ -0,0 +1,501 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+/**
+ * <p>
+ *     Same as {@link IdLock}, for primitive {@code long} ids such as numeric database keys. Ids are never converted to
+ *     strings nor boxed: lock entries are kept in a segmented open addressing table keyed by the raw values, which
+ *     also takes a lot less memory per locked id than a {@link java.util.concurrent.ConcurrentHashMap}.
+ * </p>
+ * <p>
+ *     Timeouts, auto release and auto cleaning work as in {@link IdLock}: once its auto release timeout is over, a
+ *     lock can be taken over by a thread contending for it, and an id nobody waits for anymore is removed from the
+ *     table on unlock (the table shrinks back as well). Locks are exclusive and reentrant.
+ * </p>
+ * @version $Id$
+ */
+public class LongIdLock {
+
+    private static final String LOCK_ERROR_MESSAGE = "Could not establish lock for [%d]. Please try again.";
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+
+    private final long autoReleaseTimeoutInMillis;
+
+    /**
+     * Constructor.
+     */
+    public LongIdLock() {
+        this(IdLock.DEFAULT_TIMEOUT, IdLock.DEFAULT_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeout timeout value to use for all {@link LongIdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link LongIdLock.Instance#lock()} calls
+     */
+    public LongIdLock(long timeout, @NotNull TimeUnit timeoutUnit) {
+        this(timeout, timeoutUnit, IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT, IdLock.DEFAULT_AUTO_RELEASE_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeout timeout value to use for all {@link LongIdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link LongIdLock.Instance#lock()} calls
+     * @param autoReleaseTimeout time after which a held lock can be taken over by another thread (negative disables)
+     * @param autoReleaseTimeoutUnit the unit of the auto release timeout
+     */
+    public LongIdLock(long timeout, @NotNull TimeUnit timeoutUnit, long autoReleaseTimeout,
+        @NotNull TimeUnit autoReleaseTimeoutUnit) {
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+        this.autoReleaseTimeoutInMillis =
+            autoReleaseTimeout < 0 ? -1 : autoReleaseTimeoutUnit.toMillis(autoReleaseTimeout);
+
+        int segmentCount = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() * 4, 2) - 1) << 1;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment();
+        }
+        this.segmentShift = Integer.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    /**
+     * Get a new lock instance for the given id.
+     * @param id the id to lock
+     * @return a new (not yet locked) instance
+     */
+    public Instance getLock(long id) {
+        return new Instance(id);
+    }
+
+    /**
+     * Return the number of id locks currently being used (one entry per id).
+     * @return number of locks
+     */
+    public int getNumberOfLocks() {
+        int count = 0;
+        for (Segment segment : this.segments) {
+            count += segment.size;
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether or not the lock for the given id is expired.
+     *
+     * @param id the id of the lock
+     * @return an {@link Optional} containing the result. If empty it means that no lock for that id was found
+     */
+    public Optional<Boolean> isLockExpired(long id) {
+        int hash = hash(id);
+        Entry entry = this.segmentFor(hash).get(id, hash);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        return Optional.of(this.isExpired(entry));
+    }
+
+    private boolean isExpired(Entry entry) {
+        return this.autoReleaseTimeoutInMillis >= 0
+            && System.currentTimeMillis() > entry.getAcquiredTime() + this.autoReleaseTimeoutInMillis;
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segments[hash >>> this.segmentShift];
+    }
+
+    private static int hash(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Releases one hold of the given entry, held by the current thread. If this is the last hold and nobody is
+     * waiting on it, the entry is removed from the table and recycled.
+     */
+    private void releaseEntry(Entry entry) {
+        if (entry.getHoldCount() == 1 && entry.isValid() && !entry.hasQueuedThreads()) {
+            long id = entry.getId();
+            int hash = hash(id);
+            this.segmentFor(hash).remove(id, hash, entry);
+        }
+        entry.unlock();
+    }
+
+    /**
+     * One part of the table, guarded by its own monitor. Slots are probed linearly, and removals shift the following
+     * entries back so that no tombstones are needed. An entry is present in the table if and only if it is valid.
+     */
+    private static final class Segment {
+        private static final int INITIAL_CAPACITY = 16;
+        private static final int POOL_SIZE = 4;
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Entry[] entries = new Entry[INITIAL_CAPACITY];
+        private volatile int size;
+
+        private final Entry[] pool = new Entry[POOL_SIZE];
+        private int pooled;
+
+        synchronized Entry get(long id, int hash) {
+            int index = this.indexOf(id, hash);
+            return index >= 0 ? this.entries[index] : null;
+        }
+
+        /**
+         * Locks the entry of the given id without blocking, publishing a new one if there is none. The returned entry
+         * is held by the current thread only if the lock was acquired.
+         */
+        synchronized Entry tryLock(long id, int hash, long now) {
+            int index = this.indexOf(id, hash);
+            if (index >= 0) {
+                Entry entry = this.entries[index];
+                if (entry.tryLock()) {
+                    entry.setAcquiredTime(now);
+                }
+                return entry;
+            }
+            Entry entry = this.newLockedEntry(id, now);
+            this.insert(~index, id, entry);
+            return entry;
+        }
+
+        /**
+         * Replaces the given expired entry with a new one locked by the current thread.
+         *
+         * @return the new entry, or null if the expired entry was not in the table anymore
+         */
+        synchronized Entry takeOver(long id, int hash, Entry expiredEntry, long now) {
+            int index = this.indexOf(id, hash);
+            if (index < 0 || this.entries[index] != expiredEntry) {
+                return null;
+            }
+            expiredEntry.setValid(false);
+            Entry entry = this.newLockedEntry(id, now);
+            this.entries[index] = entry;
+            return entry;
+        }
+
+        synchronized void remove(long id, int hash, Entry entry) {
+            int index = this.indexOf(id, hash);
+            if (index < 0 || this.entries[index] != entry) {
+                return;
+            }
+            entry.setValid(false);
+            this.delete(index);
+            if (this.pooled < POOL_SIZE) {
+                this.pool[this.pooled++] = entry;
+            }
+        }
+
+        private Entry newLockedEntry(long id, long now) {
+            Entry entry = null;
+            if (this.pooled > 0) {
+                entry = this.pool[--this.pooled];
+                this.pool[this.pooled] = null;
+            }
+            // A pooled entry can still be briefly held by a thread which looked it up before it was recycled
+            if (entry == null || !entry.tryLock()) {
+                entry = new Entry();
+                entry.tryLock();
+            }
+            entry.reset(id, now);
+            return entry;
+        }
+
+        /**
+         * Returns the slot of the given id, or the binary complement of the free slot where it should be inserted.
+         */
+        private int indexOf(long id, int hash) {
+            int mask = this.keys.length - 1;
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                if (this.entries[i] == null) {
+                    return ~i;
+                }
+                if (this.keys[i] == id) {
+                    return i;
+                }
+            }
+        }
+
+        private void insert(int index, long id, Entry entry) {
+            this.keys[index] = id;
+            this.entries[index] = entry;
+            this.size++;
+            // Keep the load factor at or under one half, so that probe sequences stay short
+            if (this.size * 2 > this.keys.length) {
+                this.resize(this.keys.length * 2);
+            }
+        }
+
+        private void delete(int index) {
+            int mask = this.keys.length - 1;
+            int hole = index;
+            for (int i = (hole + 1) & mask; this.entries[i] != null; i = (i + 1) & mask) {
+                int home = hash(this.keys[i]) & mask;
+                // Move the entry back into the hole unless its home slot is cyclically within (hole, i]
+                boolean inRange = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+                if (!inRange) {
+                    this.keys[hole] = this.keys[i];
+                    this.entries[hole] = this.entries[i];
+                    hole = i;
+                }
+            }
+            this.entries[hole] = null;
+            this.size--;
+
+            if (this.keys.length > INITIAL_CAPACITY && this.size * 8 < this.keys.length) {
+                this.resize(this.keys.length / 2);
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = this.keys;
+            Entry[] oldEntries = this.entries;
+            this.keys = new long[capacity];
+            this.entries = new Entry[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldEntries.length; i++) {
+                if (oldEntries[i] != null) {
+                    int index = hash(oldKeys[i]) & mask;
+                    while (this.entries[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    this.keys[index] = oldKeys[i];
+                    this.entries[index] = oldEntries[i];
+                }
+            }
+        }
+    }
+
+    private static final class Entry extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = -3409178362581497725L;
+
+        private volatile long id;
+        private volatile long acquiredTime;
+        private volatile boolean valid;
+        private volatile int generation;
+
+        /**
+         * Re-initializes this entry for the given id. Must only be called while holding the entry.
+         */
+        void reset(long newId, long acquiredTimeValue) {
+            this.id = newId;
+            this.acquiredTime = acquiredTimeValue;
+            this.generation++;
+            this.valid = true;
+        }
+
+        long getId() {
+            return this.id;
+        }
+
+        long getAcquiredTime() {
+            return this.acquiredTime;
+        }
+
+        void setAcquiredTime(long acquiredTime) {
+            this.acquiredTime = acquiredTime;
+        }
+
+        boolean isValid() {
+            return this.valid;
+        }
+
+        boolean isValidFor(long lockId) {
+            return this.valid && this.id == lockId;
+        }
+
+        void setValid(boolean valid) {
+            this.valid = valid;
+        }
+
+        int getGeneration() {
+            return this.generation;
+        }
+
+        int getHoldCount() {
+            return this.getState();
+        }
+
+        boolean isHeldByCurrentThread() {
+            return this.isHeldExclusively();
+        }
+
+        boolean tryLock() {
+            return this.tryAcquire(1);
+        }
+
+        boolean tryLock(long nanos) throws InterruptedException {
+            return this.tryAcquireNanos(1, nanos);
+        }
+
+        void unlock() {
+            this.release(1);
+        }
+
+        @Override
+        protected boolean tryAcquire(int acquires) {
+            Thread current = Thread.currentThread();
+            int state = this.getState();
+            if (state == 0) {
+                if (this.compareAndSetState(0, acquires)) {
+                    this.setExclusiveOwnerThread(current);
+                    return true;
+                }
+            } else if (current == this.getExclusiveOwnerThread()) {
+                this.setState(state + acquires);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int releases) {
+            int state = this.getState() - releases;
+            boolean free = state == 0;
+            if (free) {
+                this.setExclusiveOwnerThread(null);
+            }
+            this.setState(state);
+            return free;
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return this.getExclusiveOwnerThread() == Thread.currentThread();
+        }
+    }
+
+    /**
+     * {@link Closeable} instance of a {@link LongIdLock}.
+     */
+    public final class Instance implements Closeable {
+
+        private final long id;
+        private Entry acquiredEntry;
+        private int acquiredGeneration;
+        private boolean released;
+
+        private Instance(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Acquire lock on the id.
+         *
+         * @return this object
+         * @throws LockException if the lock is not successful
+         */
+        public Instance lock() throws LockException {
+            return this.lock(LongIdLock.this.timeout, LongIdLock.this.timeoutUnit);
+        }
+
+        /**
+         * Acquire lock on the id. Try for the given timeout amount then fail.
+         *
+         * @param timeout the time value to attempt acquiring the lock before giving up
+         * @param timeoutUnit the time value unit to attempt acquiring the lock before giving up
+         * @return this object
+         * @throws LockException if the lock is not successful
+         */
+        public Instance lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException {
+            if (this.acquiredEntry != null) {
+                throw new LockException("You cannot reuse a lock Instance");
+            }
+
+            final long deadline = System.nanoTime() + timeoutUnit.toNanos(timeout);
+            final int hash = hash(this.id);
+            final Segment segment = LongIdLock.this.segmentFor(hash);
+
+            // Same as in IdLock: the entry might be removed (or recycled for another id) between getting it and
+            // locking it, in which case we retry until we succeed or the time runs out
+            do {
+                Entry entry = segment.tryLock(this.id, hash, System.currentTimeMillis());
+
+                if (entry.isHeldByCurrentThread()) {
+                    this.setAcquired(entry);
+                    return this;
+                }
+
+                if (LongIdLock.this.isExpired(entry)) {
+                    // The holder did not release the lock in time, take it over
+                    Entry newEntry = segment.takeOver(this.id, hash, entry, System.currentTimeMillis());
+                    if (newEntry != null) {
+                        this.setAcquired(newEntry);
+                        return this;
+                    }
+                    continue;
+                }
+
+                if (this.awaitEntry(entry, deadline - System.nanoTime())) {
+                    if (entry.isValidFor(this.id)) {
+                        entry.setAcquiredTime(System.currentTimeMillis());
+                        this.setAcquired(entry);
+                        return this;
+                    }
+                    // Lock entry is not valid (anymore) for this id, we need to retry
+                    LongIdLock.this.releaseEntry(entry);
+                } else if (entry.isValidFor(this.id)) {
+                    // If the entry is valid and we don't have a lock, we failed to get the lock
+                    break;
+                }
+            } while (deadline - System.nanoTime() > 0);
+
+            throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
+        }
+
+        private boolean awaitEntry(Entry entry, long remainingNanos) throws LockException {
+            try {
+                return entry.tryLock(remainingNanos);
+            } catch (InterruptedException e) {
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id), e);
+            }
+        }
+
+        private void setAcquired(Entry entry) {
+            this.acquiredEntry = entry;
+            this.acquiredGeneration = entry.getGeneration();
+        }
+
+        /**
+         * Release the lock for the id.
+         * @return true only if the current thread successfully unlocked a valid entry, see
+         *         {@link IdLock.Instance#unlock()}
+         */
+        public boolean unlock() {
+            final Entry entry = this.acquiredEntry;
+
+            // The generation check makes sure we do not touch an entry which expired and has been recycled since
+            if (entry == null || this.released || entry.getGeneration() != this.acquiredGeneration
+                || !entry.isHeldByCurrentThread()) {
+                return false;
+            }
+
+            this.released = true;
+            boolean unlockSuccessful = entry.isValidFor(this.id);
+            LongIdLock.this.releaseEntry(entry);
+            return unlockSuccessful;
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
+        }
+    }
+}
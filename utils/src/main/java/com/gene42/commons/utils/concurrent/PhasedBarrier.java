@@ -0,0 +1,150 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-party variant of {@link ContinueBarrier}: a fixed number of parties repeatedly wait for each other. Each phase
+ * ends when all the parties arrived, at which point they all continue, and the next phase starts. How the parties
+ * wait is set by a {@link WaitStrategy}, as for {@link ContinueBarrier}.
+ *
+ * A party which stops waiting (because of a timeout or an interruption) still counts as arrived for the phase, as
+ * with {@link java.util.concurrent.Phaser}: the phase ends when the other parties arrive.
+ *
+ * @version $Id$
+ */
+public class PhasedBarrier {
+    private final int parties;
+    private final WaitStrategy waitStrategy;
+    // The phase in the high half, and the number of parties which arrived for it in the low half, so that the last
+    // party ends the phase and resets the count at once: no arrival can slip in between and be counted for the old one
+    private final AtomicLong state = new AtomicLong();
+    // Threads which parked (or are about to), unparked when the phase ends. Stale ones only get a spurious wake up.
+    private final ConcurrentLinkedQueue<Thread> parkedThreads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor, with the {@link WaitStrategy#BLOCKING} wait strategy.
+     *
+     * @param parties the number of parties
+     */
+    public PhasedBarrier(int parties) {
+        this(parties, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parties the number of parties
+     * @param waitStrategy how parties wait for the others
+     */
+    public PhasedBarrier(int parties, WaitStrategy waitStrategy) {
+        if (parties < 1) {
+            throw new IllegalArgumentException("The number of parties must be positive");
+        }
+        this.parties = parties;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Arrive at the barrier and block until all the other parties arrived too.
+     *
+     * @return the number of the phase which just ended
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public int arriveAndAwait() throws InterruptedException {
+        int arrivedPhase = this.arrive();
+        this.await(arrivedPhase, -1);
+        return arrivedPhase;
+    }
+
+    /**
+     * Arrive at the barrier and block until all the other parties arrived too, or the time runs out.
+     *
+     * @param timeout the time value to wait for before giving up
+     * @param timeUnit the unit of time for the timeout
+     *
+     * @return true if all the parties arrived within the time frame, false otherwise
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public boolean arriveAndAwait(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        int arrivedPhase = this.arrive();
+        return this.await(arrivedPhase, Math.max(timeUnit.toNanos(timeout), 0));
+    }
+
+    /**
+     * Returns the number of the current phase, starting at zero. It wraps around after {@link Integer#MAX_VALUE}.
+     * @return the phase number
+     */
+    public int getPhase() {
+        return phaseOf(this.state.get());
+    }
+
+    /**
+     * Returns the number of parties.
+     * @return number of parties
+     */
+    public int getParties() {
+        return this.parties;
+    }
+
+    /**
+     * Returns the wait strategy of this barrier.
+     * @return the wait strategy
+     */
+    public WaitStrategy getWaitStrategy() {
+        return this.waitStrategy;
+    }
+
+    /**
+     * Counts an arrival for the current phase, ending it if it is the last one.
+     * @return the phase the arrival was counted for
+     */
+    private int arrive() {
+        long current;
+        boolean last;
+        do {
+            current = this.state.get();
+            last = (int) current + 1 >= this.parties;
+        } while (!this.state.compareAndSet(current, last ? (long) (phaseOf(current) + 1) << 32 : current + 1));
+
+        if (last) {
+            Thread waiter;
+            while ((waiter = this.parkedThreads.poll()) != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return phaseOf(current);
+    }
+
+    private static int phaseOf(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private boolean await(int arrivedPhase, long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        for (int round = 0;; round++) {
+            if (this.getPhase() != arrivedPhase) {
+                return true;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remainingNanos = timeoutNanos < 0 ? -1 : deadline - System.nanoTime();
+            if (timeoutNanos >= 0 && remainingNanos <= 0) {
+                return false;
+            }
+
+            if (!this.waitStrategy.shouldPark(round)) {
+                this.waitStrategy.idle(round);
+                continue;
+            }
+            // Publish ourselves before checking again, so that a phase ending in between unparks us
+            this.parkedThreads.offer(Thread.currentThread());
+            if (this.getPhase() == arrivedPhase) {
+                WaitStrategy.park(this, remainingNanos);
+            }
+        }
+    }
+}
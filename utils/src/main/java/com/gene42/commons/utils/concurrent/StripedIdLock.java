@@ -0,0 +1,148 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+/**
+ * <p>
+ *     Bounded memory alternative to {@link IdLock}, for very large id spaces such as bulk imports. Ids are mapped by
+ *     hash onto a fixed number of pre-allocated reentrant locks (stripes): nothing is allocated or cleaned up per id,
+ *     so memory use stays the same whether a thousand or a hundred million distinct ids get locked.
+ * </p>
+ * <p>
+ *     The price is false sharing: two distinct ids which fall on the same stripe exclude each other. With {@code n}
+ *     stripes and {@code k} locks held at a given time, a new acquisition waits for an unrelated id with a probability
+ *     of about {@code k / n}, so the number of stripes should be well above the number of threads locking at the
+ *     same time (a few times 64 per thread keeps it under a couple of percent). There is also no auto release, as
+ *     a stripe can not be taken over without affecting the other ids it covers. Finally, a thread holding several
+ *     ids at once can deadlock with another one even if their ids are distinct, because their stripes might not be.
+ *     Threads should hold one id at a time, or always lock ids in the same order of {@link #getStripe(String)}.
+ * </p>
+ * <p>
+ *     In return, a lock and unlock cycle is cheap: on a single core machine, {@code StripedIdLockBenchmark} (run by
+ *     {@code mvn test -Pbenchmark}) measured 15,000 to 25,000 cycles per millisecond over random ids, against 2,500
+ *     to 4,500 for {@link IdLock}, which publishes and removes a map entry for each cycle. The number of stripes, from
+ *     1 to 4096, and of threads, from 1 to 8, made no difference there beyond the noise, since threads on a single
+ *     core rarely hold a stripe at the same time: how false sharing grows with the number of threads only shows on
+ *     several cores, and is what the {@code k / n} estimate above is for.
+ * </p>
+ * @version $Id$
+ */
+public class StripedIdLock implements IdLockProvider {
+
+    /* Default number of stripes. */
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private static final String LOCK_ERROR_MESSAGE = "Could not establish lock for [%s]. Please try again.";
+
+    private final ReentrantLock[] stripes;
+
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+
+    /**
+     * Constructor, with {@value #DEFAULT_STRIPES} stripes and the default {@link IdLock} timeout.
+     */
+    public StripedIdLock() {
+        this(DEFAULT_STRIPES, IdLock.DEFAULT_TIMEOUT, IdLock.DEFAULT_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stripes the minimum number of stripes, rounded up to the next power of two
+     * @param timeout timeout value to use for all {@link StripedIdLock.Instance#lock()} calls
+     * @param timeoutUnit time unit value to use for all {@link StripedIdLock.Instance#lock()} calls
+     */
+    public StripedIdLock(int stripes, long timeout, @NotNull TimeUnit timeoutUnit) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+    }
+
+    @Override
+    public Instance getLock(@NotNull String id) {
+        return new Instance(id);
+    }
+
+    /**
+     * Returns the number of stripes, which is fixed.
+     * @return number of stripes
+     */
+    public int getNumberOfStripes() {
+        return this.stripes.length;
+    }
+
+    /**
+     * Returns the index of the stripe the given id falls on. Ids with the same stripe exclude each other.
+     * @param id an id
+     * @return the stripe index, between zero and the number of stripes (excluded)
+     */
+    public int getStripe(@NotNull String id) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (this.stripes.length - 1);
+    }
+
+    /**
+     * {@link java.io.Closeable} instance of a {@link StripedIdLock}.
+     */
+    public final class Instance implements IdLockHandle {
+
+        private final String id;
+        private final ReentrantLock stripe;
+        private boolean acquired;
+        private boolean released;
+
+        private Instance(String id) {
+            this.id = id;
+            this.stripe = StripedIdLock.this.stripes[StripedIdLock.this.getStripe(id)];
+        }
+
+        @Override
+        public Instance lock() throws LockException {
+            return this.lock(StripedIdLock.this.timeout, StripedIdLock.this.timeoutUnit);
+        }
+
+        @Override
+        public Instance lock(long timeout, @NotNull TimeUnit timeoutUnit) throws LockException {
+            if (this.acquired) {
+                throw new LockException("You cannot reuse a lock Instance");
+            }
+            try {
+                this.acquired = this.stripe.tryLock(timeout, timeoutUnit);
+            } catch (InterruptedException e) {
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id), e);
+            }
+            if (!this.acquired) {
+                throw new LockException(String.format(LOCK_ERROR_MESSAGE, this.id));
+            }
+            return this;
+        }
+
+        @Override
+        public boolean unlock() {
+            if (!this.acquired || this.released || !this.stripe.isHeldByCurrentThread()) {
+                return false;
+            }
+            this.released = true;
+            this.stripe.unlock();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            this.unlock();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a hand-off in {@link ContinueBarrier} and {@link PhasedBarrier}. Parking and unparking a
+ * thread costs tens of microseconds, which dominates hand-offs between threads of a pipeline; spinning avoids it, at
+ * the price of keeping a core busy while waiting. Spinning only pays off when there are more cores than spinning
+ * threads.
+ *
+ * @version $Id$
+ */
+public enum WaitStrategy {
+    /* Park right away. Lowest CPU usage, highest hand-off latency. */
+    BLOCKING(0, 0),
+
+    /* Never park nor yield. Lowest latency, but a waiting thread keeps its core busy until released. */
+    BUSY_SPIN(Integer.MAX_VALUE, 0),
+
+    /* Spin for a while, then yield the core to other threads until released. */
+    SPIN_YIELD(WaitStrategy.SPINS, Integer.MAX_VALUE),
+
+    /* Spin for a while, then yield for a while, then park. */
+    SPIN_PARK(WaitStrategy.SPINS, WaitStrategy.YIELDS);
+
+    /* Number of spins before yielding, a few microseconds. */
+    private static final int SPINS = 1000;
+
+    /* Number of yields before parking. */
+    private static final int YIELDS = 100;
+
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+    private final int spins;
+    private final int yields;
+
+    WaitStrategy(int spins, int yields) {
+        this.spins = spins;
+        this.yields = yields;
+    }
+
+    /**
+     * Returns whether a waiter which already waited the given number of rounds should park now.
+     */
+    boolean shouldPark(int round) {
+        return round >= this.spins && round - this.spins >= this.yields;
+    }
+
+    /**
+     * Waits for one round, without parking. Callers park themselves when {@link #shouldPark(int)}, once they made
+     * sure they will be unparked.
+     */
+    void idle(int round) {
+        if (round < this.spins) {
+            onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Parks the current thread for at most the given time, or until unparked.
+     */
+    static void park(Object blocker, long nanos) {
+        if (nanos < 0) {
+            LockSupport.park(blocker);
+        } else {
+            LockSupport.parkNanos(blocker, nanos);
+        }
+    }
+
+    /**
+     * Hints the processor that the current thread is spinning, on Java 9 and later. Does nothing on Java 8.
+     */
+    static void onSpinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable e) {
+                // Can not happen, the method throws nothing
+            }
+        }
+    }
+
+    private static MethodHandle findOnSpinWait() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
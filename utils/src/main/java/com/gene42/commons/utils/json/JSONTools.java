@@ -7,7 +7,9 @@
  */
 package com.gene42.commons.utils.json;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -148,6 +150,41 @@ public static String getValue(JSONObject inputJSONObj, String key, String defaul
         }
     }
 
+    /**
+     * Returns a deep copy of the given JSONObject, which shares no JSONObject or JSONArray with it. Nested maps,
+     * collections and arrays are copied as JSONObjects and JSONArrays, other values (strings, numbers...) are
+     * shared, or wrapped like {@link JSONObject#wrap(Object)} does. This is much cheaper than serializing and
+     * parsing the object back.
+     * <p>
+     * Warning: This method assumes that the data structure is acyclical.
+     *
+     * @param object the JSONObject to copy
+     * @return a new JSONObject
+     */
+    public static JSONObject deepCopy(JSONObject object)
+    {
+        JSONObject copy = new JSONObject();
+        for (String key : object.keySet()) {
+            copy.put(key, copyValue(object.opt(key)));
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a deep copy of the given JSONArray, see {@link #deepCopy(JSONObject)}.
+     *
+     * @param array the JSONArray to copy
+     * @return a new JSONArray
+     */
+    public static JSONArray deepCopy(JSONArray array)
+    {
+        JSONArray copy = new JSONArray();
+        for (Object element : array) {
+            copy.put(copyValue(element));
+        }
+        return copy;
+    }
+
     /**
      * Returns a java.util.List containing all of the elements in the JSONArray.
      * If an element in the array is a JSONArray, JSONObject or Map it will also
@@ -175,4 +212,32 @@ public static List<Object> jsonArrayToList(JSONArray array, boolean deepCopy) {
         }
         return results;
     }
+
+    private static Object copyValue(Object value)
+    {
+        if (value instanceof JSONObject) {
+            return deepCopy((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return deepCopy((JSONArray) value);
+        } else if (value instanceof Map) {
+            JSONObject copy = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(String.valueOf(entry.getKey()), copyValue(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof Collection) {
+            JSONArray copy = new JSONArray();
+            for (Object element : (Collection<?>) value) {
+                copy.put(copyValue(element));
+            }
+            return copy;
+        } else if (value != null && value.getClass().isArray()) {
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < Array.getLength(value); i++) {
+                copy.put(copyValue(Array.get(value, i)));
+            }
+            return copy;
+        }
+        return value == null ? JSONObject.NULL : JSONObject.wrap(value);
+    }
 }
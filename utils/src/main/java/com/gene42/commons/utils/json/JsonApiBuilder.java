@@ -7,9 +7,16 @@
  */
 package com.gene42.commons.utils.json;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.builder.Builder;
@@ -17,7 +24,14 @@
 import org.json.JSONObject;
 
 /**
- * Builder class for a JSON API Response Object.
+ * Builder class for a JSON API Response Object. Each call to {@link #build()} returns a new object, which shares
+ * nothing with the builder, so that the builder can be reused, and the result modified. Large documents should be
+ * written with {@link #writeTo(OutputStream)} rather than built: resources are then built and written one at a
+ * time, and the document is never held in memory as a whole.
+ *
+ * List endpoints can set their data to one page of a lazy source of resources with
+ * {@link #setDataPage(Stream, int, int, LongSupplier)}: only the resources of the page are pulled and built, when
+ * the document is built or written, and the page is described in the meta object.
  *
  * @version $Id$
  */
@@ -35,12 +49,26 @@ public class JsonApiBuilder implements Builder<JSONObject>
     /** JSON API Field. */
     public static final String META_FIELD = "meta";
 
+    /** Meta key for the offset of a page of data. */
+    public static final String OFFSET_KEY = "offset";
+
+    /** Meta key for the maximum number of resources in a page of data. */
+    public static final String LIMIT_KEY = "limit";
+
+    /** Meta key for the total number of resources a page of data is taken from. */
+    public static final String TOTAL_KEY = "total";
+
+    /** Meta key for the number of resources in a page of data. */
+    public static final String RETURNED_KEY = "returned";
+
 
     private JSONObject meta = new JSONObject();
     private List<Builder<JSONObject>> data = new LinkedList<>();
     private List<Builder<JSONObject>> included = new LinkedList<>();
     private List<Builder<JSONObject>> errors = new LinkedList<>();
 
+    private Page page;
+
     private boolean singleResourceMode;
 
     /**
@@ -56,6 +84,61 @@ public JsonApiBuilder addData(JsonApiResourceBuilder data)
         return this;
     }
 
+    /**
+     * Sets the data to a page of the given resources, instead of the ones added with
+     * {@link #addData(JsonApiResourceBuilder)}. Nothing is pulled from the iterator until the document is built or
+     * written, which can then only be done once: the resources before the page are skipped without being built, and
+     * the ones after it are never pulled. The meta object gets the {@value #OFFSET_KEY} and {@value #LIMIT_KEY} of
+     * the page, the number of resources {@value #RETURNED_KEY}, and the {@value #TOTAL_KEY} number of resources if a
+     * count supplier is given. The data is an empty array if the page is empty, or missing if there are errors. In
+     * single resource mode, only the first resource of the page is pulled.
+     * @param data the resources to page through
+     * @param offset the number of resources to skip
+     * @param limit the maximum number of resources in the page, or a negative number for no limit
+     * @param totalCount supplies the total number of resources, called once the page is read, can be null
+     * @return this object
+     */
+    public JsonApiBuilder setDataPage(Iterator<? extends JsonApiResourceBuilder> data, int offset, int limit,
+        LongSupplier totalCount)
+    {
+        if (offset < 0) {
+            throw new IllegalArgumentException("The offset cannot be negative: " + offset);
+        }
+        this.page = data == null ? null : new Page(data, offset, limit, totalCount);
+        return this;
+    }
+
+    /**
+     * Sets the data to a page of the given resources, see
+     * {@link #setDataPage(Iterator, int, int, LongSupplier)}. The stream is not closed.
+     * @param data the resources to page through
+     * @param offset the number of resources to skip
+     * @param limit the maximum number of resources in the page, or a negative number for no limit
+     * @param totalCount supplies the total number of resources, called once the page is read, can be null
+     * @return this object
+     */
+    public JsonApiBuilder setDataPage(Stream<? extends JsonApiResourceBuilder> data, int offset, int limit,
+        LongSupplier totalCount)
+    {
+        return this.setDataPage(data == null ? null : data.iterator(), offset, limit, totalCount);
+    }
+
+    /**
+     * Sets the data to a page of the given resources, see
+     * {@link #setDataPage(Iterator, int, int, LongSupplier)}, taking the page from the {@value #OFFSET_KEY} (0 by
+     * default) and {@value #LIMIT_KEY} (no limit by default) of the given parameters.
+     * @param data the resources to page through
+     * @param parameters the parameters of the request, can be null
+     * @param totalCount supplies the total number of resources, called once the page is read, can be null
+     * @return this object
+     */
+    public JsonApiBuilder setDataPage(Stream<? extends JsonApiResourceBuilder> data, JSONObject parameters,
+        LongSupplier totalCount)
+    {
+        JSONObject page = parameters == null ? new JSONObject() : parameters;
+        return this.setDataPage(data, page.optInt(OFFSET_KEY, 0), page.optInt(LIMIT_KEY, -1), totalCount);
+    }
+
     /**
      * Adds the given Resource Builder to the included list.
      * @param included the resource builder to add
@@ -125,9 +208,13 @@ public JsonApiBuilder setSingleResourceMode(boolean singleResourceMode)
     public JSONObject build()
     {
         JSONObject result = new JSONObject();
+        JSONObject resultMeta = JSONTools.deepCopy(this.meta);
 
         if (CollectionUtils.isEmpty(this.errors)) {
-            if (this.singleResourceMode && !this.data.isEmpty()) {
+            if (this.page != null) {
+                this.buildPage(result);
+                this.page.putMeta(resultMeta, true);
+            } else if (this.singleResourceMode && !this.data.isEmpty()) {
                 result.put(DATA_FIELD, this.data.get(0).build());
             } else {
                 addCollection(DATA_FIELD, result, this.data);
@@ -137,17 +224,130 @@ public JSONObject build()
         addCollection(INCLUDED_FIELD, result, this.included);
         addCollection(ERRORS_FIELD, result, this.errors);
 
-        if (this.meta.length() > 0) {
-            result.put(META_FIELD, this.meta);
+        if (resultMeta.length() > 0) {
+            result.put(META_FIELD, resultMeta);
         }
 
-        return new JSONObject(result.toString());
+        return result;
+    }
+
+    /**
+     * Writes the JSON API document to the given stream, as UTF-8, building one resource at a time.
+     * @param outputStream the stream to write to, which is flushed but not closed
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(OutputStream outputStream) throws IOException
+    {
+        JsonStreamWriter writer = new JsonStreamWriter(outputStream);
+        this.writeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the JSON API document to the given Writer, building one resource at a time.
+     * @param writer the Writer to write to, which is flushed but not closed. It should be buffered
+     * @throws IOException if the Writer fails
+     */
+    public void writeTo(Writer writer) throws IOException
+    {
+        JsonStreamWriter jsonWriter = new JsonStreamWriter(writer);
+        this.writeTo(jsonWriter);
+        jsonWriter.flush();
     }
 
+    /**
+     * Returns the document as a string, for debugging purposes. A page of data set with
+     * {@link #setDataPage(Iterator, int, int, LongSupplier)} is left unread, since it can only be read once: the data
+     * field is left out, and the meta object only gets the {@value #OFFSET_KEY} and {@value #LIMIT_KEY} of the page.
+     * @return the document
+     */
     @Override
     public String toString()
     {
-        return this.build().toString();
+        if (this.page == null) {
+            return this.build().toString();
+        }
+
+        JSONObject result = new JSONObject();
+        addCollection(INCLUDED_FIELD, result, this.included);
+        addCollection(ERRORS_FIELD, result, this.errors);
+        JSONObject resultMeta = JSONTools.deepCopy(this.meta);
+        if (CollectionUtils.isEmpty(this.errors)) {
+            this.page.putMeta(resultMeta, false);
+        }
+        if (resultMeta.length() > 0) {
+            result.put(META_FIELD, resultMeta);
+        }
+        return result.toString();
+    }
+
+    private void writeTo(JsonStreamWriter writer) throws IOException
+    {
+        writer.beginObject();
+        JSONObject documentMeta = this.meta;
+
+        if (CollectionUtils.isEmpty(this.errors)) {
+            if (this.page != null) {
+                writePage(writer);
+                documentMeta = JSONTools.deepCopy(this.meta);
+                this.page.putMeta(documentMeta, true);
+            } else if (this.singleResourceMode && !this.data.isEmpty()) {
+                writer.name(DATA_FIELD).value(this.data.get(0).build());
+            } else {
+                writeCollection(DATA_FIELD, writer, this.data);
+            }
+        }
+
+        writeCollection(INCLUDED_FIELD, writer, this.included);
+        writeCollection(ERRORS_FIELD, writer, this.errors);
+
+        // The meta object comes last, once the page is counted
+        if (documentMeta.length() > 0) {
+            writer.name(META_FIELD).value(documentMeta);
+        }
+
+        writer.endObject();
+    }
+
+    private void buildPage(JSONObject result)
+    {
+        Iterator<Builder<JSONObject>> resources = this.page.open();
+        if (this.singleResourceMode && resources.hasNext()) {
+            result.put(DATA_FIELD, resources.next().build());
+            return;
+        }
+        JSONArray array = new JSONArray();
+        while (resources.hasNext()) {
+            array.put(resources.next().build());
+        }
+        result.put(DATA_FIELD, array);
+    }
+
+    private void writePage(JsonStreamWriter writer) throws IOException
+    {
+        Iterator<Builder<JSONObject>> resources = this.page.open();
+        writer.name(DATA_FIELD);
+        if (this.singleResourceMode && resources.hasNext()) {
+            writer.value(resources.next().build());
+            return;
+        }
+        writer.beginArray();
+        while (resources.hasNext()) {
+            writer.value(resources.next().build());
+        }
+        writer.endArray();
+    }
+
+    private static void writeCollection(String key, JsonStreamWriter writer, Collection<Builder<JSONObject>> builders)
+        throws IOException
+    {
+        if (CollectionUtils.isNotEmpty(builders)) {
+            writer.name(key).beginArray();
+            for (Builder<JSONObject> builder : builders) {
+                writer.value(builder.build());
+            }
+            writer.endArray();
+        }
     }
 
     private static void addCollection(String key, JSONObject result, Collection<Builder<JSONObject>> builders)
@@ -160,4 +360,74 @@ private static void addCollection(String key, JSONObject result, Collection<Buil
             result.put(key, array);
         }
     }
+
+    /**
+     * A window over a lazy source of resources, which skips the resources before it when opened, and counts the
+     * resources it returns.
+     */
+    private static final class Page implements Iterator<Builder<JSONObject>>
+    {
+        private final Iterator<? extends Builder<JSONObject>> resources;
+        private final int offset;
+        private final int limit;
+        private final LongSupplier totalCount;
+
+        private boolean opened;
+        private int returned;
+
+        Page(Iterator<? extends Builder<JSONObject>> resources, int offset, int limit, LongSupplier totalCount)
+        {
+            this.resources = resources;
+            this.offset = offset;
+            this.limit = limit;
+            this.totalCount = totalCount;
+        }
+
+        Iterator<Builder<JSONObject>> open()
+        {
+            if (this.opened) {
+                throw new IllegalStateException("A page of data can only be built or written once");
+            }
+            this.opened = true;
+            for (int i = 0; i < this.offset && this.resources.hasNext(); i++) {
+                this.resources.next();
+            }
+            return this;
+        }
+
+        /**
+         * Puts the offset and limit of this page in the given meta object, and if it was read, the number of
+         * resources returned and the total number of resources.
+         */
+        void putMeta(JSONObject meta, boolean read)
+        {
+            meta.put(OFFSET_KEY, this.offset);
+            if (this.limit >= 0) {
+                meta.put(LIMIT_KEY, this.limit);
+            }
+            if (!read) {
+                return;
+            }
+            meta.put(RETURNED_KEY, this.returned);
+            if (this.totalCount != null) {
+                meta.put(TOTAL_KEY, this.totalCount.getAsLong());
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return (this.limit < 0 || this.returned < this.limit) && this.resources.hasNext();
+        }
+
+        @Override
+        public Builder<JSONObject> next()
+        {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.returned++;
+            return this.resources.next();
+        }
+    }
 }
@@ -240,11 +240,11 @@ public JsonApiErrorBuilder setSourceParameter(String sourceParameter)
     /**
      * Getter for meta.
      *
-     * @return meta
+     * @return a copy of meta
      */
     public JSONObject getMeta()
     {
-        return new JSONObject(this.meta.toString());
+        return JSONTools.deepCopy(this.meta);
     }
 
 
@@ -12,7 +12,8 @@
 import org.json.JSONObject;
 
 /**
- * Builder class for a JSON API Resource Object.
+ * Builder class for a JSON API Resource Object. Each call to {@link #build()} returns a new object, which shares
+ * nothing with the builder, so that the builder can be reused, and the result modified.
  *
  * @version $Id$
  */
@@ -174,18 +175,18 @@ public JSONObject build()
         resource.put(TYPE_FIELD, this.type);
 
         if (this.attributes.length() > 0) {
-            resource.put(ATTRIBUTES_FIELD, this.attributes);
+            resource.put(ATTRIBUTES_FIELD, JSONTools.deepCopy(this.attributes));
         }
 
         if (this.links.length() > 0) {
-            resource.put(LINKS_FIELD, this.links);
+            resource.put(LINKS_FIELD, JSONTools.deepCopy(this.links));
         }
 
         if (this.relationships.length() > 0) {
-            resource.put(RELATIONSHIPS_FIELD, this.relationships);
+            resource.put(RELATIONSHIPS_FIELD, JSONTools.deepCopy(this.relationships));
         }
 
-        return new JSONObject(resource.toString());
+        return resource;
     }
 
     @Override
@@ -0,0 +1,353 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils.json;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.json.JSONString;
+
+/**
+ * Writes a JSON document to a Writer as it goes, without ever holding it in memory. Strings are escaped in a single
+ * pass, copying the runs of characters which need no escaping as is. Values can be written one at a time, or whole
+ * JSONObjects, JSONArrays, maps, collections and arrays can be written through {@link #value(Object)}, which walks
+ * them the way org.json serializes them, without building their string representation.
+ *
+ * Commas and colons are written as needed. Misuse, such as a value in an object without a name, or closing an array
+ * which is not open, is reported with an IllegalStateException.
+ *
+ * @version $Id$
+ */
+public class JsonStreamWriter implements Closeable, Flushable
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int INITIAL_DEPTH = 16;
+
+    private final Writer writer;
+
+    /* For each open container, whether it is an array, and whether it already has an element. */
+    private boolean[] arrays = new boolean[INITIAL_DEPTH];
+    private boolean[] hasElements = new boolean[INITIAL_DEPTH];
+    private int depth;
+    private boolean nameWritten;
+
+    /**
+     * Constructor.
+     * @param writer the Writer to write to, which should be buffered
+     */
+    public JsonStreamWriter(Writer writer)
+    {
+        this.writer = writer;
+    }
+
+    /**
+     * Constructor, writing UTF-8 through a buffer.
+     * @param outputStream the stream to write to
+     */
+    public JsonStreamWriter(OutputStream outputStream)
+    {
+        this(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Opens an object.
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter beginObject() throws IOException
+    {
+        return this.open(false, '{');
+    }
+
+    /**
+     * Closes the current object.
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter endObject() throws IOException
+    {
+        return this.close(false, '}');
+    }
+
+    /**
+     * Opens an array.
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter beginArray() throws IOException
+    {
+        return this.open(true, '[');
+    }
+
+    /**
+     * Closes the current array.
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter endArray() throws IOException
+    {
+        return this.close(true, ']');
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     * @param name the name
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter name(String name) throws IOException
+    {
+        if (this.depth == 0 || this.arrays[this.depth - 1] || this.nameWritten) {
+            throw new IllegalStateException("A name can only be written in an object, before its value");
+        }
+        if (this.hasElements[this.depth - 1]) {
+            this.writer.write(',');
+        }
+        this.hasElements[this.depth - 1] = true;
+        this.writeString(name);
+        this.writer.write(':');
+        this.nameWritten = true;
+        return this;
+    }
+
+    /**
+     * Writes a string value.
+     * @param value the value, can be null
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter value(String value) throws IOException
+    {
+        if (value == null) {
+            return this.nullValue();
+        }
+        this.beforeValue();
+        this.writeString(value);
+        return this;
+    }
+
+    /**
+     * Writes a number value.
+     * @param value the value
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter value(long value) throws IOException
+    {
+        this.beforeValue();
+        this.writer.write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a boolean value.
+     * @param value the value
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter value(boolean value) throws IOException
+    {
+        this.beforeValue();
+        this.writer.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a null value.
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter nullValue() throws IOException
+    {
+        this.beforeValue();
+        this.writer.write("null");
+        return this;
+    }
+
+    /**
+     * Writes any value org.json can serialize: null, strings, numbers, booleans, {@link JSONString}s, JSONObjects,
+     * JSONArrays, maps, collections, arrays, and other objects as their string value. Nested values are written
+     * as they are walked. Non finite numbers are not valid JSON, and are rejected like org.json does.
+     * @param value the value, can be null
+     * @return this object
+     * @throws IOException if the Writer fails
+     */
+    public JsonStreamWriter value(Object value) throws IOException
+    {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            return this.nullValue();
+        } else if (value instanceof String) {
+            return this.value((String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+            || value instanceof Byte) {
+            return this.value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            this.beforeValue();
+            this.writer.write(JSONObject.numberToString((Number) value));
+            return this;
+        } else if (value instanceof Boolean) {
+            return this.value(((Boolean) value).booleanValue());
+        } else if (value instanceof JSONString) {
+            this.beforeValue();
+            this.writer.write(((JSONString) value).toJSONString());
+            return this;
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            this.beginObject();
+            for (String key : object.keySet()) {
+                this.name(key).value(object.opt(key));
+            }
+            return this.endObject();
+        } else if (value instanceof Map) {
+            this.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                this.name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            return this.endObject();
+        } else if (value instanceof Iterable) {
+            this.beginArray();
+            for (Object element : (Iterable<?>) value) {
+                this.value(element);
+            }
+            return this.endArray();
+        } else if (value.getClass().isArray()) {
+            this.beginArray();
+            for (int i = 0; i < Array.getLength(value); i++) {
+                this.value(Array.get(value, i));
+            }
+            return this.endArray();
+        } else if (value instanceof Enum) {
+            return this.value(((Enum<?>) value).name());
+        }
+        return this.value(value.toString());
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        this.writer.flush();
+    }
+
+    /**
+     * Closes the underlying Writer.
+     * @throws IOException if the Writer fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.writer.close();
+    }
+
+    private JsonStreamWriter open(boolean array, char opening) throws IOException
+    {
+        this.beforeValue();
+        if (this.depth == this.arrays.length) {
+            this.arrays = Arrays.copyOf(this.arrays, this.depth * 2);
+            this.hasElements = Arrays.copyOf(this.hasElements, this.depth * 2);
+        }
+        this.arrays[this.depth] = array;
+        this.hasElements[this.depth] = false;
+        this.depth++;
+        this.writer.write(opening);
+        return this;
+    }
+
+    private JsonStreamWriter close(boolean array, char closing) throws IOException
+    {
+        if (this.depth == 0 || this.arrays[this.depth - 1] != array || this.nameWritten) {
+            throw new IllegalStateException("No " + (array ? "array" : "object") + " to close");
+        }
+        this.depth--;
+        this.writer.write(closing);
+        return this;
+    }
+
+    private void beforeValue() throws IOException
+    {
+        if (this.depth == 0) {
+            return;
+        }
+        if (this.arrays[this.depth - 1]) {
+            if (this.hasElements[this.depth - 1]) {
+                this.writer.write(',');
+            }
+            this.hasElements[this.depth - 1] = true;
+        } else if (this.nameWritten) {
+            this.nameWritten = false;
+        } else {
+            throw new IllegalStateException("A value in an object must follow its name");
+        }
+    }
+
+    /**
+     * Writes the string quoted, escaping quotes, backslashes, control characters, and the line and paragraph
+     * separators (which are not valid in JavaScript strings).
+     */
+    private void writeString(String value) throws IOException
+    {
+        Writer out = this.writer;
+        out.write('"');
+        int runStart = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= ' ' && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            if (i > runStart) {
+                out.write(value, runStart, i - runStart);
+            }
+            runStart = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX_DIGITS[c >> 12 & 0xF]);
+                    out.write(HEX_DIGITS[c >> 8 & 0xF]);
+                    out.write(HEX_DIGITS[c >> 4 & 0xF]);
+                    out.write(HEX_DIGITS[c & 0xF]);
+                    break;
+            }
+        }
+        if (length > runStart) {
+            out.write(value, runStart, length - runStart);
+        }
+        out.write('"');
+    }
+}
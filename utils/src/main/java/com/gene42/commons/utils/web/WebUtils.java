@@ -18,6 +18,7 @@
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
@@ -34,16 +35,16 @@
 public final class WebUtils
 {
     /** Key for offset in a json result object. */
-    public static final String OFFSET_KEY = "offset";
+    public static final String OFFSET_KEY = JsonApiBuilder.OFFSET_KEY;
 
     /** Key for limit in a json result object. */
-    public static final String LIMIT_KEY = "limit";
+    public static final String LIMIT_KEY = JsonApiBuilder.LIMIT_KEY;
 
     /** Key for total in a json result object. */
-    public static final String TOTAL_KEY = "total";
+    public static final String TOTAL_KEY = JsonApiBuilder.TOTAL_KEY;
 
     /** Key for returned in a json result object. */
-    public static final String RETURNED_KEY = "returned";
+    public static final String RETURNED_KEY = JsonApiBuilder.RETURNED_KEY;
 
     private static final EnumMap<ServiceException.Status, Response.Status> SERVICE_TO_WEB_MAP =
         new EnumMap<>(ServiceException.Status.class);
@@ -185,6 +186,17 @@ public static Response getErrorResponse(Response.Status status, String message,
             .build();
     }
 
+    /**
+     * Returns a Response entity writing the given JSON API document straight to the response stream, without
+     * building it in memory first. Meant for large documents.
+     * @param builder the builder of the document
+     * @return a StreamingOutput to set as the Response entity
+     */
+    public static StreamingOutput getStreamingEntity(JsonApiBuilder builder)
+    {
+        return builder::writeTo;
+    }
+
     /**
      * Attempts to get the value found at the given key.
      * Throws a Bad Request exception if the given JSONObject does not have the given key,
@@ -0,0 +1,109 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test class for ConcurrentSummary.
+ *
+ * @version $Id$
+ */
+public class ConcurrentSummaryTest
+{
+    private static final int THREADS = 4;
+
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void testConcurrentCounts() throws Exception
+    {
+        ConcurrentSummary summary = new ConcurrentSummary("Job").setMaxMessagesKept(10);
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        summary.warn("Warning " + (i % 50));
+                        summary.error("Skipped line");
+                        summary.info("Rows", 2);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertEquals(Long.valueOf(THREADS * ITERATIONS), summary.getMessageCount(Level.ERROR, "Skipped line"));
+        assertEquals(Long.valueOf(2L * THREADS * ITERATIONS), summary.getMessageCount(Level.INFO, "Rows"));
+
+        int keptWarnings = 0;
+        for (int i = 0; i < 50; i++) {
+            Long count = summary.getMessageCount(Level.WARN, "Warning " + i);
+            if (count != null) {
+                // Kept messages are counted exactly, even when their slot was being reserved by another thread
+                assertEquals(Long.valueOf(THREADS * ITERATIONS / 50), count);
+                keptWarnings++;
+            }
+        }
+        assertEquals(10, keptWarnings);
+    }
+
+    @Test
+    public void testSameOutputAsSummary() throws Exception
+    {
+        Summary columns = new Summary("Parsing").setMaxMessagesKept(200);
+        columns.warn("Make");
+        columns.warn("Color");
+
+        Summary summary = new Summary("Validation").setMaxMessagesKept(3);
+        ConcurrentSummary concurrentSummary = new ConcurrentSummary("Validation").setMaxMessagesKept(3);
+        for (String message : Arrays.asList("Skipped line", "Bad date", "Skipped line", "Bad id", "Too many")) {
+            summary.error(message);
+            concurrentSummary.error(message);
+        }
+        summary.info("Number of variants parsed", 2);
+        concurrentSummary.info("Number of variants parsed", 2);
+        summary.merge(columns);
+        concurrentSummary.merge(columns);
+
+        assertNull(concurrentSummary.getMessageCount(Level.ERROR, "Too many"));
+        assertEquals(this.logLines(summary), this.logLines(concurrentSummary.toSummary()));
+    }
+
+    private List<String> logLines(Summary summary)
+    {
+        List<String> lines = new ArrayList<>();
+        Logger logger = (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] {Logger.class},
+            (proxy, method, args) -> {
+                lines.add(method.getName() + Arrays.toString(args));
+                return null;
+            });
+        summary.log(logger);
+        return lines;
+    }
+}
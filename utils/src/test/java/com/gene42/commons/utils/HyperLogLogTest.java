@@ -0,0 +1,57 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for HyperLogLog.
+ *
+ * @version $Id$
+ */
+public class HyperLogLogTest
+{
+    @Test
+    public void estimate() throws Exception
+    {
+        HyperLogLog hyperLogLog = new HyperLogLog();
+        assertEquals(0, hyperLogLog.estimate());
+
+        for (int i = 0; i < 100; i++) {
+            hyperLogLog.add("message " + i).add("message " + i);
+        }
+        assertTrue(Math.abs(hyperLogLog.estimate() - 100) <= 3);
+
+        for (int i = 0; i < 100000; i++) {
+            hyperLogLog.add("message " + i);
+        }
+        assertTrue(Math.abs(hyperLogLog.estimate() - 100000) < 100000 * 0.1);
+    }
+
+    @Test
+    public void merge() throws Exception
+    {
+        HyperLogLog first = new HyperLogLog(12);
+        HyperLogLog second = new HyperLogLog(12);
+        for (int i = 0; i < 20000; i++) {
+            first.add("message " + i);
+            second.add("message " + (i + 10000));
+        }
+        first.merge(second);
+        assertTrue(Math.abs(first.estimate() - 30000) < 30000 * 0.05);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeDifferentPrecisions() throws Exception
+    {
+        new HyperLogLog(10).merge(new HyperLogLog(11));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * Benchmark of Mergeables, left out of the default test run: {@code mvn test -Pbenchmark} runs it.
+ *
+ * @version $Id$
+ */
+public class MergeablesBenchmark
+{
+    /**
+     * Folds 10k summaries one by one, and as a tree in parallel, with and without a cap, and prints the timings.
+     */
+    @Test
+    public void merge() throws Exception
+    {
+        List<Summary> summaries = MergeablesTest.createSummaries(10000, 20);
+        Supplier<Summary> uncapped = () -> new Summary("Jobs").setMaxMessagesKept(0);
+        Supplier<Summary> capped = () -> new Summary("Jobs").heavyHitters().setMaxMessagesKept(0)
+            .setMergePolicy(Summary.MergePolicy.capped(200));
+
+        for (int round = 0; round < 3; round++) {
+            long sequential = time(() -> Mergeables.merge(summaries, uncapped));
+            long reduced = time(() -> Mergeables.treeReduce(summaries, uncapped));
+            long cappedSequential = time(() -> Mergeables.merge(summaries, capped));
+            long cappedReduced = time(() -> Mergeables.treeReduce(summaries, capped));
+            System.out.printf("Merging %d summaries (%d CPUs): sequential %d ms, tree %d ms, capped sequential %d ms,"
+                + " capped tree %d ms%n", summaries.size(), Runtime.getRuntime().availableProcessors(), sequential,
+                reduced, cappedSequential, cappedReduced);
+        }
+    }
+
+    private static long time(Runnable runnable)
+    {
+        long start = System.nanoTime();
+        runnable.run();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.slf4j.event.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for Mergeables.
+ *
+ * @version $Id$
+ */
+public class MergeablesTest
+{
+    private static final String SKIP_LINE = "Skipped line";
+
+    @Test
+    public void mergeInOrder() throws Exception
+    {
+        List<Summary> summaries = createSummaries(1000, 5);
+        Supplier<Summary> identity = () -> new Summary("Jobs");
+
+        Summary sequential = Mergeables.merge(summaries, identity);
+        Summary collected = summaries.parallelStream().collect(Mergeables.merging(identity));
+        Summary reduced = Mergeables.treeReduce(summaries, identity, ForkJoinPool.commonPool(), 7);
+
+        for (Summary summary : new Summary[] { sequential, collected, reduced }) {
+            assertEquals(Long.valueOf(1000), summary.getMessageCount(Level.ERROR, SKIP_LINE));
+            assertEquals(sequential.getMessageCount(Level.WARN, "Warning 999"),
+                summary.getMessageCount(Level.WARN, "Warning 999"));
+            assertEquals(sequential.getMessageSamples(Level.WARN, "Bad value %s"),
+                summary.getMessageSamples(Level.WARN, "Bad value %s"));
+        }
+        // The items are left untouched
+        assertEquals(Long.valueOf(1), summaries.get(0).getMessageCount(Level.ERROR, SKIP_LINE));
+        assertEquals(0, Mergeables.treeReduce(new ArrayList<Summary>(), identity).getDistinctMessageCount(Level.WARN));
+    }
+
+    @Test
+    public void cappedMergePolicy() throws Exception
+    {
+        List<Summary> summaries = createSummaries(1000, 5);
+        Summary summary = Mergeables.treeReduce(summaries,
+            () -> new Summary("Jobs").heavyHitters().setMergePolicy(Summary.MergePolicy.capped(50)));
+
+        assertEquals(50, summary.getMaxMessagesKept());
+        assertEquals(Long.valueOf(1000), summary.getMessageCount(Level.ERROR, SKIP_LINE));
+        long distinct = summary.getDistinctMessageCount(Level.WARN);
+        assertTrue(String.valueOf(distinct), Math.abs(distinct - 1004) < 1004 * 0.1);
+
+        assertEquals(20 + 20 * 1000, Mergeables.merge(summaries, Summary::new).getMaxMessagesKept());
+        Summary kept = new Summary().setMergePolicy(Summary.MergePolicy.KEEP);
+        kept.merge(summaries.get(0));
+        assertEquals(20, kept.getMaxMessagesKept());
+    }
+
+    static List<Summary> createSummaries(int count, int messages)
+    {
+        List<Summary> summaries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Summary summary = new Summary("Job");
+            summary.error(SKIP_LINE);
+            summary.warn("Bad value %s", i);
+            for (int j = 1; j < messages; j++) {
+                summary.warn("Warning " + (i + j));
+            }
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+}
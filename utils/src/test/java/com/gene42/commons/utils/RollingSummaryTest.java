@@ -0,0 +1,120 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for RollingSummary.
+ *
+ * @version $Id$
+ */
+public class RollingSummaryTest
+{
+    private static final String MESSAGE = "Request failed";
+
+    @Test
+    public void manualRotation() throws Exception
+    {
+        try (RollingSummary summary = new RollingSummary("Service", 0, TimeUnit.SECONDS, 2, (Summary s) -> { })) {
+            for (int window = 1; window <= 3; window++) {
+                for (int i = 0; i < window; i++) {
+                    summary.error(MESSAGE);
+                }
+                assertEquals(Long.valueOf(window), summary.getCurrentWindow().getMessageCount(Level.ERROR, MESSAGE));
+                assertEquals(Long.valueOf(window), summary.rotate().getMessageCount(Level.ERROR, MESSAGE));
+            }
+
+            List<Summary> windows = summary.getWindows();
+            assertEquals(2, windows.size());
+            assertEquals(Long.valueOf(2), windows.get(0).getMessageCount(Level.ERROR, MESSAGE));
+            assertEquals(Long.valueOf(3), windows.get(1).getMessageCount(Level.ERROR, MESSAGE));
+            assertNull(summary.getCurrentWindow().getMessageCount(Level.ERROR, MESSAGE));
+        }
+    }
+
+    @Test
+    public void noCountLostOnRotation() throws Exception
+    {
+        RollingSummary summary = new RollingSummary("Service", 0, TimeUnit.SECONDS, 1, (Summary s) -> { });
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        int iterations = 20000;
+        long total = 0;
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        summary.warn(MESSAGE);
+                    }
+                    return null;
+                }));
+            }
+            boolean done = false;
+            while (!done) {
+                done = futures.stream().allMatch(Future::isDone);
+                Long count = summary.rotate().getMessageCount(Level.WARN, MESSAGE);
+                total += count == null ? 0 : count;
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertEquals(4L * iterations, total);
+    }
+
+    @Test
+    public void scheduledRotation() throws Exception
+    {
+        CountDownLatch rotated = new CountDownLatch(1);
+        List<Summary> emitted = new ArrayList<>();
+        try (RollingSummary summary = new RollingSummary("Service", 20, TimeUnit.MILLISECONDS, 5, (Summary s) -> {
+            synchronized (emitted) {
+                emitted.add(s);
+            }
+            if (s.getMessageCount(Level.INFO, "Requests") != null) {
+                rotated.countDown();
+            }
+        })) {
+            summary.info("Requests", 5);
+            assertTrue(rotated.await(10, TimeUnit.SECONDS));
+        }
+        synchronized (emitted) {
+            long total = 0;
+            for (Summary window : emitted) {
+                Long count = window.getMessageCount(Level.INFO, "Requests");
+                total += count == null ? 0 : count;
+            }
+            assertEquals(5, total);
+        }
+
+        // Empty windows log fine
+        try (RollingSummary summary = new RollingSummary("Service", 0, TimeUnit.SECONDS, 1,
+            LoggerFactory.getLogger(RollingSummary.class))) {
+            summary.rotate().log(LoggerFactory.getLogger(RollingSummary.class));
+        }
+    }
+}
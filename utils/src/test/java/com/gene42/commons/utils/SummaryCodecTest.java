@@ -0,0 +1,163 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.slf4j.event.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for SummaryCodec.
+ *
+ * @version $Id$
+ */
+public class SummaryCodecTest
+{
+    private static final String SKIP_LINE = "Skipped line";
+
+    private static final String TEMPLATE = "Missing field %s";
+
+    @Test
+    public void roundTrip() throws Exception
+    {
+        Summary summary = new Summary("Validation").sortedByKey().heavyHitters().setMaxMessagesKept(3);
+        summary.error(SKIP_LINE);
+        summary.error(SKIP_LINE);
+        summary.warn(TEMPLATE, "Make");
+        summary.warn(TEMPLATE, "Color");
+        summary.info("Rows", -5);
+        for (int i = 0; i < 100; i++) {
+            summary.info("Row " + i);
+            summary.time("Parse", i * 1000L);
+        }
+
+        byte[] bytes = encode(summary);
+        InputStream in = new ByteArrayInputStream(bytes);
+        Summary decoded = SummaryCodec.read(in);
+        assertNull(SummaryCodec.read(in));
+
+        assertEquals(Long.valueOf(2), decoded.getMessageCount(Level.ERROR, SKIP_LINE));
+        assertEquals(Arrays.asList("Make", "Color"), decoded.getMessageSamples(Level.WARN, TEMPLATE));
+        assertEquals(summary.getMessageCount(Level.INFO, "Row 99"), decoded.getMessageCount(Level.INFO, "Row 99"));
+        assertEquals(summary.getMessageCountError(Level.INFO, "Row 99"),
+            decoded.getMessageCountError(Level.INFO, "Row 99"));
+        assertEquals(summary.getDistinctMessageCount(Level.INFO), decoded.getDistinctMessageCount(Level.INFO));
+        assertEquals(3, decoded.getMaxMessagesKept());
+        assertTrue(decoded.isHeavyHitters());
+        assertTrue(decoded.isSortedByKey());
+        assertEquals("Validation", decoded.getName());
+        assertEquals(100, decoded.getTiming("Parse").getCount());
+        assertEquals(99000, decoded.getTiming("Parse").getMax());
+        assertEquals(summary.getTiming("Parse").getPercentile(99), decoded.getTiming("Parse").getPercentile(99));
+
+        // Re-encoding gives the same frame
+        assertTrue(Arrays.equals(bytes, encode(decoded)));
+    }
+
+    @Test
+    public void streamingMerge() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Summary expected = new Summary("Coordinator");
+        for (int worker = 0; worker < 1000; worker++) {
+            Summary summary = new Summary("Worker").setMaxMessagesKept(5);
+            summary.error(SKIP_LINE);
+            summary.info("Rows", worker);
+            summary.warn(TEMPLATE, worker);
+            summary.time("Parse", worker);
+            SummaryCodec.write(summary, out);
+            expected.merge(summary);
+        }
+        // The name of the workers is only written once per frame
+        assertTrue(String.valueOf(out.size()), out.size() < 1000 * 100);
+
+        Summary merged = new Summary("Coordinator");
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        int frames = 0;
+        while (SummaryCodec.readAndMerge(in, merged)) {
+            frames++;
+        }
+
+        assertEquals(1000, frames);
+        assertEquals(Long.valueOf(1000), merged.getMessageCount(Level.ERROR, SKIP_LINE));
+        assertEquals(Long.valueOf(999 * 1000 / 2), merged.getMessageCount(Level.INFO, "Rows"));
+        assertEquals(expected.getMessageSamples(Level.WARN, TEMPLATE), merged.getMessageSamples(Level.WARN, TEMPLATE));
+        assertEquals(expected.getMaxMessagesKept(), merged.getMaxMessagesKept());
+        assertEquals(999 * 1000 / 2, merged.getTiming("Parse").getSum());
+    }
+
+    @Test
+    public void readVersion1() throws Exception
+    {
+        // Frame of a Summary named "V" with one info message "R" counted 3 times, written before timings
+        byte[] bytes = { 1, 0, 20, 3, 1, 1, 'V', 2, 1, 'R', 6, 0, 0, 0, 0, 0, 0, 0, 0 };
+        Summary summary = SummaryCodec.read(new ByteArrayInputStream(bytes));
+        assertEquals("V", summary.getName());
+        assertEquals(Long.valueOf(3), summary.getMessageCount(Level.INFO, "R"));
+        assertNull(summary.getTiming("R"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedFrame() throws Exception
+    {
+        Summary summary = new Summary("Validation");
+        summary.error(SKIP_LINE);
+        byte[] bytes = encode(summary);
+        SummaryCodec.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedVersion() throws Exception
+    {
+        SummaryCodec.read(new ByteArrayInputStream(new byte[] { (byte) (SummaryCodec.VERSION + 1) }));
+    }
+
+    @Test
+    public void corruptLengthsFailWithoutAllocating() throws Exception
+    {
+        // Version, flags, maxMessagesKept, maxSamplesKept, no name, then an info message of 2^31 - 1 bytes
+        byte[] hugeMessage = { SummaryCodec.VERSION, 0, 20, 3, 0, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, 0x07 };
+        assertReadFails(hugeMessage, "message length");
+
+        // Same with a one byte message counted once, but with more samples than the frame keeps
+        byte[] tooManySamples = { SummaryCodec.VERSION, 0, 20, 3, 0, 1, 1, 'x', 2, 0, 4 };
+        assertReadFails(tooManySamples, "sample count");
+
+        byte[] hugeMaxSamplesKept = { SummaryCodec.VERSION, 0, 20, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F };
+        assertReadFails(hugeMaxSamplesKept, "maxSamplesKept");
+    }
+
+    private static void assertReadFails(byte[] frame, String field)
+    {
+        try {
+            SummaryCodec.read(new ByteArrayInputStream(frame));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(field));
+        }
+    }
+
+    private static byte[] encode(Summary summary) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SummaryCodec.write(summary, out);
+        return out.toByteArray();
+    }
+}
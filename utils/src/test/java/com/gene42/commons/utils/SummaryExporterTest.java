@@ -0,0 +1,94 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for SummaryExporter.
+ *
+ * @version $Id$
+ */
+public class SummaryExporterTest
+{
+    private static final String SKIP_LINE = "Skipped \"line\"\nat \\";
+
+    private static final String TEMPLATE = "Missing field %s";
+
+    @Test
+    public void jsonApi() throws Exception
+    {
+        Summary summary = new Summary("Validation").setMaxMessagesKept(3);
+        summary.error(SKIP_LINE);
+        summary.error(SKIP_LINE);
+        summary.warn(TEMPLATE, "Make");
+        summary.info("Rows", 10);
+        summary.info("Other rows");
+        summary.info("Last rows");
+        summary.info("Ignored");
+
+        StringWriter writer = new StringWriter();
+        SummaryExporter.writeJsonApi(summary, writer);
+        JSONObject document = new JSONObject(writer.toString());
+
+        JSONArray data = document.getJSONArray("data");
+        assertEquals(5, data.length());
+        JSONObject first = data.getJSONObject(0);
+        assertEquals(SummaryExporter.MESSAGE_TYPE, first.getString("type"));
+        JSONObject attributes = first.getJSONObject("attributes");
+        assertEquals("error", attributes.getString("level"));
+        assertEquals("Validation", attributes.getString("name"));
+        assertEquals(SKIP_LINE, attributes.getString("message"));
+        assertEquals(2, attributes.getLong("count"));
+        assertFalse(attributes.has("error"));
+        assertEquals("Make", data.getJSONObject(1).getJSONObject("attributes").getJSONArray("samples").get(0));
+        assertEquals(1, document.getJSONObject("meta").getJSONObject("missing").getLong("info"));
+        assertEquals(4, document.getJSONObject("meta").getJSONObject("distinct").getLong("info"));
+
+        writer = new StringWriter();
+        SummaryExporter.writeJsonApi(new Summary(), writer);
+        assertEquals(0, new JSONObject(writer.toString()).getJSONArray("data").length());
+    }
+
+    @Test
+    public void prometheus() throws Exception
+    {
+        Summary summary = new Summary("Validation");
+        summary.error(SKIP_LINE);
+        summary.error(SKIP_LINE);
+        summary.warn(TEMPLATE, "Make");
+
+        StringWriter writer = new StringWriter();
+        SummaryExporter.writePrometheus(summary, "import_job", writer);
+        List<String> lines = Arrays.asList(writer.toString().split("\n"));
+
+        assertEquals("# TYPE import_job_messages_total counter", lines.get(1));
+        assertEquals("import_job_messages_total{level=\"error\",name=\"Validation\","
+            + "message=\"Skipped \\\"line\\\"\\nat \\\\\"} 2", lines.get(2));
+        assertEquals("import_job_messages_total{level=\"warn\",name=\"Validation\",message=\"Missing field %s\"} 1",
+            lines.get(3));
+        assertTrue(lines.contains("import_job_distinct_messages{level=\"error\"} 1"));
+        assertTrue(lines.contains("import_job_missing_messages{level=\"info\"} 0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMetricPrefix() throws Exception
+    {
+        SummaryExporter.writePrometheus(new Summary(), "import-job", new StringWriter());
+    }
+}
@@ -7,9 +7,25 @@
  */
 package com.gene42.commons.utils;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.MessageFormatter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test class for Summary.
@@ -49,4 +65,188 @@ public void checkRow() throws Exception
         finalSummary.merge(variants);
         finalSummary.log(LOGGER);
     }
+
+    @Test
+    public void heavyHitters() throws Exception
+    {
+        Summary summary = new Summary("Validation").heavyHitters().setMaxMessagesKept(5);
+        for (int i = 0; i < 5; i++) {
+            summary.error("Early " + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            summary.error("Frequent");
+            summary.error("Rare " + i);
+        }
+
+        // Kept despite coming after maxMessagesKept other messages
+        long count = summary.getMessageCount(Level.ERROR, "Frequent");
+        long error = summary.getMessageCountError(Level.ERROR, "Frequent");
+        assertTrue(count >= 1000 && count - error <= 1000);
+        assertNull(summary.getMessageCountError(Level.ERROR, "Rare 1"));
+
+        Summary first = new Summary().setMaxMessagesKept(5);
+        for (int i = 0; i < 5; i++) {
+            first.error("Early " + i);
+        }
+        first.error("Frequent");
+        assertNull(first.getMessageCount(Level.ERROR, "Frequent"));
+        assertEquals(Long.valueOf(0), first.getMessageCountError(Level.ERROR, "Early 0"));
+        summary.log(LOGGER);
+    }
+
+    @Test
+    public void heavyHittersKeepTheTotalCount() throws Exception
+    {
+        Summary summary = new Summary("Validation").heavyHitters().setMaxMessagesKept(50);
+        Random random = new Random(42);
+        int[] counts = new int[1000];
+        for (int i = 0; i < 20000; i++) {
+            // Skewed: low indexes are much more frequent
+            int message = (int) (counts.length * Math.pow(random.nextDouble(), 4));
+            counts[message]++;
+            summary.warn("Message " + message);
+        }
+
+        // Space-Saving keeps the total count, and bounds the counts of the messages it keeps
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            Long count = summary.getMessageCount(Level.WARN, "Message " + i);
+            if (count != null) {
+                total += count;
+                assertTrue(count >= counts[i]);
+                assertTrue(count - summary.getMessageCountError(Level.WARN, "Message " + i) <= counts[i]);
+            } else {
+                assertTrue(counts[i] <= 20000 / 50);
+            }
+        }
+        assertEquals(20000, total);
+    }
+
+    @Test
+    public void distinctMessageCount() throws Exception
+    {
+        Summary summary = new Summary().setMaxMessagesKept(20);
+        for (int i = 0; i < 10; i++) {
+            summary.warn(COLUMN1 + i);
+        }
+        assertEquals(10, summary.getDistinctMessageCount(Level.WARN));
+        assertEquals(0, summary.getMissingMessageCount(Level.WARN));
+
+        for (int i = 0; i < 5000; i++) {
+            summary.warn(COLUMN2 + i);
+            summary.warn(COLUMN1 + (i % 10));
+        }
+        long distinct = summary.getDistinctMessageCount(Level.WARN);
+        assertTrue(String.valueOf(distinct), Math.abs(distinct - 5010) < 5010 * 0.1);
+        assertEquals(distinct - 20, summary.getMissingMessageCount(Level.WARN));
+
+        // The distinct messages of both are counted once
+        Summary other = new Summary().setMaxMessagesKept(20);
+        for (int i = 0; i < 10000; i++) {
+            other.warn(COLUMN2 + i);
+        }
+        summary.merge(other);
+        distinct = summary.getDistinctMessageCount(Level.WARN);
+        assertTrue(String.valueOf(distinct), Math.abs(distinct - 10010) < 10010 * 0.1);
+    }
+
+    @Test
+    public void messageTemplates() throws Exception
+    {
+        Summary summary = new Summary("Parsing").setMaxMessagesKept(2).setMaxSamplesKept(2);
+        for (int i = 0; i < 100; i++) {
+            summary.warn("Missing field %s in record %s", COLUMN1, i);
+        }
+        summary.error("Bad value %s", "x");
+        summary.add(Level.INFO, "Rows parsed");
+
+        assertEquals(Long.valueOf(100), summary.getMessageCount(Level.WARN, "Missing field %s in record %s"));
+        assertEquals(Arrays.asList(COLUMN1 + ", 0", COLUMN1 + ", 1"),
+            summary.getMessageSamples(Level.WARN, "Missing field %s in record %s"));
+        assertEquals(1, summary.getDistinctMessageCount(Level.WARN));
+        assertEquals(Long.valueOf(1), summary.getMessageCount(Level.INFO, "Rows parsed"));
+        assertTrue(summary.getMessageSamples(Level.INFO, "Rows parsed").isEmpty());
+
+        Summary other = new Summary("Parsing").setMaxSamplesKept(2);
+        other.warn("Missing field %s in record %s", COLUMN2, 7);
+        summary.merge(other);
+        assertEquals(Long.valueOf(101), summary.getMessageCount(Level.WARN, "Missing field %s in record %s"));
+        assertEquals(2, summary.getMessageSamples(Level.WARN, "Missing field %s in record %s").size());
+        summary.log(LOGGER);
+    }
+
+    @Test
+    public void loggedTemplatesAreFormatted() throws Exception
+    {
+        Summary summary = new Summary("Parsing").setMaxSamplesKept(2);
+        for (int i = 0; i < 3; i++) {
+            summary.warn("Missing field %s in record %d", COLUMN1, i);
+        }
+        summary.add(Level.INFO, "Rows parsed in %.1f%%");
+
+        List<String> lines = new ArrayList<>();
+        summary.log((Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class },
+            (proxy, method, args) -> {
+                if (args != null && args.length == 3 && method.getName().matches("info|warn|error")) {
+                    lines.add(MessageFormatter.format((String) args[0], args[1], args[2]).getMessage());
+                }
+                return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+            }));
+
+        assertTrue(lines.toString(), lines.contains("  Parsing - Missing field Make in record 0, also (Make, 1): (3)"));
+        // Nothing to format it with
+        assertTrue(lines.toString(), lines.contains("  Parsing - Rows parsed in %.1f%%: (1)"));
+    }
+
+    @Test
+    public void timings() throws Exception
+    {
+        Summary summary = new Summary("Import").setMaxMessagesKept(2);
+        for (int i = 1; i <= 100; i++) {
+            summary.time("Parse", TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        try (Summary.Timer timer = summary.startTimer("Write")) {
+            Thread.sleep(5);
+        }
+        summary.time("Ignored", 1);
+
+        TimingHistogram parse = summary.getTiming("Parse");
+        assertEquals(100, parse.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), parse.getMax());
+        assertTrue(summary.getTiming("Write").getMin() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertNull(summary.getTiming("Ignored"));
+
+        Summary other = new Summary("Import");
+        other.time("Parse", TimeUnit.SECONDS.toNanos(1));
+        summary.merge(other);
+        assertEquals(101, summary.getTiming("Parse").getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), summary.getTiming("Parse").getMax());
+        assertEquals(1, other.getTiming("Parse").getCount());
+        summary.log(LOGGER);
+    }
+
+    @Test
+    public void timingDoesNotAllocate() throws Exception
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+
+        Summary summary = new Summary("Import");
+        summary.time("Parse", 1);
+        long allocated = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            summary.time("Parse", i);
+        }
+        allocated = allocations.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue(String.valueOf(allocated), allocated < 10000);
+        assertEquals(100001, summary.getTiming("Parse").getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedTemplateLevel() throws Exception
+    {
+        new Summary().add(Level.DEBUG, "Debug %s", 1);
+    }
 }
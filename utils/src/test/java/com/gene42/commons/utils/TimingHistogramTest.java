@@ -0,0 +1,71 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for TimingHistogram.
+ *
+ * @version $Id$
+ */
+public class TimingHistogramTest
+{
+    @Test
+    public void percentiles() throws Exception
+    {
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        TimingHistogram histogram = new TimingHistogram();
+        for (int i = 0; i < values.length; i++) {
+            // Log-uniform, from nanoseconds to seconds
+            values[i] = (long) Math.pow(10, random.nextDouble() * 9);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[] { 1, 50, 90, 99, 99.9 }) {
+            long actual = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long estimate = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual + " " + estimate,
+                estimate >= actual && estimate <= actual + actual / TimingHistogram.SUB_BUCKETS);
+        }
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.getPercentile(100));
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(Arrays.stream(values).sum(), histogram.getSum());
+
+        TimingHistogram extremes = new TimingHistogram().record(Long.MAX_VALUE).record(-1).record(7);
+        assertEquals(0, extremes.getPercentile(0));
+        assertEquals(7, extremes.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, extremes.getPercentile(100));
+    }
+
+    @Test
+    public void merge() throws Exception
+    {
+        TimingHistogram first = new TimingHistogram().record(10).record(20);
+        TimingHistogram second = new TimingHistogram().record(1000);
+        first.merge(second);
+        first.merge(new TimingHistogram());
+
+        assertEquals(3, first.getCount());
+        assertEquals(1030, first.getSum());
+        assertEquals(10, first.getMin());
+        assertEquals(1000, first.getMax());
+        assertEquals(20, first.getPercentile(50));
+        assertEquals(0, new TimingHistogram().getPercentile(50));
+    }
+}
@@ -0,0 +1,52 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of the hand-off latency of ContinueBarrier, left out of the default test run: {@code mvn test -Pbenchmark}
+ * runs it.
+ */
+public class ContinueBarrierBenchmark {
+
+    private static final int ROUND_TRIPS = 2000;
+
+    /**
+     * Ping-pong between two threads over a pair of barriers, reporting the one way hand-off latency per strategy.
+     * Only meaningful on an otherwise idle machine with at least two cores.
+     */
+    @Test
+    public void handOffLatency() throws Exception {
+        for (WaitStrategy strategy : ContinueBarrierTest.getStrategies()) {
+            ContinueBarrier ping = new ContinueBarrier(strategy);
+            ContinueBarrier pong = new ContinueBarrier(strategy);
+            LogHistogram latencies = new LogHistogram();
+
+            Thread responder = new Thread(() -> {
+                try {
+                    for (int i = 0; i < ROUND_TRIPS; i++) {
+                        ping.waitToContinue();
+                        pong.canContinue();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            responder.start();
+
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                long start = System.nanoTime();
+                ping.canContinue();
+                assertTrue(pong.waitToContinue(10, TimeUnit.SECONDS));
+                latencies.record((System.nanoTime() - start) / 2);
+            }
+            responder.join();
+
+            System.out.printf("%-10s hand-off p50 <= %dns, p99 <= %dns%n", strategy,
+                latencies.getPercentile(50), latencies.getPercentile(99));
+        }
+    }
+}
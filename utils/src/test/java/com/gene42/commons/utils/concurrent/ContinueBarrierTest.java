@@ -0,0 +1,172 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContinueBarrierTest {
+
+    private static final int ROUND_TRIPS = 200;
+
+    @Test
+    public void testWaitToContinue() throws Exception {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            ContinueBarrier barrier = new ContinueBarrier(strategy);
+            assertFalse(barrier.waitToContinue(5, TimeUnit.MILLISECONDS));
+
+            // An order given before the wait is kept, but only one
+            barrier.canContinue();
+            barrier.canContinue();
+            assertTrue(barrier.waitToContinue(0, TimeUnit.MILLISECONDS));
+            assertFalse(barrier.waitToContinue(5, TimeUnit.MILLISECONDS));
+
+            Thread thread = new Thread(() -> {
+                sleep(20);
+                barrier.canContinue();
+            });
+            thread.start();
+            assertTrue(strategy.name(), barrier.waitToContinue(10, TimeUnit.SECONDS));
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        ContinueBarrier barrier = new ContinueBarrier(WaitStrategy.SPIN_PARK);
+        Thread.currentThread().interrupt();
+        try {
+            barrier.waitToContinue();
+            fail();
+        } catch (InterruptedException e) {
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+    }
+
+    @Test
+    public void testPhasedBarrier() throws Exception {
+        for (WaitStrategy strategy : getStrategies()) {
+            int parties = 3;
+            PhasedBarrier barrier = new PhasedBarrier(parties, strategy);
+            AtomicInteger[] arrivals = new AtomicInteger[100];
+            for (int i = 0; i < arrivals.length; i++) {
+                arrivals[i] = new AtomicInteger();
+            }
+            ExecutorService executorService = Executors.newFixedThreadPool(parties);
+
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < parties; t++) {
+                    futures.add(executorService.submit(() -> {
+                        for (int phase = 0; phase < arrivals.length; phase++) {
+                            arrivals[phase].incrementAndGet();
+                            assertEquals(phase, barrier.arriveAndAwait());
+                            // Nobody gets past a phase before everyone arrived
+                            assertEquals(parties, arrivals[phase].get());
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                executorService.shutdown();
+            }
+            assertEquals(arrivals.length, barrier.getPhase());
+        }
+
+        PhasedBarrier barrier = new PhasedBarrier(2, WaitStrategy.SPIN_PARK);
+        assertFalse(barrier.arriveAndAwait(5, TimeUnit.MILLISECONDS));
+        // The arrival counted, this one ends the phase
+        assertTrue(barrier.arriveAndAwait(5, TimeUnit.MILLISECONDS));
+        assertEquals(1, barrier.getPhase());
+    }
+
+    @Test
+    public void testNoArrivalIsLost() throws Exception {
+        int parties = 3;
+        int arrivals = 30000;
+        PhasedBarrier barrier = new PhasedBarrier(parties, WaitStrategy.SPIN_PARK);
+        ExecutorService executorService = Executors.newFixedThreadPool(parties);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < parties; t++) {
+                futures.add(executorService.submit(() -> {
+                    // Parties giving up right away arrive again while phases end
+                    for (int i = 0; i < arrivals / parties; i++) {
+                        barrier.arriveAndAwait(0, TimeUnit.MILLISECONDS);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(arrivals / parties, barrier.getPhase());
+    }
+
+    @Test
+    public void testHandOff() throws Exception {
+        for (WaitStrategy strategy : getStrategies()) {
+            ContinueBarrier ping = new ContinueBarrier(strategy);
+            ContinueBarrier pong = new ContinueBarrier(strategy);
+            AtomicInteger responses = new AtomicInteger();
+
+            Thread responder = new Thread(() -> {
+                try {
+                    for (int i = 0; i < ROUND_TRIPS; i++) {
+                        ping.waitToContinue();
+                        responses.incrementAndGet();
+                        pong.canContinue();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            responder.start();
+
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                ping.canContinue();
+                assertTrue(strategy.name(), pong.waitToContinue(10, TimeUnit.SECONDS));
+                // Each order is answered once, before the next one is given
+                assertEquals(i + 1, responses.get());
+            }
+            responder.join(10000);
+            assertFalse(responder.isAlive());
+        }
+    }
+
+    static List<WaitStrategy> getStrategies() {
+        List<WaitStrategy> strategies = new ArrayList<>();
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            // Spinning threads only get preempted when they share a core, which takes whole time slices
+            if (strategy != WaitStrategy.BUSY_SPIN || Runtime.getRuntime().availableProcessors() > 2) {
+                strategies.add(strategy);
+            }
+        }
+        return strategies;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
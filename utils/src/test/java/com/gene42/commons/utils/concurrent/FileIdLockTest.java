@@ -0,0 +1,181 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Two instances over the same file stand for two processes.
+ */
+public class FileIdLockTest {
+
+    private static final int SLOTS = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExclusionAcrossInstances() throws Exception {
+        Path file = this.folder.newFile().toPath();
+
+        try (FileIdLock first = newLock(file); FileIdLock second = newLock(file)) {
+            String sameSlotId = findId(first, "id1", true);
+            String otherSlotId = findId(first, "id1", false);
+
+            FileIdLock.Instance held = first.getLock("id1").lock();
+            assertFalse(this.canLockFromOtherThread(second, "id1"));
+            assertFalse(this.canLockFromOtherThread(second, sameSlotId));
+            assertTrue(this.canLockFromOtherThread(second, otherSlotId));
+
+            // Same process: the slot is already leased, only the id matters
+            assertTrue(this.canLockFromOtherThread(first, sameSlotId));
+            assertFalse(this.canLockFromOtherThread(first, "id1"));
+
+            assertTrue(held.unlock());
+            assertFalse(held.unlock());
+            assertTrue(this.canLockFromOtherThread(second, "id1"));
+        }
+    }
+
+    @Test
+    public void testLeaseLingersAfterUnlock() throws Exception {
+        Path file = this.folder.newFile().toPath();
+
+        int slot;
+        try (FileIdLock lock = newLock(file)) {
+            slot = lock.getSlot("id1");
+            for (int i = 0; i < 3; i++) {
+                lock.getLock("id1").lock().unlock();
+                // Still leased in the file, so locking again does not need to touch it
+                assertNotEquals(0, leaseOwner(file, slot));
+            }
+            Thread.sleep(100);
+            assertEquals(0, leaseOwner(file, slot));
+
+            lock.getLock("id1").lock().unlock();
+            assertNotEquals(0, leaseOwner(file, slot));
+        }
+        // Released on close
+        assertEquals(0, leaseOwner(file, slot));
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOver() throws Exception {
+        Path file = this.folder.newFile().toPath();
+
+        try (FileIdLock first = newLock(file); FileIdLock second = newLock(file)) {
+            FileIdLock.Instance held = first.getLock("id1").lock();
+            Thread.sleep(150);
+            assertTrue(held.renew());
+            assertFalse(this.canLockFromOtherThread(second, "id1"));
+
+            Thread.sleep(300);
+            assertTrue(this.canLockFromOtherThread(second, "id1"));
+            // The lease was lost in the meantime
+            assertFalse(held.unlock());
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseIsCheckedAgain() throws Exception {
+        Path file = this.folder.newFile().toPath();
+
+        try (FileIdLock first = newLock(file); FileIdLock second = newLock(file)) {
+            String sameSlotId = findId(first, "id1", true);
+            FileIdLock.Instance held = first.getLock("id1").lock();
+            Thread.sleep(150);
+            FileIdLock.Instance laterHeld = first.getLock(sameSlotId).lock();
+            Thread.sleep(100);
+
+            // The other process takes over the expired lease, and keeps it
+            assertTrue(this.lockFromOtherThread(second, "id1", false));
+            // The first process must not hand out ids of the slot anymore, even though it still has a local holder
+            assertFalse(this.canLockFromOtherThread(first, findId(first, sameSlotId, true)));
+            assertFalse(laterHeld.renew());
+            assertFalse(held.unlock());
+        }
+    }
+
+    @Test
+    public void testLockOfDeadThreadExpires() throws Exception {
+        Path file = this.folder.newFile().toPath();
+
+        try (FileIdLock lock = newLock(file)) {
+            assertTrue(this.lockFromOtherThread(lock, "id1", false));
+            assertFalse(this.canLockFromOtherThread(lock, "id1"));
+
+            Thread.sleep(250);
+            assertTrue(this.canLockFromOtherThread(lock, "id1"));
+        }
+    }
+
+    @Test
+    public void testSlotCountMismatch() throws Exception {
+        Path file = this.folder.newFile().toPath();
+
+        try (FileIdLock first = newLock(file)) {
+            assertNotNull(first);
+            new FileIdLock(file, SLOTS * 2, 1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static FileIdLock newLock(Path file) throws IOException {
+        return new FileIdLock(file, SLOTS, 50, TimeUnit.MILLISECONDS, 200, TimeUnit.MILLISECONDS);
+    }
+
+    private static long leaseOwner(Path file, int slot) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file)).getLong(64 + slot * 32);
+    }
+
+    private static String findId(FileIdLock lock, String id, boolean sameSlot) {
+        for (int i = 0;; i++) {
+            String candidate = "other" + i;
+            if (!candidate.equals(id) && sameSlot == (lock.getSlot(id) == lock.getSlot(candidate))) {
+                return candidate;
+            }
+        }
+    }
+
+    private boolean canLockFromOtherThread(FileIdLock lock, String id) throws Exception {
+        return this.lockFromOtherThread(lock, id, true);
+    }
+
+    private boolean lockFromOtherThread(FileIdLock lock, String id, boolean unlock) throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            return executorService.submit(() -> {
+                try {
+                    FileIdLock.Instance instance = lock.getLock(id).lock();
+                    if (unlock) {
+                        instance.unlock();
+                    }
+                    return true;
+                } catch (LockException e) {
+                    return false;
+                }
+            }).get();
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
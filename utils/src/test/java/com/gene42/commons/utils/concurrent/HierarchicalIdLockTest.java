@@ -0,0 +1,138 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HierarchicalIdLockTest {
+
+    @Test
+    public void testParentLockCoversChildren() throws Exception {
+        HierarchicalIdLock idLock = new HierarchicalIdLock(20, TimeUnit.MILLISECONDS);
+
+        try (IdLockHandle handle = idLock.getLock("family/42").lock()) {
+            assertFalse(this.canLock(idLock, "family/42/patient/7", false));
+            assertFalse(this.canLock(idLock, "family/42/patient/7", true));
+            assertFalse(this.canLock(idLock, "family/42", true));
+            assertFalse(this.canLock(idLock, "family", false));
+            assertFalse(this.canLock(idLock, "family", true));
+            // Other families are not affected
+            assertTrue(this.canLock(idLock, "family/43/patient/7", false));
+            assertTrue(handle.unlock());
+            assertFalse(handle.unlock());
+        }
+        assertTrue(this.canLock(idLock, "family/42/patient/7", false));
+        assertEquals(0, idLock.getNumberOfNodes());
+    }
+
+    @Test
+    public void testChildLocks() throws Exception {
+        HierarchicalIdLock idLock = new HierarchicalIdLock(20, TimeUnit.MILLISECONDS);
+
+        try (IdLockHandle ignored = idLock.getLock("family/42/patient/7").lock()) {
+            assertEquals(4, idLock.getNumberOfNodes());
+            // Siblings proceed in parallel
+            assertTrue(this.canLock(idLock, "family/42/patient/8", false));
+            assertFalse(this.canLock(idLock, "family/42/patient/7", true));
+            assertFalse(this.canLock(idLock, "family/42", false));
+            assertFalse(this.canLock(idLock, "family/42", true));
+        }
+
+        try (IdLockHandle ignored = idLock.getReadLock("family/42/patient/7").lock()) {
+            assertTrue(this.canLock(idLock, "family/42/patient/7", true));
+            assertTrue(this.canLock(idLock, "family/42", true));
+            assertFalse(this.canLock(idLock, "family/42", false));
+            assertFalse(this.canLock(idLock, "family/42/patient/7", false));
+            assertTrue(this.canLock(idLock, "family/42/patient/8", false));
+        }
+
+        try (IdLockHandle ignored = idLock.getReadLock("family/42").lock()) {
+            assertTrue(this.canLock(idLock, "family/42/patient/7", true));
+            assertFalse(this.canLock(idLock, "family/42/patient/7", false));
+        }
+        assertEquals(0, idLock.getNumberOfNodes());
+    }
+
+    @Test
+    public void testCannotReuseInstance() throws Exception {
+        HierarchicalIdLock idLock = new HierarchicalIdLock();
+        HierarchicalIdLock.Instance instance = idLock.getLock("a/b").lock();
+        try {
+            instance.lock();
+            fail();
+        } catch (LockException e) {
+            // Expected
+        } finally {
+            instance.close();
+        }
+        assertEquals(0, idLock.getNumberOfNodes());
+    }
+
+    @Test
+    public void testMutualExclusionAcrossLevels() throws Exception {
+        HierarchicalIdLock idLock = new HierarchicalIdLock(10, TimeUnit.SECONDS);
+        int[] counters = new int[4];
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        int index = i % counters.length;
+                        if ((i + thread) % 8 == 0) {
+                            // Bulk job over the whole family
+                            try (IdLockHandle ignored = idLock.getLock("family/1").lock()) {
+                                for (int j = 0; j < counters.length; j++) {
+                                    counters[j]++;
+                                }
+                            }
+                        } else {
+                            try (IdLockHandle ignored = idLock.getLock("family/1/patient/" + index).lock()) {
+                                counters[index]++;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        int total = 0;
+        for (int counter : counters) {
+            total += counter;
+        }
+        // 4 threads, 5000 iterations: 2500 bulk jobs (4 increments each) and 17500 single increments
+        assertEquals(2500 * counters.length + 17500, total);
+        assertEquals(0, idLock.getNumberOfNodes());
+    }
+
+    private boolean canLock(HierarchicalIdLock idLock, String path, boolean shared) {
+        HierarchicalIdLock.Instance instance = shared ? idLock.getReadLock(path) : idLock.getLock(path);
+        try {
+            instance.lock();
+            instance.unlock();
+            return true;
+        } catch (LockException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.junit.Test;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of uncontended IdLock acquisitions against the compute based lock it replaced, left out of the default
+ * test run: {@code mvn test -Pbenchmark} runs it.
+ */
+public class IdLockBenchmark {
+
+    private static final int WARM_UP = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+    private static final int[] THREADS = { 1, 2, 4 };
+
+    /**
+     * Lock and unlock cycles on ids nobody else holds: time and allocated bytes per cycle in a single thread, then
+     * the total throughput of several threads each cycling over its own id.
+     */
+    @Test
+    public void uncontendedLockUnlock() throws Exception {
+        IdLock idLock = new IdLock(1, TimeUnit.SECONDS);
+        ComputeIdLock computeLock = new ComputeIdLock();
+        LockCycle idLockCycle = id -> assertTrue(idLock.getLock(id).lock().unlock());
+        LockCycle computeCycle = id -> assertTrue(computeLock.unlock(id, computeLock.lock(id)));
+
+        measure(WARM_UP, idLockCycle);
+        measure(WARM_UP, computeCycle);
+        long[] fastPath = measure(ITERATIONS, idLockCycle);
+        long[] compute = measure(ITERATIONS, computeCycle);
+        System.out.printf("Lock and unlock: IdLock %d ns and %d bytes per cycle, compute based %d ns and %d bytes%n",
+            fastPath[0], fastPath[1], compute[0], compute[1]);
+
+        for (int threads : THREADS) {
+            System.out.printf("%d threads on distinct ids: IdLock %d cycles/ms, compute based %d cycles/ms%n", threads,
+                throughput(threads, idLockCycle), throughput(threads, computeCycle));
+        }
+    }
+
+    private static long[] measure(int iterations, LockCycle cycle) throws LockException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threadBean instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) threadBean : null;
+        long threadId = Thread.currentThread().getId();
+        long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            cycle.run("id");
+        }
+        long time = (System.nanoTime() - start) / iterations;
+        allocated = allocations == null ? -1 : (allocations.getThreadAllocatedBytes(threadId) - allocated) / iterations;
+        return new long[] { time, allocated };
+    }
+
+    private static long throughput(int threads, LockCycle cycle) throws Exception {
+        Thread[] workers = new Thread[threads];
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int t = 0; t < threads; t++) {
+            String id = "id" + t;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < ITERATIONS / threads; i++) {
+                        cycle.run(id);
+                    }
+                } catch (LockException | RuntimeException e) {
+                    failed.set(true);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        assertFalse(failed.get());
+        return (ITERATIONS / threads) * (long) threads / elapsedMillis;
+    }
+
+    @FunctionalInterface
+    private interface LockCycle {
+        void run(String id) throws LockException;
+    }
+
+    /**
+     * The exclusive path of IdLock before its allocation free fast path, without auto release: every lock and unlock
+     * goes through {@link ConcurrentHashMap#compute}, with a capturing lambda, and every first lock of an id creates a
+     * new entry with its own {@link ReentrantReadWriteLock}.
+     */
+    private static final class ComputeIdLock {
+        private final ConcurrentMap<String, Entry> lockMap = new ConcurrentHashMap<>();
+
+        Entry lock(String id) throws LockException {
+            while (true) {
+                AtomicBoolean created = new AtomicBoolean(false);
+                Entry entry = this.lockMap.compute(id, (key, current) -> {
+                    if (current != null && current.valid) {
+                        return current;
+                    }
+                    created.set(true);
+                    Entry newEntry = new Entry();
+                    newEntry.lock.writeLock().lock();
+                    return newEntry;
+                });
+                if (created.get()) {
+                    return entry;
+                }
+                try {
+                    if (!entry.lock.writeLock().tryLock(1, TimeUnit.SECONDS)) {
+                        throw new LockException("Could not establish lock for [" + id + "]");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LockException("Could not establish lock for [" + id + "]", e);
+                }
+                if (entry.valid) {
+                    entry.acquiredTime.set(System.currentTimeMillis());
+                    return entry;
+                }
+                entry.lock.writeLock().unlock();
+            }
+        }
+
+        boolean unlock(String id, Entry entry) {
+            AtomicBoolean unlocked = new AtomicBoolean(false);
+            this.lockMap.compute(id, (key, current) -> {
+                if (current != entry || !entry.lock.isWriteLockedByCurrentThread()) {
+                    return current;
+                }
+                unlocked.set(true);
+                if (entry.lock.hasQueuedThreads()) {
+                    entry.lock.writeLock().unlock();
+                    return current;
+                }
+                entry.valid = false;
+                entry.lock.writeLock().unlock();
+                return null;
+            });
+            return unlocked.get();
+        }
+    }
+
+    private static final class Entry {
+        private final AtomicLong acquiredTime = new AtomicLong(System.currentTimeMillis());
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean valid = true;
+    }
+}
@@ -3,16 +3,21 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -23,6 +28,9 @@
 import lombok.RequiredArgsConstructor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class IdLockTest {
@@ -74,6 +82,388 @@ public void testAutoReleaseTimeoutBeforeExpiry() throws Exception {
         this.autoReleaseScenario(idLock, expectedResultMap, "lelu");
     }
 
+    @Test
+    public void testReentrantLock() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        try (IdLock.Instance outer = idLock.getLock("id1").lock()) {
+            assertTrue(idLock.getLock("id1").lock().unlock());
+            assertFalse(this.canLockFromOtherThread(idLock, "id1"));
+        }
+
+        assertEquals(0, idLock.getNumberOfLocks());
+        assertTrue(this.canLockFromOtherThread(idLock, "id1"));
+    }
+
+    @Test
+    public void testStaleInstanceDoesNotAffectRecycledEntry() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        IdLock.Instance first = idLock.getLock("id1").lock();
+        assertTrue(first.unlock());
+        assertEquals(0, idLock.getNumberOfLocks());
+
+        // The entry released above is most likely recycled for this id
+        try (IdLock.Instance ignored = idLock.getLock("id2").lock()) {
+            assertFalse(first.unlock());
+            assertFalse(this.canLockFromOtherThread(idLock, "id2"));
+            assertTrue(this.canLockFromOtherThread(idLock, "id1"));
+        }
+
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testReadLocksAreShared() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        IdLock.Instance reader1 = idLock.getReadLock("id1").lock();
+        IdLock.Instance reader2 = idLock.getReadLock("id1").lock();
+        assertEquals(1, idLock.getNumberOfLocks());
+        assertFalse(this.canLockFromOtherThread(idLock, "id1"));
+
+        assertTrue(reader1.unlock());
+        assertFalse(this.canLockFromOtherThread(idLock, "id1"));
+        assertTrue(reader2.unlock());
+        assertEquals(0, idLock.getNumberOfLocks());
+
+        try (IdLock.Instance ignored = idLock.getLock("id1").lock()) {
+            try {
+                idLock.getReadLock("id1").lock();
+                fail();
+            } catch (LockException e) {
+                // Expected
+            }
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testOptimisticRead() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        long stamp = idLock.tryOptimisticRead("id1");
+        assertNotEquals(0L, stamp);
+        assertTrue(idLock.validate("id1", stamp));
+
+        try (IdLock.Instance ignored = idLock.getReadLock("id1").lock()) {
+            assertTrue(idLock.validate("id1", stamp));
+        }
+
+        try (IdLock.Instance ignored = idLock.getLock("id1").lock()) {
+            assertEquals(0L, idLock.tryOptimisticRead("id1"));
+            assertFalse(idLock.validate("id1", stamp));
+        }
+
+        assertTrue(idLock.validate("id1", idLock.tryOptimisticRead("id1")));
+    }
+
+    @Test
+    public void testMixedReadersAndWriters() throws Exception {
+        IdLock idLock = new IdLock(30, TimeUnit.SECONDS);
+        AtomicInteger readers = new AtomicInteger();
+        AtomicInteger writers = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            Collection<Future<?>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                final boolean writer = i % 3 == 0;
+                futures.add(executorService.submit(() -> {
+                    for (int run = 0; run < 2000; run++) {
+                        String id = "id1";
+                        AtomicInteger mine = writer ? writers : readers;
+                        try (IdLock.Instance ignored = writer ? idLock.getLock(id).lock()
+                            : idLock.getReadLock(id).lock()) {
+                            mine.incrementAndGet();
+                            if (writers.get() > 1 || (writers.get() > 0 && readers.get() > 0)) {
+                                violations.incrementAndGet();
+                            }
+                            mine.decrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertEquals(0, violations.get());
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testLockAllIsAllOrNothing() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        try (IdLock.MultiInstance all = idLock.lockAll(Arrays.asList("c", "a", "b", "a"))) {
+            assertEquals(Arrays.asList("a", "b", "c"), all.getIds());
+            assertEquals(3, idLock.getNumberOfLocks());
+            assertFalse(this.canLockFromOtherThread(idLock, "b"));
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            IdLock.Instance held = executorService.submit(() -> idLock.getLock("b").lock()).get();
+            try {
+                idLock.lockAll(Arrays.asList("a", "b", "c"));
+                fail();
+            } catch (LockException e) {
+                // Expected
+            }
+            assertEquals(1, idLock.getNumberOfLocks());
+            assertTrue(executorService.submit(held::unlock).get());
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testLockAllOverlappingBatchesDoNotDeadlock() throws Exception {
+        IdLock idLock = new IdLock(30, TimeUnit.SECONDS);
+        List<String> forward = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            forward.add("id" + i);
+        }
+        List<String> backward = new ArrayList<>(forward);
+        Collections.reverse(backward);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Collection<Future<?>> futures = new ArrayList<>();
+            for (List<String> batch : Arrays.asList(forward, backward)) {
+                futures.add(executorService.submit(() -> {
+                    for (int run = 0; run < 50; run++) {
+                        idLock.lockAll(batch).close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testLockAsyncHandOff() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        IdLock.Instance held = idLock.getLock("id1").lock();
+        List<CompletableFuture<IdLock.Instance>> waiters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            waiters.add(idLock.getLock("id1").lockAsync(10, TimeUnit.SECONDS));
+        }
+        assertFalse(waiters.get(0).isDone());
+
+        // Each release hands the lock off to the next waiter, in order, and async locks can be released anywhere
+        assertTrue(held.unlock());
+        for (int i = 0; i < waiters.size(); i++) {
+            IdLock.Instance instance = waiters.get(i).get(1, TimeUnit.SECONDS);
+            for (int j = i + 1; j < waiters.size(); j++) {
+                assertFalse(waiters.get(j).isDone());
+            }
+            assertFalse(this.canLockFromOtherThread(idLock, "id1"));
+            assertTrue(instance.unlock());
+            assertFalse(instance.unlock());
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testLockAsyncTimeout() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS);
+
+        try (IdLock.Instance ignored = idLock.getLock("id1").lock()) {
+            CompletableFuture<IdLock.Instance> future = idLock.lockAsync("id1");
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LockException);
+            }
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testLockAsyncContention() throws Exception {
+        IdLock idLock = new IdLock(10, TimeUnit.SECONDS);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+
+        try {
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                boolean counted = i % 3 == 0;
+                results.add(idLock.getLock("id" + (i % 3)).lockAsync(10, TimeUnit.SECONDS, executorService)
+                    .thenApply(instance -> {
+                        if (counted) {
+                            maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                            holders.decrementAndGet();
+                        }
+                        return instance.unlock();
+                    }));
+            }
+            for (CompletableFuture<Boolean> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(1, maxHolders.get());
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testReaperRemovesExpiredLocks() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS, 200, TimeUnit.MILLISECONDS, 10, TimeUnit.MILLISECONDS);
+
+        IdLock.Instance leaked = idLock.getLock("id1").lock();
+        idLock.getLock("id2").lock();
+        CompletableFuture<IdLock.Instance> waiter = idLock.getLock("id1").lockAsync(5, TimeUnit.SECONDS);
+
+        // Nobody contends for id2, the reaper alone gets rid of it, and hands id1 over to the queued waiter
+        IdLock.Instance instance = waiter.get(5, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (idLock.getNumberOfLocks() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, idLock.getNumberOfLocks());
+        assertFalse(idLock.isLockExpired("id2").isPresent());
+
+        assertFalse(leaked.unlock());
+        assertTrue(instance.unlock());
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testHeartbeatKeepsLeaseAlive() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS, 200, TimeUnit.MILLISECONDS);
+
+        IdLock.Instance instance = idLock.getLock("id1").lock().startHeartbeat();
+        Thread.sleep(600);
+        assertEquals(Optional.of(false), idLock.isLockExpired("id1"));
+        assertFalse(this.canLockFromOtherThread(idLock, "id1"));
+        assertTrue(instance.renew());
+        assertTrue(instance.unlock());
+        assertFalse(instance.renew());
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testFencingTokenAfterTakeOver() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS, 100, TimeUnit.MILLISECONDS);
+
+        IdLock.Instance first = idLock.getLock("id1").lock();
+        Thread.sleep(200);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            IdLock.Instance second = executorService.submit(() -> idLock.getLock("id1").lock()).get();
+            assertTrue(second.getFencingToken() > first.getFencingToken());
+            assertFalse(first.renew());
+            assertFalse(first.unlock());
+            assertTrue(executorService.submit(second::unlock).get());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testReleaseDuringTakeOver() throws Exception {
+        IdLock idLock = new IdLock(1, TimeUnit.SECONDS, 5, TimeUnit.MILLISECONDS);
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 100; i++) {
+                IdLock.Instance first = executorService.submit(() -> idLock.getLock("id1").lock()).get();
+                CompletableFuture<Void> waiter = idLock.getLock("id1").lockAsync(1, TimeUnit.SECONDS)
+                    .thenAccept(instance -> holdBriefly(instance, holders, overlaps));
+                Thread.sleep(10);
+
+                // The expired holder releases, which hands the entry off to the waiter, while it is being taken over
+                Future<Boolean> release = executorService.submit(first::unlock);
+                holdBriefly(idLock.getLock("id1").lock(), holders, overlaps);
+                release.get();
+                waiter.get(1, TimeUnit.SECONDS);
+                assertFalse(first.renew());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(0, overlaps.get());
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    private static void holdBriefly(IdLock.Instance instance, AtomicInteger holders, AtomicInteger overlaps) {
+        if (holders.incrementAndGet() > 1) {
+            overlaps.incrementAndGet();
+        }
+        Thread.yield();
+        holders.decrementAndGet();
+        instance.unlock();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        IdLock idLock = new IdLock(50, TimeUnit.MILLISECONDS, 200, TimeUnit.MILLISECONDS);
+        assertFalse(idLock.getMetrics().isPresent());
+        IdLockMetrics metrics = idLock.enableMetrics();
+
+        try (IdLock.Instance ignored = idLock.getLock("cold").lock()) {
+            Thread.sleep(5);
+        }
+        IdLock.Instance hot = idLock.getLock("hot").lock();
+        assertEquals(Collections.singleton("hot"), idLock.getHeldLockAges().keySet());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(this.canLockFromOtherThread(idLock, "hot"));
+        }
+        Thread.sleep(250);
+        // Takes the expired lock over
+        assertTrue(this.canLockFromOtherThread(idLock, "hot"));
+        assertFalse(hot.unlock());
+
+        assertEquals(3, metrics.getAcquisitions());
+        assertEquals(1, metrics.getContendedAcquisitions());
+        assertEquals(3, metrics.getFailures());
+        assertEquals(1, metrics.getAutoReleases());
+        assertEquals(Collections.singletonMap("hot", 4L), metrics.getMostContendedIds(10));
+        // The late unlock of the taken over lock still counts as a hold
+        assertEquals(3, metrics.getHoldTimes().getCount());
+        assertTrue(metrics.getHoldTimes().getPercentile(100) >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(3, metrics.getWaitTimes().getCount());
+    }
+
+    private boolean canLockFromOtherThread(IdLock idLock, String id) throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            return executorService.submit(() -> {
+                try (IdLock.Instance ignored = idLock.getLock(id).lock()) {
+                    return true;
+                } catch (LockException e) {
+                    return false;
+                }
+            }).get();
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
     public void autoReleaseScenario(IdLock idLock, Map<String, String> expectedResultMap,
         String globalExpectedResult) {
 
@@ -368,10 +758,14 @@ public void run() {
                     this.hasLockOrErrorBarrier.canContinue();
 
                     this.unlockBarrier.waitToContinue();
-                    boolean unlockAttempt = lock.unlock();
-                    if (unlockAttempt) {
-                        this.runnerResult.append("u");
-                        this.globalIdResult.append("u");
+                    boolean unlockAttempt;
+                    // Record the unlock atomically with it, so the next locker cannot append its 'l' first
+                    synchronized (this.globalIdResult) {
+                        unlockAttempt = lock.unlock();
+                        if (unlockAttempt) {
+                            this.runnerResult.append("u");
+                            this.globalIdResult.append("u");
+                        }
                     }
                     if (DEBUG) {
                         System.out.printf("[%s] released lock on [%s]: %s%n", this.name, this.id, unlockAttempt);
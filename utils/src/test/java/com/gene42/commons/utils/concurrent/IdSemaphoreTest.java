@@ -0,0 +1,145 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdSemaphoreTest {
+
+    @Test
+    public void testPermits() throws Exception {
+        IdSemaphore semaphore = new IdSemaphore(2, 20, TimeUnit.MILLISECONDS);
+
+        IdSemaphore.Instance first = semaphore.getLock("project1").lock();
+        IdSemaphore.Instance second = semaphore.getLock("project1").lock();
+        assertEquals(0, semaphore.getAvailablePermits("project1"));
+        assertFalse(this.canAcquire(semaphore, "project1"));
+        assertTrue(this.canAcquire(semaphore, "project2"));
+
+        assertTrue(first.unlock());
+        assertFalse(first.unlock());
+        assertEquals(1, semaphore.getAvailablePermits("project1"));
+        assertTrue(this.canAcquire(semaphore, "project1"));
+
+        second.close();
+        assertEquals(0, semaphore.getNumberOfIds());
+        assertEquals(2, semaphore.getAvailablePermits("project1"));
+    }
+
+    @Test
+    public void testCannotReuseInstance() throws Exception {
+        IdSemaphore semaphore = new IdSemaphore(2);
+        try (IdSemaphore.Instance instance = semaphore.getLock("id").lock()) {
+            instance.lock();
+            fail();
+        } catch (LockException e) {
+            // Expected
+        }
+        assertEquals(0, semaphore.getNumberOfIds());
+    }
+
+    @Test
+    public void testAutoRelease() throws Exception {
+        IdSemaphore semaphore = new IdSemaphore(1, 2, TimeUnit.SECONDS, 100, TimeUnit.MILLISECONDS);
+
+        IdSemaphore.Instance leaked = semaphore.getLock("id").lock();
+        IdSemaphore.Instance renewed = semaphore.getLock("other").lock();
+        Thread.sleep(60);
+        assertTrue(renewed.renew());
+
+        // Waits for the leaked permit to expire
+        IdSemaphore.Instance next = semaphore.getLock("id").lock();
+        assertFalse(leaked.unlock());
+        assertFalse(leaked.renew());
+        assertTrue(renewed.unlock());
+        assertTrue(next.unlock());
+        assertEquals(0, semaphore.getNumberOfIds());
+    }
+
+    @Test
+    public void testLockAsync() throws Exception {
+        IdSemaphore semaphore = new IdSemaphore(1, 10, TimeUnit.SECONDS, 200, TimeUnit.MILLISECONDS);
+
+        IdSemaphore.Instance holder = semaphore.getLock("id").lock();
+        CompletableFuture<IdSemaphore.Instance> waiting = semaphore.lockAsync("id");
+        assertFalse(waiting.isDone());
+        assertTrue(holder.unlock());
+        IdSemaphore.Instance acquired = waiting.get(10, TimeUnit.SECONDS);
+
+        // This one never unlocks, the waiter gets its permit once it expires
+        CompletableFuture<IdSemaphore.Instance> afterExpiry = semaphore.lockAsync("id");
+        IdSemaphore.Instance next = afterExpiry.get(10, TimeUnit.SECONDS);
+        assertFalse(acquired.unlock());
+
+        CompletableFuture<IdSemaphore.Instance> timedOut = semaphore.getLock("id").lockAsync(20, TimeUnit.MILLISECONDS);
+        try {
+            timedOut.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LockException);
+        }
+
+        assertTrue(next.unlock());
+        assertEquals(0, semaphore.getNumberOfIds());
+    }
+
+    @Test
+    public void testBoundedConcurrency() throws Exception {
+        IdSemaphore semaphore = new IdSemaphore(3, 10, TimeUnit.SECONDS);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final boolean async = t % 2 == 0;
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        IdSemaphore.Instance instance = async
+                            ? semaphore.lockAsync("id").get(10, TimeUnit.SECONDS)
+                            : semaphore.getLock("id").lock();
+                        try {
+                            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                            active.decrementAndGet();
+                        } finally {
+                            instance.unlock();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertTrue(maxActive.get() <= 3);
+        assertEquals(0, semaphore.getNumberOfIds());
+    }
+
+    private boolean canAcquire(IdSemaphore semaphore, String id) {
+        try (IdSemaphore.Instance ignored = semaphore.getLock(id).lock()) {
+            return true;
+        } catch (LockException e) {
+            return false;
+        }
+    }
+}
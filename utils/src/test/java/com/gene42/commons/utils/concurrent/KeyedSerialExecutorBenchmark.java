@@ -0,0 +1,84 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * Benchmark of KeyedSerialExecutor against tasks wrapped in a blocking IdLock on the same pool, left out of the
+ * default test run: {@code mvn test -Pbenchmark} runs it.
+ */
+public class KeyedSerialExecutorBenchmark {
+
+    private static final int POOL_SIZE = 8;
+    private static final int TASKS = 4000;
+    private static final int COLD_IDS = 1000;
+    private static final int HOT_PERCENT = 50;
+    private static final long TASK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Half of the tasks go to a single hot id, the other half to many cold ids, and each task waits a little as if
+     * doing I/O. Reports the total time, and the time by which every cold task was done: with a blocking lock, the
+     * tasks of the hot id waiting for it tie up pool threads which the cold ids could have used.
+     */
+    @Test
+    public void hotIdAmongColdOnes() throws Exception {
+        String[] ids = new String[TASKS];
+        Random random = new Random(42);
+        for (int i = 0; i < TASKS; i++) {
+            ids[i] = random.nextInt(100) < HOT_PERCENT ? "hot" : "cold" + random.nextInt(COLD_IDS);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            long[] serial = run(ids, true);
+            long[] blocking = run(ids, false);
+            System.out.printf("%d tasks on %d threads: KeyedSerialExecutor %d ms, cold ids done after %d ms;"
+                + " blocking IdLock %d ms, cold ids done after %d ms%n", TASKS, POOL_SIZE, serial[0], serial[1],
+                blocking[0], blocking[1]);
+        }
+    }
+
+    private static long[] run(String[] ids, boolean serial) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(POOL_SIZE);
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+        IdLock idLock = new IdLock(30, TimeUnit.SECONDS);
+        AtomicLong coldDone = new AtomicLong();
+        List<CompletableFuture<?>> futures = new ArrayList<>(ids.length);
+
+        long start = System.nanoTime();
+        try {
+            for (String id : ids) {
+                Runnable task = () -> {
+                    LockSupport.parkNanos(TASK_NANOS);
+                    if (!"hot".equals(id)) {
+                        coldDone.accumulateAndGet(System.nanoTime(), Math::max);
+                    }
+                };
+                if (serial) {
+                    futures.add(executor.execute(id, task));
+                } else {
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        try (IdLock.Instance ignored = idLock.getLock(id).lock()) {
+                            task.run();
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }, pool));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdown();
+        }
+        long total = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new long[] { total, TimeUnit.NANOSECONDS.toMillis(coldDone.get() - start) };
+    }
+}
@@ -0,0 +1,132 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyedSerialExecutorTest {
+
+    @Test
+    public void testTasksOfAnIdRunSeriallyInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+        int[] lastSeen = new int[4];
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 20000; i++) {
+                int index = i % lastSeen.length;
+                int sequence = i / lastSeen.length;
+                futures.add(executor.execute("id" + index, () -> {
+                    // Only checked for id0, the other ids run alongside it
+                    if (index == 0 && running.incrementAndGet() != 1) {
+                        errors.incrementAndGet();
+                    }
+                    if (lastSeen[index] != sequence) {
+                        errors.incrementAndGet();
+                    }
+                    lastSeen[index] = sequence + 1;
+                    if (index == 0) {
+                        running.decrementAndGet();
+                    }
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(0, errors.get());
+        // Queues retire right after completing their last future
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getNumberOfQueues() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getNumberOfQueues());
+    }
+
+    @Test
+    public void testDifferentIdsRunInParallel() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(Executors.newCachedThreadPool());
+        CountDownLatch bothStarted = new CountDownLatch(2);
+
+        CompletableFuture<Boolean> first = executor.submit("id1", () -> {
+            bothStarted.countDown();
+            return bothStarted.await(5, TimeUnit.SECONDS);
+        });
+        CompletableFuture<Boolean> second = executor.submit("id2", () -> {
+            bothStarted.countDown();
+            return bothStarted.await(5, TimeUnit.SECONDS);
+        });
+
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertTrue(second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailureDoesNotBlockTheQueue() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor();
+
+        CompletableFuture<Object> failing = executor.submit("id1", () -> {
+            throw new IllegalStateException("failure");
+        });
+        CompletableFuture<String> next = executor.submit("id1", () -> "done");
+
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("done", next.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testErrorDoesNotBlockTheQueue() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor();
+
+        CompletableFuture<Void> failing = executor.execute("id1", () -> {
+            throw new AssertionError("failure");
+        });
+        CompletableFuture<String> next = executor.submit("id1", () -> "done");
+
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals("done", next.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedTasksFail() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(task -> {
+            throw new RejectedExecutionException("shut down");
+        });
+
+        CompletableFuture<String> rejected = executor.submit("id1", () -> "done");
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, executor.getNumberOfQueues());
+    }
+}
@@ -0,0 +1,106 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongIdLockTest {
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        LongIdLock idLock = new LongIdLock(10, TimeUnit.SECONDS);
+        int[] counters = new int[8];
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        int id = i % counters.length;
+                        try (LongIdLock.Instance ignored = idLock.getLock(id).lock()) {
+                            counters[id]++;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        for (int counter : counters) {
+            assertEquals(20000, counter);
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testManyIdsGrowAndShrink() throws Exception {
+        LongIdLock idLock = new LongIdLock(1, TimeUnit.MILLISECONDS);
+        List<LongIdLock.Instance> instances = new ArrayList<>();
+
+        for (long id = -5000; id < 5000; id++) {
+            instances.add(idLock.getLock(id * 31).lock());
+        }
+        assertEquals(10000, idLock.getNumberOfLocks());
+        assertFalse(idLock.isLockExpired(0).get());
+        assertFalse(idLock.isLockExpired(1).isPresent());
+
+        // Release every other id first, so that removals have to shift colliding entries back
+        for (int i = 0; i < instances.size(); i += 2) {
+            assertTrue(instances.get(i).unlock());
+        }
+        assertEquals(5000, idLock.getNumberOfLocks());
+        for (int i = 1; i < instances.size(); i += 2) {
+            assertTrue(idLock.isLockExpired((i - 5000) * 31L).isPresent());
+            assertTrue(instances.get(i).unlock());
+        }
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    @Test
+    public void testReentrantAndExpiry() throws Exception {
+        LongIdLock idLock = new LongIdLock(50, TimeUnit.MILLISECONDS, 200, TimeUnit.MILLISECONDS);
+
+        LongIdLock.Instance outer = idLock.getLock(42).lock();
+        LongIdLock.Instance inner = idLock.getLock(42).lock();
+        assertTrue(inner.unlock());
+        assertTrue(this.isLockedByOtherThread(idLock, 42));
+
+        Thread.sleep(300);
+        assertTrue(idLock.isLockExpired(42).get());
+        assertFalse(this.isLockedByOtherThread(idLock, 42));
+        assertFalse(outer.unlock());
+        assertEquals(0, idLock.getNumberOfLocks());
+    }
+
+    private boolean isLockedByOtherThread(LongIdLock idLock, long id) throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            return executorService.submit(() -> {
+                try (LongIdLock.Instance ignored = idLock.getLock(id).lock()) {
+                    return false;
+                } catch (LockException e) {
+                    return true;
+                }
+            }).get();
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
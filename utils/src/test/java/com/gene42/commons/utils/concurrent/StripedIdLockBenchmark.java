@@ -0,0 +1,95 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Benchmark of StripedIdLock throughput against its number of stripes and the number of threads locking, left out
+ * of the default test run: {@code mvn test -Pbenchmark} runs it.
+ */
+public class StripedIdLockBenchmark {
+
+    private static final int IDS = 100_000;
+    private static final int OPERATIONS = 400_000;
+    private static final int HOLD_WORK = 20;
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int[] STRIPES = { 1, 16, 256, 1024, 4096 };
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    private static volatile long sink;
+
+    /**
+     * Threads locking random ids out of a large set and doing a little work while holding them, reporting the total
+     * lock/unlock cycles per millisecond for each number of stripes, with IdLock as the unbounded reference.
+     */
+    @Test
+    public void throughputByStripesAndThreads() throws Exception {
+        String[] ids = new String[IDS];
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = "id" + i;
+        }
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            throughput(1, ids, new StripedIdLock(STRIPES[0], 10, TimeUnit.SECONDS));
+            throughput(1, ids, new IdLock(10, TimeUnit.SECONDS));
+        }
+
+        StringBuilder header = new StringBuilder(String.format("%-8s", "threads"));
+        for (int stripes : STRIPES) {
+            header.append(String.format("%14s", stripes + " stripes"));
+        }
+        System.out.println(header.append(String.format("%14s", "IdLock")));
+
+        for (int threads : THREADS) {
+            StringBuilder row = new StringBuilder(String.format("%-8d", threads));
+            for (int stripes : STRIPES) {
+                StripedIdLock lock = new StripedIdLock(stripes, 10, TimeUnit.SECONDS);
+                throughput(threads, ids, lock);
+                row.append(String.format("%14d", throughput(threads, ids, lock)));
+            }
+            IdLock idLock = new IdLock(10, TimeUnit.SECONDS);
+            throughput(threads, ids, idLock);
+            System.out.println(row.append(String.format("%14d", throughput(threads, ids, idLock))));
+        }
+    }
+
+    private static long throughput(int threads, String[] ids, IdLockProvider lock) throws Exception {
+        Thread[] workers = new Thread[threads];
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    for (int i = 0; i < OPERATIONS / threads; i++) {
+                        try (IdLockHandle ignored = lock.getLock(ids[random.nextInt(IDS)]).lock()) {
+                            long work = 0;
+                            for (int w = 0; w < HOLD_WORK; w++) {
+                                work += w * i;
+                            }
+                            sink = work;
+                        }
+                    }
+                } catch (LockException e) {
+                    failed.set(true);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        assertFalse(failed.get());
+        return (OPERATIONS / threads) * (long) threads / elapsedMillis;
+    }
+}
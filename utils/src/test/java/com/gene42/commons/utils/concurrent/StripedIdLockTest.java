@@ -0,0 +1,96 @@
+package com.gene42.commons.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.gene42.commons.utils.exceptions.LockException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedIdLockTest {
+
+    @Test
+    public void testProvidersAreInterchangeable() throws Exception {
+        this.checkMutualExclusion(new IdLock(10, TimeUnit.SECONDS));
+        this.checkMutualExclusion(new StripedIdLock(16, 10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStripeCollisions() throws Exception {
+        StripedIdLock idLock = new StripedIdLock(3, 50, TimeUnit.MILLISECONDS);
+        assertEquals(4, idLock.getNumberOfStripes());
+
+        String collidingId = null;
+        String otherId = null;
+        for (int i = 1; collidingId == null || otherId == null; i++) {
+            if (idLock.getStripe("id" + i) == idLock.getStripe("id0")) {
+                collidingId = "id" + i;
+            } else {
+                otherId = "id" + i;
+            }
+        }
+
+        try (IdLockHandle handle = idLock.getLock("id0").lock()) {
+            assertNotEquals(idLock.getStripe("id0"), idLock.getStripe(otherId));
+            assertTrue(this.canLockFromOtherThread(idLock, otherId));
+            // Distinct ids, but the same stripe
+            assertFalse(this.canLockFromOtherThread(idLock, collidingId));
+            assertTrue(handle.unlock());
+            assertFalse(handle.unlock());
+        }
+        assertTrue(this.canLockFromOtherThread(idLock, collidingId));
+    }
+
+    private void checkMutualExclusion(IdLockProvider provider) throws Exception {
+        int[] counters = new int[8];
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        int index = i % counters.length;
+                        try (IdLockHandle ignored = provider.getLock("id" + index).lock()) {
+                            counters[index]++;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        for (int counter : counters) {
+            assertEquals(4 * 10000 / counters.length, counter);
+        }
+    }
+
+    private boolean canLockFromOtherThread(IdLockProvider provider, String id) throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            return executorService.submit(() -> {
+                try (IdLockHandle ignored = provider.getLock(id).lock()) {
+                    return true;
+                } catch (LockException e) {
+                    return false;
+                }
+            }).get();
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
@@ -7,6 +7,9 @@
  */
 package com.gene42.commons.utils.json;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
@@ -15,7 +18,9 @@
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test class for JSONTools.
@@ -66,4 +71,25 @@ public void getJSONArrayTest() throws Exception
         JSONArray arr = JSONTools.getJSONArray(obj, key);
         assertNotNull(arr);
     }
+
+    @Test
+    public void deepCopyTest() throws Exception
+    {
+        JSONObject nested = new JSONObject().put("value", 1);
+        JSONObject obj = new JSONObject()
+            .put("nested", nested)
+            .put("array", new JSONArray().put(nested).put(JSONObject.NULL))
+            .put("map", Collections.singletonMap("list", Arrays.asList("a", nested)))
+            .put("ints", new int[] { 1, 2 })
+            .put("string", "value");
+
+        JSONObject copy = JSONTools.deepCopy(obj);
+        assertTrue(copy.similar(new JSONObject(obj.toString())));
+
+        nested.put("value", 2);
+        assertEquals(1, copy.getJSONObject("nested").getInt("value"));
+        assertEquals(1, copy.getJSONArray("array").getJSONObject(0).getInt("value"));
+        assertEquals(1, copy.getJSONObject("map").getJSONArray("list").getJSONObject(1).getInt("value"));
+        assertTrue(copy.getJSONArray("array").isNull(1));
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils.json;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Benchmark of JsonApiBuilder, left out of the default test run: {@code mvn test -Pbenchmark} runs it.
+ *
+ * @version $Id$
+ */
+public class JsonApiBuilderBenchmark
+{
+    /**
+     * Times building documents of 1, 100 and 10k resources, and the bytes allocated doing so, against building them
+     * with a serialization round trip per nesting level, as the builders used to.
+     */
+    @Test
+    public void build() throws Exception
+    {
+        for (int resources : new int[] { 1, 100, 10000 }) {
+            JsonApiBuilder builder = new JsonApiBuilder().putMeta("total", resources);
+            List<JsonApiResourceBuilder> resourceBuilders = new ArrayList<>(resources);
+            for (int i = 0; i < resources; i++) {
+                JsonApiResourceBuilder resource = new JsonApiResourceBuilder("data" + i, "type1")
+                    .putAttribute("attr1", "value" + i).putAttribute("attr2", i)
+                    .putSelfLink("/data/" + i).putParentRelationship("parent1", "patient");
+                resourceBuilders.add(resource);
+                builder.addData(resource);
+            }
+            int iterations = Math.max(2, 20000 / resources);
+
+            for (int round = 0; round < 2; round++) {
+                long[] copying = measure(iterations, builder::build);
+                long[] roundTrip = measure(iterations, () -> {
+                    JSONArray data = new JSONArray();
+                    for (JsonApiResourceBuilder resource : resourceBuilders) {
+                        data.put(new JSONObject(resource.build().toString()));
+                    }
+                    JSONObject result = new JSONObject().put(JsonApiBuilder.DATA_FIELD, data)
+                        .put(JsonApiBuilder.META_FIELD, new JSONObject().put("total", resources));
+                    return new JSONObject(result.toString());
+                });
+                System.out.printf("Building %d resources: %d ns and %d bytes per build, with round trips: %d ns and"
+                    + " %d bytes%n", resources, copying[0], copying[1], roundTrip[0], roundTrip[1]);
+            }
+        }
+    }
+
+    private static long[] measure(int iterations, Supplier<JSONObject> build)
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threadBean instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) threadBean : null;
+        long threadId = Thread.currentThread().getId();
+        long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            assertFalse(build.get().isEmpty());
+        }
+        long time = (System.nanoTime() - start) / iterations;
+        allocated = allocations == null ? -1 : (allocations.getThreadAllocatedBytes(threadId) - allocated) / iterations;
+        return new long[] { time, allocated };
+    }
+}
@@ -7,12 +7,20 @@
  */
 package com.gene42.commons.utils.json;
 
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test class for JsonApiBuilder.
@@ -52,6 +60,110 @@ public void testBuild() throws Exception {
         assertEquals("metaValue2", ((JSONObject)result.get(JsonApiBuilder.META_FIELD)).get("meta2"));
     }
 
+    @Test
+    public void testWriteTo() throws Exception {
+        JsonApiBuilder builder = new JsonApiBuilder().putMeta("meta1", "metaValue1");
+        for (int i = 0; i < 1000; i++) {
+            builder.addData(new JsonApiResourceBuilder("data" + i, "type1").putAttribute("attr1", "\"value\"\n" + i)
+                .putSelfLink("/data/" + i).putParentRelationship("parent1", "patient"));
+        }
+        builder.addIncluded(new JsonApiResourceBuilder("parent1", "patient"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.writeTo(out);
+        assertTrue(builder.build().similar(new JSONObject(out.toString("UTF-8"))));
+
+        StringWriter writer = new StringWriter();
+        new JsonApiBuilder().setSingleResourceMode(true).addData(new JsonApiResourceBuilder("data1", "type1"))
+            .addError(new JsonApiErrorBuilder().setTitle("Error")).writeTo(writer);
+        assertEquals("{\"errors\":[{\"title\":\"Error\"}]}", writer.toString());
+    }
+
+    @Test
+    public void testReuseAfterBuild() throws Exception {
+        JsonApiResourceBuilder resource = new JsonApiResourceBuilder("data1", "type1")
+            .putAttribute("nested", new JSONObject().put("value", 1));
+        JsonApiBuilder builder = new JsonApiBuilder().addData(resource).putMeta("count", 1);
+
+        JSONObject first = builder.build();
+        first.getJSONObject(JsonApiBuilder.META_FIELD).put("count", 2);
+        getAttributes(first).getJSONObject("nested").put("value", 2);
+        resource.putAttribute("other", "value");
+
+        JSONObject second = builder.build();
+        assertEquals(1, second.getJSONObject(JsonApiBuilder.META_FIELD).getInt("count"));
+        assertEquals(1, getAttributes(second).getJSONObject("nested").getInt("value"));
+        assertEquals("value", getAttributes(second).getString("other"));
+        assertFalse(getAttributes(first).has("other"));
+    }
+
+    @Test
+    public void testDataPage() throws Exception {
+        AtomicInteger pulled = new AtomicInteger();
+        JsonApiBuilder builder = new JsonApiBuilder().putMeta("meta1", "metaValue1")
+            .setDataPage(resources(1000000, pulled), new JSONObject().put("offset", 20).put("limit", 10),
+                () -> 1000000);
+        // Printing the builder does not read the page
+        assertEquals(20, new JSONObject(builder.toString()).getJSONObject(JsonApiBuilder.META_FIELD).getInt("offset"));
+        assertEquals(0, pulled.get());
+
+        StringWriter writer = new StringWriter();
+        builder.writeTo(writer);
+        JSONObject result = new JSONObject(writer.toString());
+        assertEquals(30, pulled.get());
+        JSONArray data = result.getJSONArray(JsonApiBuilder.DATA_FIELD);
+        assertEquals(10, data.length());
+        assertEquals("data20", data.getJSONObject(0).getString("id"));
+        JSONObject meta = result.getJSONObject(JsonApiBuilder.META_FIELD);
+        assertEquals("metaValue1", meta.getString("meta1"));
+        assertEquals(20, meta.getInt("offset"));
+        assertEquals(10, meta.getInt("limit"));
+        assertEquals(10, meta.getInt("returned"));
+        assertEquals(1000000, meta.getLong("total"));
+
+        try {
+            builder.build();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // The last page can be short, and pages past the end are empty
+        JsonApiBuilder lastPage = new JsonApiBuilder().setDataPage(resources(25, pulled), 20, 10, null);
+        result = lastPage.build();
+        assertEquals(5, result.getJSONArray(JsonApiBuilder.DATA_FIELD).length());
+        assertEquals(5, result.getJSONObject(JsonApiBuilder.META_FIELD).getInt("returned"));
+        assertFalse(result.getJSONObject(JsonApiBuilder.META_FIELD).has("total"));
+        result = new JsonApiBuilder().setDataPage(resources(25, pulled), 30, 10, () -> 25).build();
+        assertEquals(0, result.getJSONArray(JsonApiBuilder.DATA_FIELD).length());
+        assertEquals(25, result.getJSONObject(JsonApiBuilder.META_FIELD).getInt("total"));
+        assertEquals("{}", new JsonApiBuilder().toString());
+
+        // Single resource mode only pulls the first resource of the page, whether built or written
+        pulled.set(0);
+        JSONObject built = new JsonApiBuilder().setSingleResourceMode(true)
+            .setDataPage(resources(25, pulled), 20, 10, null).build();
+        assertEquals(21, pulled.get());
+        pulled.set(0);
+        StringWriter singleWriter = new StringWriter();
+        new JsonApiBuilder().setSingleResourceMode(true).setDataPage(resources(25, pulled), 20, 10, null)
+            .writeTo(singleWriter);
+        assertEquals(21, pulled.get());
+        assertTrue(built.similar(new JSONObject(singleWriter.toString())));
+        assertEquals("data20", built.getJSONObject(JsonApiBuilder.DATA_FIELD).getString("id"));
+        assertEquals(1, built.getJSONObject(JsonApiBuilder.META_FIELD).getInt("returned"));
+    }
+
+    private static Stream<JsonApiResourceBuilder> resources(int count, AtomicInteger pulled) {
+        return IntStream.range(0, count).peek(i -> pulled.incrementAndGet())
+            .mapToObj(i -> new JsonApiResourceBuilder("data" + i, "type1").putAttribute("attr1", i));
+    }
+
+    private static JSONObject getAttributes(JSONObject document) {
+        return document.getJSONArray(JsonApiBuilder.DATA_FIELD).getJSONObject(0)
+            .getJSONObject(JsonApiResourceBuilder.ATTRIBUTES_FIELD);
+    }
+
     @Test
     public void testNullDataAndInclude() throws Exception {
         JSONObject result = new JsonApiBuilder()
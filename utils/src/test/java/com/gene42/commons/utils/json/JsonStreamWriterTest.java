@@ -0,0 +1,96 @@
+/*
+ * This file is subject to the terms and conditions defined in file LICENSE,
+ * which is part of this source code package.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ */
+package com.gene42.commons.utils.json;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for JsonStreamWriter.
+ *
+ * @version $Id$
+ */
+public class JsonStreamWriterTest
+{
+    private static final String ESCAPED =
+        "Quote \" backslash \\ slash / tab \t line\nbell \u0007 separator \u2028 \u00e9";
+
+    @Test
+    public void writeValues() throws Exception
+    {
+        StringWriter out = new StringWriter();
+        JsonStreamWriter writer = new JsonStreamWriter(out);
+        writer.beginObject()
+            .name("string").value(ESCAPED)
+            .name("long").value(Long.MAX_VALUE)
+            .name("double").value((Object) 1.5)
+            .name("boolean").value(true)
+            .name("null").value((String) null)
+            .name("array").beginArray().value(1).beginObject().endObject().beginArray().endArray().endArray()
+            .name("list").value(Arrays.asList("a", null, 2))
+            .name("map").value(Collections.singletonMap("key", new int[] { 1, 2 }))
+            .endObject();
+
+        JSONObject result = new JSONObject(out.toString());
+        assertEquals(ESCAPED, result.getString("string"));
+        assertEquals(Long.MAX_VALUE, result.getLong("long"));
+        assertEquals(1.5, result.getDouble("double"), 0);
+        assertTrue(result.getBoolean("boolean"));
+        assertTrue(result.isNull("null"));
+        assertEquals("[1,{},[]]", result.getJSONArray("array").toString());
+        assertEquals("[\"a\",null,2]", result.getJSONArray("list").toString());
+        assertEquals(2, result.getJSONObject("map").getJSONArray("key").getInt(1));
+        assertTrue(out.toString().contains("\\u0007") && out.toString().contains("\\u2028"));
+    }
+
+    @Test
+    public void writeJSONObject() throws Exception
+    {
+        JSONObject object = new JSONObject()
+            .put("nested", new JSONObject().put("array", new JSONArray().put(ESCAPED).put(JSONObject.NULL)))
+            .put("number", 42);
+        StringWriter out = new StringWriter();
+        new JsonStreamWriter(out).value(object);
+        assertTrue(object.similar(new JSONObject(out.toString())));
+    }
+
+    @Test
+    public void misuse() throws Exception
+    {
+        JsonStreamWriter writer = new JsonStreamWriter(new StringWriter());
+        writer.beginObject();
+        try {
+            writer.value("no name");
+            fail();
+        } catch (IllegalStateException e) {
+            // Pass
+        }
+        try {
+            writer.endArray();
+            fail();
+        } catch (IllegalStateException e) {
+            // Pass
+        }
+        writer.name("name");
+        try {
+            writer.name("other");
+            fail();
+        } catch (IllegalStateException e) {
+            // Pass
+        }
+    }
+}
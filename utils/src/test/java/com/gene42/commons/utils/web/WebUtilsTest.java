@@ -7,9 +7,14 @@
  */
 package com.gene42.commons.utils.web;
 
+import java.io.ByteArrayOutputStream;
+
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 
+import com.gene42.commons.utils.json.JsonApiBuilder;
+import com.gene42.commons.utils.json.JsonApiResourceBuilder;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
@@ -35,6 +40,17 @@ public void getErrorResponseTest() throws Exception
         assertEquals(400, response.getStatus());
     }
 
+    @Test
+    public void getStreamingEntityTest() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WebUtils.getStreamingEntity(new JsonApiBuilder().addData(new JsonApiResourceBuilder("data1", "type1")))
+            .write(out);
+
+        JSONObject result = new JSONObject(out.toString("UTF-8"));
+        assertEquals("data1", result.getJSONArray(JsonApiBuilder.DATA_FIELD).getJSONObject(0).getString("id"));
+    }
+
     @Test
     public void getJSONObjectValueTest() throws Exception
     {